@@ -11,13 +11,33 @@ else:
     sys.exit(1)
 
 
-df = pd.read_csv(input_file, sep=";", names=["ArchSource", "ArchTarget", "Count", "Win", "CountSrc", "CountTgt", "Prediction"])
+# Stats lines: 7 columns and the draws, then ";countError;winError" (-approx) and
+# ";countLow;countHigh;winRateLow;winRateHigh" (-sample): 8, 10, 12 or 14 columns.
+# Lines of 7 columns come from outputs written before the draws were counted.
+rows = []
+with open(input_file) as f:
+    for line in f:
+        columns = line.strip().replace(",", ".").split(";")
+        if len(columns) < 7:
+            continue
+        count = float(columns[2])
+        low, high = count, count
+        if len(columns) in (10, 14):  # approximate edges: the true count is in [count, count + countError]
+            high = count + float(columns[8])
+        if len(columns) >= 12:  # sampled run: 95% interval of the count
+            low, high = float(columns[-4]), high - count + float(columns[-3])
+        rows.append((count, float(columns[6]), low, high))
+df = pd.DataFrame(rows, columns=["Count", "Prediction", "CountLow", "CountHigh"])
 
 correlation = df["Count"].corr(df["Prediction"])
 print(f"Correlation Coefficient: {correlation}")
+if (df["CountLow"] != df["CountHigh"]).any():
+    # the observed counts are intervals: correlation at both ends of them
+    print(f"Correlation over the count intervals: {df['CountLow'].corr(df['Prediction'])} to {df['CountHigh'].corr(df['Prediction'])}")
 
 plt.figure(figsize=(10, 6))
-plt.scatter(df["Prediction"], df["Count"], alpha=0.5, s=10)
+plt.errorbar(df["Prediction"], df["Count"], yerr=[df["Count"] - df["CountLow"], df["CountHigh"] - df["Count"]],
+             fmt="o", alpha=0.5, markersize=3, elinewidth=0.5)
 
 # Add y=x reference line
 max_val = max(df["Prediction"].max(), df["Count"].max())
@@ -8,6 +8,10 @@ def extract_metric(text, regex):
     match = re.search(regex, text)
     return int(match.group(1)) if match else 0
 
+def extract_codec(text):
+    match = re.search(r">>> Compression: (\w+)", text)
+    return match.group(1) if match else "none"
+
 def parse_filename_strict(filename):
     clean_name = filename.replace(".log", "")
     parts = clean_name.split("_")
@@ -66,9 +70,12 @@ def process_all_logs():
                 "MinSize": file_meta["MinSize"],
                 "Combiner": file_meta["Combiner"],
                 "Job Name": job_name,
+                "Codec": extract_codec(job_data),
                 "Map Input": extract_metric(job_data, r"Map input records=(\d+)"),
                 "Map Output": extract_metric(job_data, r"Map output records=(\d+)"),
                 "Combine Output": extract_metric(job_data, r"Combine output records=(\d+)"),
+                "Map Output Bytes": extract_metric(job_data, r"Map output bytes=(\d+)"),
+                "Map Output Materialized Bytes": extract_metric(job_data, r"Map output materialized bytes=(\d+)"),
                 "Shuffle Bytes": extract_metric(job_data, r"Reduce shuffle bytes=(\d+)"),
                 "CPU Time (ms)": extract_metric(job_data, r"CPU time spent \(ms\)=(\d+)"),
                 "Total Time (ms)": extract_metric(job_data, r"Total time spent by all maps in occupied slots \(ms\)=(\d+)"),
@@ -95,7 +102,7 @@ def process_all_logs():
         final_df.to_csv(output_file, index=False, sep=";")
         
         print(f"\n[SUCCESS] Données mises à jour dans '{output_file}'")
-        print(final_df[["Log File", "Combiner", "Job Name", "Shuffle Bytes", "CPU Time (ms)"]].tail(10).to_string(index=False))
+        print(final_df[["Log File", "Combiner", "Job Name", "Codec", "Shuffle Bytes", "CPU Time (ms)"]].tail(10).to_string(index=False))
 
 if __name__ == "__main__":
     process_all_logs()
\ No newline at end of file
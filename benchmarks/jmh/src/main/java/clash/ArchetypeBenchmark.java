@@ -0,0 +1,73 @@
+package clash;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Deck sorting and sub-deck enumeration of NodesEdgesMapper, at each minimum size. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchetypeBenchmark {
+
+    private static final int CORPUS_SIZE = 4096;
+
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+    public int minSize;
+
+    private long[] decks;
+    private long[] sortedDecks;
+    private final long[] archetypes = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+    private int next;
+    private ArchetypeCache cache;
+
+    @Setup
+    public void setup() {
+        MatchRecord[] matches = SyntheticCorpus.matches(CORPUS_SIZE / 2);
+        decks = new long[CORPUS_SIZE];
+        sortedDecks = new long[CORPUS_SIZE];
+        for (int i = 0; i < matches.length; i++) {
+            decks[2 * i] = matches[i].getDeck(0);
+            decks[2 * i + 1] = matches[i].getDeck(1);
+        }
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            sortedDecks[i] = ArchetypeEnumerator.sortDeckCards(decks[i]);
+        }
+        cache = new ArchetypeCache(4096, minSize);
+    }
+
+    @Benchmark
+    public long sortDeckCards() {
+        return ArchetypeEnumerator.sortDeckCards(decks[nextIndex()]);
+    }
+
+    @Benchmark
+    public long[] enumerate() {
+        ArchetypeEnumerator.enumerate(sortedDecks[nextIndex()], minSize, archetypes);
+        return archetypes;
+    }
+
+    @Benchmark
+    public long[] enumerateCached() {
+        return cache.get(sortedDecks[nextIndex()]);
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = (next + 1) % CORPUS_SIZE;
+        return index;
+    }
+}
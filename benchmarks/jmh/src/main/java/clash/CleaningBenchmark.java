@@ -0,0 +1,60 @@
+package clash;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import clash.DataCleaning.CleaningMapper;
+import clash.DataCleaning.DataQuality;
+
+/** Hot path of CleaningMapper.map: JSON extraction, canonical key and record. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CleaningBenchmark {
+
+    private static final int CORPUS_SIZE = 4096;
+
+    private byte[][] lines;
+    private int next;
+    private final MatchExtractor extractor = new MatchExtractor();
+    private final DedupKey canonicalKey = new DedupKey();
+    private final MatchRecord record = new MatchRecord();
+
+    @Setup
+    public void setup() {
+        lines = SyntheticCorpus.jsonLines(CORPUS_SIZE);
+    }
+
+    @Benchmark
+    public DataQuality parse() {
+        byte[] line = nextLine();
+        return extractor.parse(line, line.length);
+    }
+
+    @Benchmark
+    public MatchRecord parseAndBuildKey() {
+        byte[] line = nextLine();
+        if (extractor.parse(line, line.length) != null) return null;
+        CleaningMapper.setCanonicalKey(extractor, canonicalKey);
+        return extractor.toRecord(record);
+    }
+
+    private byte[] nextLine() {
+        byte[] line = lines[next];
+        next = (next + 1) % CORPUS_SIZE;
+        return line;
+    }
+}
@@ -0,0 +1,72 @@
+package clash;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One NodesEdgesReducer.reduce call: sum of the CountWin values of a key, then the
+ * "key;count;wins" line (same steps as the reducer, without the MultipleOutputs write).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReducerBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int valuesPerKey;
+
+    private final ArchetypeKey nodeKey = new ArchetypeKey();
+    private final ArchetypeKey edgeKey = new ArchetypeKey();
+    private final CountWin total = new CountWin();
+    private List<CountWin> values;
+
+    @Setup
+    public void setup() {
+        MatchRecord match = SyntheticCorpus.matches(1)[0];
+        long deck1 = ArchetypeEnumerator.sortDeckCards(match.getDeck(0));
+        long deck2 = ArchetypeEnumerator.sortDeckCards(match.getDeck(1));
+        nodeKey.setNode(8, deck1);
+        edgeKey.setEdge(8, deck1, deck2);
+
+        CountWin[] array = new CountWin[valuesPerKey];
+        for (int i = 0; i < valuesPerKey; i++) {
+            array[i] = new CountWin(1 + i % 3, i % 2);
+        }
+        values = Arrays.asList(array);
+    }
+
+    @Benchmark
+    public Text reduceNode() {
+        return reduce(nodeKey);
+    }
+
+    @Benchmark
+    public Text reduceEdge() {
+        return reduce(edgeKey);
+    }
+
+    private Text reduce(ArchetypeKey key) {
+        total.set(0, 0);
+        for (CountWin val : values) {
+            total.add(val);
+        }
+        return new Text(key.toString() + ";" + total);
+    }
+}
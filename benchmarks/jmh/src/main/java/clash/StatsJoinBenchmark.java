@@ -0,0 +1,93 @@
+package clash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StatsReplicatedJoin.map on one edge line: parsing, the two node index lookups and the
+ * formatting of the stats line (same steps as the mapper, without the context write).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsJoinBenchmark {
+
+    private static final int CORPUS_SIZE = 20000;
+
+    @Param({"6", "8"})
+    public int size;
+
+    private File nodesDirectory;
+    private File indexFile;
+    private NodeIndex nodeIndex;
+    private String[] edgeLines;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        MatchRecord[] matches = SyntheticCorpus.matches(CORPUS_SIZE);
+        nodesDirectory = SyntheticCorpus.nodesDirectory(matches, size);
+        indexFile = SyntheticCorpus.nodeIndex(nodesDirectory);
+        nodeIndex = NodeIndex.open(indexFile);
+        List<String> lines = SyntheticCorpus.edgeLines(matches, size);
+        edgeLines = lines.toArray(new String[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        nodeIndex.close();
+        indexFile.delete();
+        for (File part : nodesDirectory.listFiles()) {
+            part.delete();
+        }
+        nodesDirectory.delete();
+    }
+
+    @Benchmark
+    public long lookup() {
+        String line = nextLine();
+        int separator = line.indexOf(';');
+        return nodeIndex.getCount(size, Decks.pack(line.substring(0, separator)));
+    }
+
+    @Benchmark
+    public String joinAndFormat() {
+        String[] parts = nextLine().split(";");
+        String archSource = parts[0];
+        String archTarget = parts[1];
+        long edgeCount = Long.parseLong(parts[2]);
+        long edgeWin = Long.parseLong(parts[3]);
+
+        int archetypeSize = archSource.length() / 2;
+        long countSource = nodeIndex.getCount(archetypeSize, Decks.pack(archSource));
+        long countTarget = nodeIndex.getCount(archetypeSize, Decks.pack(archTarget));
+        if (countSource < Stats.MIN_COUNT_THRESHOLD || countTarget < Stats.MIN_COUNT_THRESHOLD) {
+            return null;
+        }
+        return Stats.formatStatsLine(archSource, archTarget, edgeCount, edgeWin, countSource, countTarget, nodeIndex.getTotal(archetypeSize));
+    }
+
+    private String nextLine() {
+        String line = edgeLines[next];
+        next = (next + 1) % edgeLines.length;
+        return line;
+    }
+}
@@ -0,0 +1,185 @@
+package clash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Fixed-seed synthetic match corpus, shaped like the raw dataset: a small pool of cards,
+ * a dozen "meta" decks played (sometimes with one card swapped) by 60% of the players,
+ * random decks for the others, and a few hundred players.
+ */
+public final class SyntheticCorpus {
+
+    public static final long SEED = 7;
+
+    private static final int CARD_POOL = 46;
+    private static final int META_DECKS = 12;
+    private static final int PLAYERS = 300;
+    private static final long START_MILLIS = 1762862400000L; // 2025-11-11T12:00:00Z
+
+    private SyntheticCorpus() {}
+
+    /** Raw JSON lines, UTF-8 encoded. */
+    public static byte[][] jsonLines(int count) {
+        Random random = new Random(SEED);
+        int[] cards = cardPool(random);
+        int[][] metaDecks = new int[META_DECKS][];
+        for (int i = 0; i < META_DECKS; i++) {
+            metaDecks[i] = randomDeck(random, cards);
+        }
+
+        byte[][] lines = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int player1 = random.nextInt(PLAYERS);
+            int player2 = (player1 + 1 + random.nextInt(PLAYERS - 1)) % PLAYERS;
+            String date = Instant.ofEpochMilli(START_MILLIS + 1000L * random.nextInt(86400)).toString();
+            String line = "{\"date\":\"" + date + "\",\"game\":\"pathOfLegend\",\"mode\":\"Ranked1v1_NewArena2\""
+                + ",\"round\":" + (random.nextInt(4) == 0 ? 1 : 0)
+                + ",\"type\":\"pathOfLegend\",\"winner\":" + random.nextInt(2)
+                + ",\"players\":["
+                + player(player1, deck(random, cards, metaDecks), random) + ","
+                + player(player2, deck(random, cards, metaDecks), random) + "]}";
+            lines[i] = line.getBytes(StandardCharsets.UTF_8);
+        }
+        return lines;
+    }
+
+    /** The corpus as cleaned records (every generated line is valid). */
+    public static MatchRecord[] matches(int count) {
+        MatchExtractor extractor = new MatchExtractor();
+        byte[][] lines = jsonLines(count);
+        MatchRecord[] matches = new MatchRecord[count];
+        for (int i = 0; i < count; i++) {
+            if (extractor.parse(lines[i], lines[i].length) != null) {
+                throw new IllegalStateException("Invalid synthetic record: " + new String(lines[i], StandardCharsets.UTF_8));
+            }
+            matches[i] = extractor.toRecord(new MatchRecord());
+        }
+        return matches;
+    }
+
+    /**
+     * Node counts of the archetypes of one size, as a sorted "archetype;count;wins" part file
+     * in a new temporary directory, like the nodes/ output of the graph job.
+     */
+    public static File nodesDirectory(MatchRecord[] matches, int size) throws IOException {
+        Map<Long, long[]> counts = new TreeMap<>(Long::compareUnsigned);
+        long[] archetypes = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+        for (MatchRecord match : matches) {
+            for (int player = 0; player < 2; player++) {
+                ArchetypeEnumerator.enumerate(ArchetypeEnumerator.sortDeckCards(match.getDeck(player)), size, archetypes);
+                for (int i = 0; i < ArchetypeEnumerator.countOfSize(size); i++) {
+                    long[] countWin = counts.computeIfAbsent(archetypes[i], k -> new long[2]);
+                    countWin[0]++;
+                    if (match.getWinner() == player) countWin[1]++;
+                }
+            }
+        }
+
+        File directory = Files.createTempDirectory("clash-nodes-").toFile();
+        try (PrintWriter out = new PrintWriter(new File(directory, "part-r-00000"), "UTF-8")) {
+            for (Map.Entry<Long, long[]> entry : counts.entrySet()) {
+                out.println(Decks.toHex(entry.getKey(), size) + ";" + entry.getValue()[0] + ";" + entry.getValue()[1]);
+            }
+        }
+        return directory;
+    }
+
+    /** Builds the node index of a nodes directory into a local temporary file. */
+    public static File nodeIndex(File nodesDirectory) throws IOException {
+        File index = File.createTempFile("clash-nodes-", ".idx");
+        NodeIndex.build(new Configuration(), new Path(nodesDirectory.toURI()), new Path(index.toURI()));
+        return index;
+    }
+
+    /** "source;target;count;wins" edge lines between the two decks of each match. */
+    public static List<String> edgeLines(MatchRecord[] matches, int size) {
+        List<String> lines = new ArrayList<>(matches.length);
+        long[] archetypes1 = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+        long[] archetypes2 = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+        for (MatchRecord match : matches) {
+            ArchetypeEnumerator.enumerate(ArchetypeEnumerator.sortDeckCards(match.getDeck(0)), size, archetypes1);
+            ArchetypeEnumerator.enumerate(ArchetypeEnumerator.sortDeckCards(match.getDeck(1)), size, archetypes2);
+            lines.add(Decks.toHex(archetypes1[0], size) + ";" + Decks.toHex(archetypes2[0], size)
+                + ";1;" + (match.getWinner() == 0 ? 1 : 0) + ";" + (match.getWinner() < 0 ? 1 : 0));
+        }
+        return lines;
+    }
+
+
+    private static int[] cardPool(Random random) {
+        int[] all = new int[110];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        shuffle(all, random);
+        int[] cards = new int[CARD_POOL];
+        System.arraycopy(all, 0, cards, 0, CARD_POOL);
+        return cards;
+    }
+
+    private static int[] randomDeck(Random random, int[] cards) {
+        int[] pool = cards.clone();
+        shuffle(pool, random);
+        int[] deck = new int[8];
+        System.arraycopy(pool, 0, deck, 0, 8);
+        return deck;
+    }
+
+    private static String deck(Random random, int[] cards, int[][] metaDecks) {
+        int[] deck;
+        if (random.nextInt(10) < 6) {
+            deck = metaDecks[random.nextInt(META_DECKS)].clone();
+            if (random.nextBoolean()) {
+                int card;
+                do {
+                    card = cards[random.nextInt(cards.length)];
+                } while (contains(deck, card));
+                deck[random.nextInt(8)] = card;
+            }
+        } else {
+            deck = randomDeck(random, cards);
+        }
+        shuffle(deck, random);
+
+        StringBuilder hex = new StringBuilder(16);
+        for (int card : deck) {
+            hex.append(String.format("%02x", card));
+        }
+        return hex.toString();
+    }
+
+    private static String player(int player, String deck, Random random) {
+        return "{\"utag\":\"#P" + String.format("%04d", player) + "\",\"ctag\":\"#C" + random.nextInt(50)
+            + "\",\"trophies\":" + (9000 + random.nextInt(2000)) + ",\"exp\":" + (40 + random.nextInt(30))
+            + ",\"league\":7,\"bestleague\":10,\"deck\":\"" + deck + "\",\"evo\":\"" + deck.substring(0, 4)
+            + "\",\"tower\":\"6e\",\"strength\":15.25,\"crown\":" + random.nextInt(4)
+            + ",\"elixir\":" + (0.5 + random.nextInt(50) / 10.0) + ",\"touch\":1,\"score\":100}";
+    }
+
+    private static boolean contains(int[] deck, int card) {
+        for (int c : deck) {
+            if (c == card) return true;
+        }
+        return false;
+    }
+
+    private static void shuffle(int[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package clash;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of sorted deck -> archetypes (as filled by ArchetypeEnumerator.enumerate),
+ * with CLOCK eviction. Keys live in a primitive open-addressing table, and the arrays of
+ * evicted entries are reused, so a lookup never allocates once the cache is full.
+ *
+ * The array returned by the previous lookup is never evicted by the next one, so the
+ * archetypes of both players of a match can be held at the same time.
+ */
+public class ArchetypeCache {
+
+    private final int minSize;
+    private final int capacity;
+
+    // entries
+    private final long[] decks;
+    private final long[][] archetypes;
+    private final boolean[] referenced;
+    private int size;
+    private int hand;
+    private int lastReturned = -1;
+
+    // open-addressing table: deck -> entry index, -1 when empty
+    private final int[] table;
+    private final int tableMask;
+
+    private long hits;
+    private long misses;
+
+    public ArchetypeCache(int capacity, int minSize) {
+        this.capacity = Math.max(2, capacity);
+        this.minSize = minSize;
+        decks = new long[this.capacity];
+        archetypes = new long[this.capacity][];
+        referenced = new boolean[this.capacity];
+
+        int tableSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+        table = new int[tableSize];
+        Arrays.fill(table, -1);
+        tableMask = tableSize - 1;
+    }
+
+    /** Archetypes of a sorted packed deck, enumerated on a miss. The array must not be modified. */
+    public long[] get(long sortedDeck) {
+        int slot = slotOf(sortedDeck);
+        while (table[slot] >= 0) {
+            int entry = table[slot];
+            if (decks[entry] == sortedDeck) {
+                hits++;
+                referenced[entry] = true;
+                lastReturned = entry;
+                return archetypes[entry];
+            }
+            slot = (slot + 1) & tableMask;
+        }
+
+        misses++;
+        int entry = size < capacity ? size++ : evict();
+        if (archetypes[entry] == null) {
+            archetypes[entry] = new long[ArchetypeEnumerator.countFrom(minSize)];
+        }
+        ArchetypeEnumerator.enumerate(sortedDeck, minSize, archetypes[entry]);
+        decks[entry] = sortedDeck;
+        referenced[entry] = false;
+        table[slotAfterEviction(sortedDeck)] = entry;
+        lastReturned = entry;
+        return archetypes[entry];
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    private int evict() {
+        while (true) {
+            int entry = hand;
+            hand = (hand + 1) % capacity;
+            if (entry == lastReturned) continue;
+            if (referenced[entry]) {
+                referenced[entry] = false; // second chance
+                continue;
+            }
+            removeFromTable(decks[entry]);
+            return entry;
+        }
+    }
+
+    private int slotAfterEviction(long deck) {
+        int slot = slotOf(deck);
+        while (table[slot] >= 0) {
+            slot = (slot + 1) & tableMask;
+        }
+        return slot;
+    }
+
+    /** Linear-probing deletion with backward shift, so no tombstones are needed. */
+    private void removeFromTable(long deck) {
+        int slot = slotOf(deck);
+        while (decks[table[slot]] != deck) {
+            slot = (slot + 1) & tableMask;
+        }
+        int hole = slot;
+        int next = (hole + 1) & tableMask;
+        while (table[next] >= 0) {
+            int home = slotOf(decks[table[next]]);
+            // move the entry back if its home slot is not in (hole, next]
+            if (((next - home) & tableMask) >= ((next - hole) & tableMask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & tableMask;
+        }
+        table[hole] = -1;
+    }
+
+    private int slotOf(long deck) {
+        long h = deck * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & tableMask;
+    }
+}
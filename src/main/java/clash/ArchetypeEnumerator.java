@@ -0,0 +1,102 @@
+package clash;
+
+/**
+ * Allocation-free enumeration of the sub-decks (archetypes) of a packed 8-card deck.
+ *
+ * The masks of each size are precomputed once (same order as the former loop over the
+ * 256 masks), and all sub-decks from minSize to 8 are written into a caller-provided
+ * long[]: size minSize first, then minSize + 1, and so on.
+ */
+public final class ArchetypeEnumerator {
+
+    public static final int DECK_SIZE = 8;
+
+    /** Masks with exactly k bits set, for k = 0..8. */
+    private static final int[][] MASKS_BY_SIZE = new int[DECK_SIZE + 1][];
+
+    /** Largest number of archetypes of one deck (minSize = 1): 2^8 - 1. */
+    public static final int MAX_ARCHETYPES = (1 << DECK_SIZE) - 1;
+
+    static {
+        int[] counts = new int[DECK_SIZE + 1];
+        for (int mask = 0; mask < (1 << DECK_SIZE); mask++) {
+            counts[Integer.bitCount(mask)]++;
+        }
+        for (int size = 0; size <= DECK_SIZE; size++) {
+            MASKS_BY_SIZE[size] = new int[counts[size]];
+            counts[size] = 0;
+        }
+        for (int mask = 0; mask < (1 << DECK_SIZE); mask++) {
+            int size = Integer.bitCount(mask);
+            MASKS_BY_SIZE[size][counts[size]++] = mask;
+        }
+    }
+
+    private ArchetypeEnumerator() {}
+
+    /** Number of archetypes of the given size in a deck: C(8, size). */
+    public static int countOfSize(int size) {
+        return MASKS_BY_SIZE[size].length;
+    }
+
+    /** Position in the enumerate() output of the first archetype of the given size. */
+    public static int offsetOfSize(int minSize, int size) {
+        int offset = 0;
+        for (int s = minSize; s < size; s++) {
+            offset += MASKS_BY_SIZE[s].length;
+        }
+        return offset;
+    }
+
+    /** Number of archetypes written by enumerate() for a minimum size. */
+    public static int countFrom(int minSize) {
+        return offsetOfSize(minSize, DECK_SIZE + 1);
+    }
+
+    /** Sorts the 8 card bytes of a packed deck in ascending order (insertion sort in the long). */
+    public static long sortDeckCards(long deck) {
+        long sorted = deck;
+        for (int i = 1; i < DECK_SIZE; i++) {
+            int card = Decks.card(sorted, i);
+            int j = i;
+            while (j > 0 && Decks.card(sorted, j - 1) > card) {
+                sorted = withCard(sorted, j, Decks.card(sorted, j - 1));
+                j--;
+            }
+            sorted = withCard(sorted, j, card);
+        }
+        return sorted;
+    }
+
+    /**
+     * Writes every archetype of size minSize..8 of a sorted deck into out.
+     * @return number of archetypes written, countFrom(minSize)
+     */
+    public static int enumerate(long sortedDeck, int minSize, long[] out) {
+        int n = 0;
+        for (int size = minSize; size <= DECK_SIZE; size++) {
+            for (int mask : MASKS_BY_SIZE[size]) {
+                out[n++] = subDeck(sortedDeck, mask);
+            }
+        }
+        return n;
+    }
+
+    /** Cards selected by mask (bit j = card j), left-aligned and kept in deck order. */
+    static long subDeck(long sortedDeck, int mask) {
+        long archetype = 0;
+        int shift = 56;
+        while (mask != 0) {
+            int j = Integer.numberOfTrailingZeros(mask);
+            archetype |= (long) Decks.card(sortedDeck, j) << shift;
+            shift -= 8;
+            mask &= mask - 1;
+        }
+        return archetype;
+    }
+
+    private static long withCard(long deck, int index, int card) {
+        int shift = 56 - 8 * index;
+        return (deck & ~(0xFFL << shift)) | ((long) card << shift);
+    }
+}
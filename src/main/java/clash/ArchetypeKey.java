@@ -0,0 +1,293 @@
+package clash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Packed node / edge key of the graph job.
+ *
+ * Layout: one tag byte (kind in the high nibble, archetype size in the low nibble)
+ * followed by one (node) or two (edge, sketch cell) 64-bit words. Each word holds the sorted cards
+ * of an archetype, one byte per card, left-aligned. As the size is in the tag byte, the
+ * byte order of the serialized key groups the keys by kind, then by size; only within one
+ * kind and size is it the order of the former "N..."/"E...;..." hex strings (the text
+ * order put "N0a0e" before "N0a0e15", the tag puts every size-2 node first).
+ *
+ * In approximate mode (-approx) the Count-Min cells of the edges are keys too: the row in
+ * the high half of the first word and the column in the low half, the replica (the reducer
+ * of the size it goes to) in the second word, so that the combiner and the reducers merge
+ * the sketches of the mappers by summing cells like any other count. They sort after the
+ * nodes and before the edges.
+ *
+ * The graph job partitions its keys by size (SizePartitioner), into nodes/size=k and
+ * edges/size=k.
+ */
+public class ArchetypeKey implements WritableComparable<ArchetypeKey> {
+
+    public static final int NODE = 0x00;
+    public static final int SKETCH = 0x10;
+    public static final int EDGE = 0x20;
+
+    private byte tag;
+    private long first;
+    private long second;
+
+    public ArchetypeKey() {}
+
+    public ArchetypeKey setNode(int size, long archetype) {
+        this.tag = (byte) (NODE | size);
+        this.first = archetype;
+        this.second = 0L;
+        return this;
+    }
+
+    public ArchetypeKey setEdge(int size, long archetype1, long archetype2) {
+        this.tag = (byte) (EDGE | size);
+        this.first = archetype1;
+        this.second = archetype2;
+        return this;
+    }
+
+    public ArchetypeKey setSketchCell(int size, int row, int column, int replica) {
+        this.tag = (byte) (SKETCH | size);
+        this.first = ((long) row << 32) | column;
+        this.second = replica;
+        return this;
+    }
+
+    ArchetypeKey set(byte tag, long first, long second) {
+        this.tag = tag;
+        this.first = first;
+        this.second = second;
+        return this;
+    }
+
+    public boolean isNode() {
+        return (tag & 0xF0) == NODE;
+    }
+
+    public boolean isEdge() {
+        return (tag & 0xF0) == EDGE;
+    }
+
+    public boolean isSketchCell() {
+        return (tag & 0xF0) == SKETCH;
+    }
+
+    public int getRow() {
+        return (int) (first >>> 32);
+    }
+
+    public int getColumn() {
+        return (int) first;
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    public int getSize() {
+        return tag & 0x0F;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getSecond() {
+        return second;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(tag);
+        out.writeLong(first);
+        if (!isNode()) { // second archetype of an edge, replica of a sketch cell
+            out.writeLong(second);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        tag = in.readByte();
+        first = in.readLong();
+        second = isNode() ? 0L : in.readLong();
+    }
+
+    @Override
+    public int compareTo(ArchetypeKey other) {
+        int cmp = Integer.compare(tag & 0xFF, other.tag & 0xFF);
+        if (cmp != 0) return cmp;
+        cmp = Long.compareUnsigned(first, other.first);
+        if (cmp != 0) return cmp;
+        return Long.compareUnsigned(second, other.second);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ArchetypeKey)) return false;
+        ArchetypeKey other = (ArchetypeKey) o;
+        return tag == other.tag && first == other.first && second == other.second;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = first * 0x9E3779B97F4A7C15L + second;
+        h = (h ^ (h >>> 29)) * 0xBF58476D1CE4E5B9L + tag;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** Same text as the former keys without their prefix: "archetype" or "archetype1;archetype2". */
+    @Override
+    public String toString() {
+        int size = getSize();
+        if (isNode()) {
+            return Decks.toHex(first, size);
+        }
+        if (isSketchCell()) {
+            return "sketch:" + size + ":" + getRow() + ":" + getColumn();
+        }
+        return Decks.toHex(first, size) + ";" + Decks.toHex(second, size);
+    }
+
+
+    /** Compares serialized keys byte by byte, without deserializing them. */
+    public static class Comparator extends WritableComparator {
+
+        public Comparator() {
+            super(ArchetypeKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareBytes(b1, s1, l1, b2, s2, l2);
+        }
+    }
+
+    /**
+     * Gives each archetype size its own reducers, so that a reducer writes the nodes/size=k and
+     * edges/size=k files of few sizes (one, with at least as many reducers as sizes). Sizes get
+     * reducers in proportion to the keys a match emits for them, C(8,k) nodes and C(8,k)^2
+     * edges; with fewer reducers than sizes, the heaviest sizes are spread first. Keys are
+     * hashed within the reducers of their size.
+     *
+     * In approximate mode (-approx) every reducer of a size needs the merged sketch of the
+     * size: the mappers write one replica of each cell per reducer of the size (see
+     * partitionsOfSize), and replica r goes to the r-th reducer of the size. The edges are
+     * hashed as usual.
+     */
+    public static class SizePartitioner<V> extends Partitioner<ArchetypeKey, V> implements Configurable {
+
+        private Configuration conf;
+        private int minSize;
+        private int numPartitions;
+        private final int[] firstPartition = new int[9];
+        private final int[] partitionCount = new int[9];
+
+        @Override
+        public void setConf(Configuration conf) {
+            this.conf = conf;
+            minSize = conf.getInt("clash.archetype.min.size", 8);
+        }
+
+        @Override
+        public Configuration getConf() {
+            return conf;
+        }
+
+        @Override
+        public int getPartition(ArchetypeKey key, V value, int numPartitions) {
+            if (numPartitions != this.numPartitions) {
+                assign(numPartitions);
+            }
+            int size = key.getSize();
+            int hash = key.hashCode() & Integer.MAX_VALUE;
+            if (size < minSize || size > 8) {
+                return hash % numPartitions; // outputs of another -minSize, in an append
+            }
+            if (partitionCount[size] == 1) {
+                return firstPartition[size];
+            }
+            if (key.isSketchCell()) {
+                return firstPartition[size] + (int) key.getSecond() % partitionCount[size];
+            }
+            return firstPartition[size] + hash % partitionCount[size];
+        }
+
+        /** Reducers of an archetype size. */
+        public int partitionsOfSize(int size, int numPartitions) {
+            if (numPartitions != this.numPartitions) {
+                assign(numPartitions);
+            }
+            return partitionCount[size];
+        }
+
+        private void assign(int numPartitions) {
+            this.numPartitions = numPartitions;
+            long[] weights = new long[9];
+            long totalWeight = 0;
+            for (int size = minSize; size <= 8; size++) {
+                long archetypes = ArchetypeEnumerator.countOfSize(size);
+                weights[size] = archetypes + archetypes * archetypes;
+                totalWeight += weights[size];
+            }
+
+            int sizes = 9 - minSize;
+            if (numPartitions < sizes) {
+                long[] loads = new long[numPartitions];
+                Integer[] heaviestFirst = new Integer[sizes];
+                for (int i = 0; i < sizes; i++) {
+                    heaviestFirst[i] = minSize + i;
+                }
+                Arrays.sort(heaviestFirst, (a, b) -> Long.compare(weights[b], weights[a]));
+                for (int size : heaviestFirst) {
+                    int lightest = 0;
+                    for (int p = 1; p < numPartitions; p++) {
+                        if (loads[p] < loads[lightest]) lightest = p;
+                    }
+                    loads[lightest] += weights[size];
+                    firstPartition[size] = lightest;
+                    partitionCount[size] = 1;
+                }
+                return;
+            }
+
+            // one reducer each, then the others in proportion to the weights (largest remainders)
+            int spare = numPartitions - sizes;
+            int assigned = 0;
+            double[] remainders = new double[9];
+            for (int size = minSize; size <= 8; size++) {
+                double share = (double) spare * weights[size] / totalWeight;
+                partitionCount[size] = 1 + (int) share;
+                remainders[size] = share - (int) share;
+                assigned += partitionCount[size];
+            }
+            while (assigned < numPartitions) {
+                int best = minSize;
+                for (int size = minSize + 1; size <= 8; size++) {
+                    if (remainders[size] > remainders[best]) best = size;
+                }
+                partitionCount[best]++;
+                remainders[best] = -1;
+                assigned++;
+            }
+            int next = 0;
+            for (int size = minSize; size <= 8; size++) {
+                firstPartition[size] = next;
+                next += partitionCount[size];
+            }
+        }
+    }
+
+    static {
+        WritableComparator.define(ArchetypeKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,210 @@
+package clash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+
+/**
+ * Partition boundaries of the graph job for TotalOrderPartitioner, sampled from its map
+ * output keys: the matches read by clash.sampler.probes probes spread at random over all
+ * the bytes of clean/ are expanded into their node and edge keys (as NodesEdgesMapper does),
+ * a uniform reservoir of those keys is kept, and the boundaries are its quantiles. Each
+ * reducer then gets about the same number of map output records, and the parts of nodes/
+ * and edges/ are in total order.
+ *
+ * A probe is the rest of a split from a random offset: the SequenceFile reader syncs to the
+ * next sync marker, and the probe takes the few matches that follow. Like the RandomSampler
+ * of InputSampler, the sample covers whole splits, so time-ordered input (the start of a
+ * split holding the oldest matches) does not bias it, but only the probed blocks are read.
+ * InputSampler itself cannot be used on clean/: it samples input keys (NullWritable here),
+ * not the archetype keys that the mapper emits.
+ *
+ * Hot keys are not split across reducers: the skew profile of the graph job (KeyProfiler,
+ * minSize 8, 3 reducers) puts the heaviest key at about 0.03% of the values, with the
+ * busiest reducer at 1.00x the mean when hashing. No single key can unbalance a reducer, so
+ * splitting one would only add a second aggregation pass.
+ */
+public class ArchetypeSampler {
+
+    private final int minArchetypeSize;
+    private final boolean emitNodes;
+    private final boolean emitEdges;
+    private final byte[] tags;
+    private final long[] firsts;
+    private final long[] seconds;
+    private final Random random = new Random(42);
+    private long seen;
+    private int size;
+
+    private final long[] player1Archetypes = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+    private final long[] player2Archetypes = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+    private final ArchetypeKey key = new ArchetypeKey();
+
+    ArchetypeSampler(Configuration conf) {
+        minArchetypeSize = conf.getInt("clash.archetype.min.size", 8);
+        emitNodes = conf.getBoolean("clash.graph.emit.nodes", true);
+        emitEdges = conf.getBoolean("clash.graph.emit.edges", true);
+        int maxKeys = conf.getInt("clash.sampler.keys", 100000);
+        tags = new byte[maxKeys];
+        firsts = new long[maxKeys];
+        seconds = new long[maxKeys];
+    }
+
+    /**
+     * Samples the clean matches read by the job and writes the boundaries of its reducers to
+     * partitionFile. The job may end up with fewer reducers when the sample has too few
+     * distinct keys.
+     */
+    public static void writePartitionFile(Job job, Path partitionFile) throws IOException, InterruptedException {
+        Configuration conf = job.getConfiguration();
+        ArchetypeSampler sampler = new ArchetypeSampler(conf);
+        int maxMatches = conf.getInt("clash.sampler.matches", 10000);
+        int probes = conf.getInt("clash.sampler.probes", 200);
+        int matchesPerProbe = Math.max(1, maxMatches / probes);
+
+        SequenceFileInputFormat<NullWritable, MatchRecord> inputFormat = new SequenceFileInputFormat<>();
+        List<InputSplit> splits = inputFormat.getSplits(job);
+        long[] splitEnds = new long[splits.size()]; // cumulative lengths
+        long totalBytes = 0;
+        for (int i = 0; i < splits.size(); i++) {
+            totalBytes += splits.get(i).getLength();
+            splitEnds[i] = totalBytes;
+        }
+        if (totalBytes == 0) {
+            sampler.writeBoundaries(conf, partitionFile, job);
+            return;
+        }
+
+        // sorted offsets, so the probes of a file are read in order
+        Random random = new Random(conf.getLong("clash.sampler.seed", 42));
+        long[] offsets = new long[probes];
+        for (int i = 0; i < probes; i++) {
+            offsets[i] = (long) (random.nextDouble() * totalBytes);
+        }
+        Arrays.sort(offsets);
+
+        for (long offset : offsets) {
+            int index = Arrays.binarySearch(splitEnds, offset);
+            index = index >= 0 ? index + 1 : -index - 1;
+            InputSplit split = splits.get(index);
+            if (split instanceof FileSplit) {
+                FileSplit fileSplit = (FileSplit) split;
+                long skipped = offset - (splitEnds[index] - fileSplit.getLength());
+                split = new FileSplit(fileSplit.getPath(), fileSplit.getStart() + skipped, fileSplit.getLength() - skipped, null);
+            }
+            TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+            RecordReader<NullWritable, MatchRecord> reader = inputFormat.createRecordReader(split, context);
+            reader.initialize(split, context);
+            try {
+                for (int n = 0; n < matchesPerProbe && reader.nextKeyValue(); n++) {
+                    sampler.addMatch(reader.getCurrentValue());
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        sampler.writeBoundaries(conf, partitionFile, job);
+    }
+
+    void addMatch(MatchRecord match) {
+        long[] archetypes1 = enumerate(match.getDeck(0), player1Archetypes);
+        long[] archetypes2 = enumerate(match.getDeck(1), player2Archetypes);
+
+        for (int archetypeSize = minArchetypeSize; archetypeSize <= 8; archetypeSize++) {
+            int from = ArchetypeEnumerator.offsetOfSize(minArchetypeSize, archetypeSize);
+            int to = from + ArchetypeEnumerator.countOfSize(archetypeSize);
+            if (emitNodes) {
+                for (int i = from; i < to; i++) {
+                    add(key.setNode(archetypeSize, archetypes1[i]));
+                    add(key.setNode(archetypeSize, archetypes2[i]));
+                }
+            }
+            if (emitEdges) {
+                for (int i = from; i < to; i++) {
+                    for (int j = from; j < to; j++) {
+                        long a = archetypes1[i];
+                        long b = archetypes2[j];
+                        add(Long.compareUnsigned(a, b) < 0 ? key.setEdge(archetypeSize, a, b) : key.setEdge(archetypeSize, b, a));
+                    }
+                }
+            }
+        }
+    }
+
+    private long[] enumerate(long deck, long[] archetypes) {
+        ArchetypeEnumerator.enumerate(ArchetypeEnumerator.sortDeckCards(deck), minArchetypeSize, archetypes);
+        return archetypes;
+    }
+
+    // reservoir sampling (algorithm R) over every generated key
+    private void add(ArchetypeKey archetypeKey) {
+        seen++;
+        int slot;
+        if (size < tags.length) {
+            slot = size++;
+        } else {
+            long r = (long) (random.nextDouble() * seen);
+            if (r >= tags.length) return;
+            slot = (int) r;
+        }
+        tags[slot] = archetypeKey.getTag();
+        firsts[slot] = archetypeKey.getFirst();
+        seconds[slot] = archetypeKey.getSecond();
+    }
+
+    private void writeBoundaries(Configuration conf, Path partitionFile, Job job) throws IOException {
+        ArchetypeKey[] samples = new ArchetypeKey[size];
+        for (int i = 0; i < size; i++) {
+            samples[i] = new ArchetypeKey();
+            samples[i].set(tags[i], firsts[i], seconds[i]);
+        }
+        Arrays.sort(samples);
+
+        // quantiles of the sample, skipping repeated keys: boundaries must be strictly increasing
+        int partitions = job.getNumReduceTasks();
+        List<ArchetypeKey> boundaries = new ArrayList<>();
+        float stepSize = samples.length / (float) partitions;
+        int last = -1;
+        for (int i = 1; i < partitions; i++) {
+            int k = Math.round(stepSize * i);
+            while (k < samples.length && last >= 0 && samples[last].compareTo(samples[k]) >= 0) {
+                k++;
+            }
+            if (k >= samples.length) break;
+            boundaries.add(samples[k]);
+            last = k;
+        }
+        job.setNumReduceTasks(boundaries.size() + 1);
+
+        FileSystem fs = partitionFile.getFileSystem(conf);
+        fs.delete(partitionFile, false);
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                SequenceFile.Writer.file(partitionFile),
+                SequenceFile.Writer.keyClass(ArchetypeKey.class),
+                SequenceFile.Writer.valueClass(NullWritable.class))) {
+            for (ArchetypeKey boundary : boundaries) {
+                writer.append(boundary, NullWritable.get());
+            }
+        }
+        TotalOrderPartitioner.setPartitionFile(conf, partitionFile);
+        job.setPartitionerClass(TotalOrderPartitioner.class);
+    }
+}
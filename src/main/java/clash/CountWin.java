@@ -0,0 +1,83 @@
+package clash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * (count, wins, draws) value of the graph job, varint-encoded: wins and a has-draws bit
+ * share one varint, and draws only follow when there are some.
+ * A single match is (1, 1) or (1, 0): two bytes on the wire.
+ */
+public class CountWin implements Writable {
+
+    private long count;
+    private long wins;
+    private long draws;
+
+    public CountWin() {}
+
+    public CountWin(long count, long wins) {
+        set(count, wins);
+    }
+
+    public CountWin(long count, long wins, long draws) {
+        set(count, wins, draws);
+    }
+
+    public CountWin set(long count, long wins) {
+        return set(count, wins, 0);
+    }
+
+    public CountWin set(long count, long wins, long draws) {
+        this.count = count;
+        this.wins = wins;
+        this.draws = draws;
+        return this;
+    }
+
+    public void add(CountWin other) {
+        this.count += other.count;
+        this.wins += other.wins;
+        this.draws += other.draws;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getWins() {
+        return wins;
+    }
+
+    /** Matches won by neither side (only counted for edges). */
+    public long getDraws() {
+        return draws;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, count);
+        WritableUtils.writeVLong(out, wins << 1 | (draws != 0 ? 1 : 0));
+        if (draws != 0) {
+            WritableUtils.writeVLong(out, draws);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        count = WritableUtils.readVLong(in);
+        long winsAndFlag = WritableUtils.readVLong(in);
+        wins = winsAndFlag >>> 1;
+        draws = (winsAndFlag & 1) != 0 ? WritableUtils.readVLong(in) : 0;
+    }
+
+    /** "count;wins": the columns of a node line, an edge line adds the draws. */
+    @Override
+    public String toString() {
+        return count + ";" + wins;
+    }
+}
@@ -0,0 +1,88 @@
+package clash;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Open-addressing (linear probing) table of ArchetypeKey -> (count, wins, draws), stored in
+ * primitive arrays, used for in-mapper combining. The capacity is derived from a memory
+ * budget; when the table gets too full the caller flushes it to the map output.
+ */
+public class CountWinTable {
+
+    private static final int BYTES_PER_SLOT = 1 + 8 + 8 + 8 + 8 + 8;
+    private static final double MAX_LOAD = 0.7;
+
+    private final byte[] tags; // 0 = empty slot (archetype sizes start at 1)
+    private final long[] firsts;
+    private final long[] seconds;
+    private final long[] counts;
+    private final long[] wins;
+    private final long[] draws;
+    private final int mask;
+    private final int maxEntries;
+    private int size;
+
+    private final ArchetypeKey outKey = new ArchetypeKey();
+    private final CountWin outValue = new CountWin();
+
+    public CountWinTable(long memoryBudgetBytes) {
+        long slots = Math.max(1024, memoryBudgetBytes / BYTES_PER_SLOT);
+        int capacity = Integer.highestOneBit((int) Math.min(slots, 1 << 30));
+        tags = new byte[capacity];
+        firsts = new long[capacity];
+        seconds = new long[capacity];
+        counts = new long[capacity];
+        wins = new long[capacity];
+        draws = new long[capacity];
+        mask = capacity - 1;
+        maxEntries = (int) (capacity * MAX_LOAD);
+    }
+
+    /** Adds to the entry of key. Returns true once the table should be flushed. */
+    public boolean add(ArchetypeKey key, long count, long win, long draw) {
+        byte tag = key.getTag();
+        long first = key.getFirst();
+        long second = key.getSecond();
+
+        int slot = key.hashCode() & mask;
+        while (tags[slot] != 0) {
+            if (tags[slot] == tag && firsts[slot] == first && seconds[slot] == second) {
+                counts[slot] += count;
+                wins[slot] += win;
+                draws[slot] += draw;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        tags[slot] = tag;
+        firsts[slot] = first;
+        seconds[slot] = second;
+        counts[slot] = count;
+        wins[slot] = win;
+        draws[slot] = draw;
+        size++;
+        return size >= maxEntries;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Writes every entry to the context and empties the table. */
+    public void flush(TaskInputOutputContext<?, ?, ArchetypeKey, CountWin> context)
+            throws IOException, InterruptedException {
+        if (size == 0) return;
+        for (int slot = 0; slot < tags.length; slot++) {
+            if (tags[slot] == 0) continue;
+            outKey.set(tags[slot], firsts[slot], seconds[slot]);
+            outValue.set(counts[slot], wins[slot], draws[slot]);
+            context.write(outKey, outValue);
+        }
+        Arrays.fill(tags, (byte) 0);
+        size = 0;
+    }
+}
@@ -1,20 +1,20 @@
 package clash;
 
+import java.io.File;
 import java.io.IOException;
-import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.htrace.fasterxml.jackson.databind.JsonNode;
-import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+
+import clash.PhaseTimers.PhaseNanos;
 
 public class DataCleaning {
 
@@ -23,172 +23,313 @@ public class DataCleaning {
         INVALID_FIELDS,
         INVALID_DECK_SIZE,      // Pas 8 cartes
         INVALID_DECK_DUPLICATE, // Cartes identiques dans le deck
+        // Rejets propres au MatchRecord : l'ancien parseur gardait ces matchs, des compteurs
+        // separes evitent de les confondre avec les controles historiques ci-dessus.
+        INVALID_DECK_CARDS,     // Codes de cartes non hexadecimaux
+        INVALID_DATE,           // Date non ISO-8601
+    }
+
+    public enum DedupStats {
+        TIME_WINDOW_DUPLICATES, // mode "time" : matchs a moins de 3 secondes du precedent
+        EXACT_DUPLICATES,       // mode "exact" : empreinte deja vue
+        FINGERPRINT_SPILLS,
+        FINGERPRINT_COLLISIONS, // empreintes egales sur 64 bits seulement
+        HISTORY_MATCHES,        // mode append : matchs du lot precedent relus
+    }
+
+    public enum SampleStats {
+        SKIPPED_MATCHES, // -sample : paire de joueurs hors echantillon
     }
 
     public static class CleaningMapper
-        extends Mapper<LongWritable, Text, Text, Text>{
+        extends Mapper<LongWritable, Text, DedupKey, MatchRecord>{
+
+        private static final byte[] SEPARATOR = { '|' };
+
+        private final MatchExtractor extractor = new MatchExtractor();
+        private final DedupKey canonicalKey = new DedupKey();
+        private final MatchRecord record = new MatchRecord();
+        private boolean keepTags;
+        private PhaseTimers timers;
+        private PairSampler sampler;
 
-        private final ObjectMapper objectMapper = new ObjectMapper();
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            keepTags = context.getConfiguration().getBoolean("clash.record.tags", false);
+            timers = new PhaseTimers(context.getConfiguration());
+            sampler = new PairSampler(context.getConfiguration());
+        }
 
 
         @Override
         protected void map(
             LongWritable key, Text value, Context context
         ) throws IOException, InterruptedException {
-            
-            String jsonLine = value.toString();
-            JsonNode matchNode = parseJson(jsonLine);
 
-            if (matchNode == null) {
-                context.getCounter(DataQuality.INVALID_JSON).increment(1);
-                return;
+            long time = timers.start();
+            DataQuality rejection = extractor.scan(value.getBytes(), value.getLength());
+            time = timers.stop(PhaseNanos.PARSE, time);
+            if (rejection == null) {
+                rejection = extractor.validate();
+                time = timers.stop(PhaseNanos.VALIDATE, time);
             }
-            if (!hasValidFields(matchNode)) {
-                context.getCounter(DataQuality.INVALID_FIELDS).increment(1);
+            if (rejection != null) {
+                context.getCounter(rejection).increment(1);
                 return;
             }
-            if (!isValidDeckSize(matchNode)) {
-                context.getCounter(DataQuality.INVALID_DECK_SIZE).increment(1);
+            setCanonicalKey(extractor, canonicalKey);
+            if (!sampler.keep(canonicalKey.getPlayers())) {
+                context.getCounter(SampleStats.SKIPPED_MATCHES).increment(1);
                 return;
             }
-            // if (hasDuplicateCards(matchNode)) {
-            //     context.getCounter(DataQuality.INVALID_DECK_DUPLICATE).increment(1);
-            //     return;
-            // }
-
-            Text canonicalKey = createCanonicalKey(matchNode);
-            context.write(canonicalKey, value);
+            extractor.toRecord(record);
+            if (keepTags) {
+                record.setTags(extractor.getUtag(0), extractor.getUtag(1));
+            }
+            context.write(canonicalKey, record);
+            timers.stop(PhaseNanos.EMIT, time);
         }
 
-        
-        private JsonNode parseJson(String content) {
-            if (content == null || content.trim().isEmpty()) {
-                return null;
-            }
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            timers.report(context);
+        }
 
-            try {
-                return objectMapper.readTree(content);
-            } catch (Exception e) {
-                return null;
-            }
+        static void setCanonicalKey(MatchExtractor match, DedupKey canonicalKey) {
+            setCanonicalKey(match.getUtag(0), match.getUtag(1), match.getRound(), match.getTimestamp(), canonicalKey);
         }
 
-        private boolean hasValidFields(JsonNode node) {
-            if (
-                !node.has("date") || 
-                !node.has("round") || 
-                !node.has("winner") ||
-                !node.has("players")
-            ) {
-                return false;
-            }
+        static void setCanonicalKey(Text player1Tag, Text player2Tag, int round, long timestamp, DedupKey canonicalKey) {
+            Text firstTag = (player1Tag.compareTo(player2Tag) < 0) ? player1Tag : player2Tag;
+            Text secondTag = (player1Tag.compareTo(player2Tag) < 0) ? player2Tag : player1Tag;
 
-            if (
-                !node.get("players").isArray() || 
-                node.get("players").size() != 2
-            ) {
-                return false;
-            }
+            Text players = canonicalKey.getPlayers();
+            players.clear();
+            players.append(firstTag.getBytes(), 0, firstTag.getLength());
+            players.append(SEPARATOR, 0, 1);
+            players.append(secondTag.getBytes(), 0, secondTag.getLength());
+
+            canonicalKey.setRound(round);
+            canonicalKey.setTimestamp(timestamp);
+        }
+    }
 
-            JsonNode p1 = node.get("players").get(0);
-            JsonNode p2 = node.get("players").get(1);
 
-            if (
-                !p1.has("utag") || !p1.has("deck") || 
-                !p2.has("utag") || !p2.has("deck")
-            ) {
-                return false;
-            }
+    /**
+     * Append runs: reads the cleaned matches of the previous batch back into the dedup shuffle,
+     * flagged as history, so that the new batch is deduplicated across the batch boundary.
+     */
+    public static class HistoryMapper
+        extends Mapper<NullWritable, MatchRecord, DedupKey, MatchRecord> {
 
-            return true;
-        }
+        private final DedupKey canonicalKey = new DedupKey();
 
-        private boolean isValidDeckSize(JsonNode node) {
-            Integer player1DeckSize = node.get("players").get(0).get("deck").asText().length();
-            Integer player2DeckSize = node.get("players").get(1).get("deck").asText().length();
-            return  player1DeckSize == 16 && player2DeckSize == 16;
-        }
+        @Override
+        protected void map(
+            NullWritable key, MatchRecord match, Context context
+        ) throws IOException, InterruptedException {
 
-        // private boolean hasDuplicateCards(JsonNode node) {
-        //     for (int i = 0; i < 2; i++) {
-        //         String deckStr = node.get("players").get(i).get("deck").asText();
-        //         Set<String> cards = new HashSet<>();
-        //         for (int j = 0; j < 16; j += 2) {
-        //             String card = deckStr.substring(j, j + 2);
-        //             if (!cards.add(card)) {
-        //                 return true;
-        //             }
-        //         }
-        //     }
-        //     return false;
-        // }
-
-        private Text createCanonicalKey(JsonNode node) {
-            String player1Tag = node.get("players").get(0).get("utag").asText();
-            String player2Tag = node.get("players").get(1).get("utag").asText();
-            String firstTag = (player1Tag.compareTo(player2Tag) < 0) ? player1Tag : player2Tag;
-            String secondTag = (player1Tag.compareTo(player2Tag) < 0) ? player2Tag : player1Tag;
-
-            Integer round = node.get("round").asInt();
-
-            String key = firstTag + "|" + secondTag + "|" + round;
-            return new Text(key);
+            if (!match.hasTags()) {
+                throw new IOException("Previous clean/ has no player tags: it must be written with -keepTags (or by -job=append)");
+            }
+            context.getCounter(DedupStats.HISTORY_MATCHES).increment(1);
+            CleaningMapper.setCanonicalKey(match.getUtag(0), match.getUtag(1), match.getRound(), match.getTimestamp(), canonicalKey);
+            match.setHistory(true);
+            context.write(canonicalKey, match);
         }
     }
     
 
     
+    /**
+     * Receives the matches of one (players, round) group sorted by timestamp
+     * (secondary sort on DedupKey), so duplicates are dropped in a single streaming pass.
+     *
+     * Mode "time" (default) keeps a match only if it is more than 3 seconds after the
+     * previously kept one. Mode "exact" only drops exact duplicates, recognized by a 128-bit
+     * fingerprint of the record kept in a FingerprintSet with a bounded memory footprint.
+     *
+     * In an append run (clash.dedup.append), the history matches of a group are settled first:
+     * a new match is dropped when it is within 3 seconds of a kept match, before or after it,
+     * or (mode "exact") has the fingerprint of one. History matches are never written again.
+     *
+     * In the fused pipeline the kept matches go straight to the chained graph mapper, and
+     * are only copied to the "clean" named output when clash.fused.clean.output is set.
+     */
     public static class DeduplicationReducer
-        extends Reducer<Text,Text,NullWritable,Text> {
+        extends Reducer<DedupKey,MatchRecord,NullWritable,MatchRecord> {
 
-        private final ObjectMapper objectMapper = new ObjectMapper();
         private static final long TIME_THRESHOLD_SECONDS = 3;
+        private static final long TIME_THRESHOLD_MILLIS = TIME_THRESHOLD_SECONDS * 1000;
+
+        private FingerprintSet fingerprints; // null in "time" mode
+        private final DataOutputBuffer recordBytes = new DataOutputBuffer();
+        private final long[] fingerprint = new long[2];
+        private MultipleOutputs<NullWritable, MatchRecord> cleanOutput; // null unless fused with clean/ kept
+        private boolean append;
+        private long[] keptTimes = new long[16];
+        private final List<MatchRecord> pendingMatches = new ArrayList<>();
+        private PhaseTimers timers;
+        private KeyProfiler profiler;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            timers = new PhaseTimers(context.getConfiguration());
+            profiler = new KeyProfiler(context.getConfiguration());
+            if (context.getConfiguration().getBoolean("clash.fused.clean.output", false)) {
+                cleanOutput = new MultipleOutputs<>(context);
+            }
+            append = context.getConfiguration().getBoolean("clash.dedup.append", false);
+            if (context.getConfiguration().get("clash.dedup.mode", "time").equals("exact")) {
+                long budgetBytes = context.getConfiguration().getLong("clash.dedup.fingerprint.memory.mb", 32) << 20;
+                File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+                fingerprints = new FingerprintSet(budgetBytes, spillDirectory);
+            }
+        }
         
         @Override
         public void reduce(
-            Text key, Iterable<Text> values, Context context
+            DedupKey key, Iterable<MatchRecord> values, Context context
         ) throws IOException, InterruptedException {
-            
-            List<String> uniqueMatches = collectUniqueMatches(values);
-            sortMatchesChronologically(uniqueMatches);
 
-            // ignore games with close timestamps (3 seconds)
-            Instant previousMatchTime = null;
-            for (String matchJson : uniqueMatches) {
-                Instant currentMatchTime = Instant.parse(getDateString(matchJson));
+            long time = timers.start();
+            int valueCount;
+            if (append) {
+                valueCount = reduceAppend(values, context);
+            } else if (fingerprints != null) {
+                valueCount = reduceExact(values, context);
+            } else {
+                valueCount = reduceTime(values, context);
+            }
+            profiler.add(key, valueCount);
+            timers.stop(PhaseNanos.DEDUP, time);
+        }
+
+        private int reduceTime(Iterable<MatchRecord> values, Context context) throws IOException, InterruptedException {
+            // ignore games with close timestamps (3 seconds), exact duplicates included
+            boolean first = true;
+            long previousMatchTime = 0;
+            int valueCount = 0;
+            for (MatchRecord match : values) {
+                valueCount++;
+                long currentMatchTime = match.getTimestamp();
 
                 if (
-                    previousMatchTime == null || 
-                    currentMatchTime.isAfter(previousMatchTime.plusSeconds(TIME_THRESHOLD_SECONDS))
+                    first || 
+                    currentMatchTime > previousMatchTime + TIME_THRESHOLD_MILLIS
                 ) {    
-                    context.write(NullWritable.get(), new Text(matchJson));
+                    keep(match, context);
                     previousMatchTime = currentMatchTime;
+                    first = false;
+                } else {
+                    context.getCounter(DedupStats.TIME_WINDOW_DUPLICATES).increment(1);
                 }
             }
+            return valueCount;
         }
 
-        private List<String> collectUniqueMatches(Iterable<Text> values) {
-            Set<String> uniqueSet = new HashSet<>();
-            for (Text val : values) {
-                uniqueSet.add(val.toString());
+        private int reduceExact(Iterable<MatchRecord> values, Context context) throws IOException, InterruptedException {
+            fingerprints.clear();
+            int valueCount = 0;
+            for (MatchRecord match : values) {
+                valueCount++;
+                if (addFingerprint(match)) {
+                    keep(match, context);
+                } else {
+                    context.getCounter(DedupStats.EXACT_DUPLICATES).increment(1);
+                }
             }
-            return new ArrayList<>(uniqueSet);
+            return valueCount;
         }
 
-        private String getDateString(String json) {
-            try {
-                return objectMapper.readTree(json).get("date").asText();
-            } catch (Exception e) {
-                return "";
+        private int reduceAppend(Iterable<MatchRecord> values, Context context) throws IOException, InterruptedException {
+            if (fingerprints != null) {
+                fingerprints.clear();
             }
+            int historyCount = 0;
+            int pendingCount = 0;
+            int valueCount = 0;
+            for (MatchRecord match : values) {
+                valueCount++;
+                if (!match.isHistory()) {
+                    // values are reused by the framework: copy the new matches until the history is known
+                    if (pendingCount == pendingMatches.size()) {
+                        pendingMatches.add(new MatchRecord());
+                    }
+                    pendingMatches.get(pendingCount++).set(match);
+                } else if (fingerprints != null) {
+                    match.setHistory(false); // same fingerprint as the new copy of the match
+                    addFingerprint(match);
+                } else {
+                    historyCount = addKeptTime(historyCount, match.getTimestamp());
+                }
+            }
+
+            // history and new matches both come in time order: the history times are walked
+            // once, and the closest kept new match is always the last one
+            int history = 0;
+            boolean hasKept = false;
+            long lastKeptTime = 0;
+            for (int i = 0; i < pendingCount; i++) {
+                MatchRecord match = pendingMatches.get(i);
+                if (fingerprints != null) {
+                    if (addFingerprint(match)) {
+                        keep(match, context);
+                    } else {
+                        context.getCounter(DedupStats.EXACT_DUPLICATES).increment(1);
+                    }
+                } else {
+                    long time = match.getTimestamp();
+                    while (history < historyCount && keptTimes[history] < time - TIME_THRESHOLD_MILLIS) {
+                        history++;
+                    }
+                    boolean nearHistory = history < historyCount && keptTimes[history] <= time + TIME_THRESHOLD_MILLIS;
+                    if (nearHistory || (hasKept && time - lastKeptTime <= TIME_THRESHOLD_MILLIS)) {
+                        context.getCounter(DedupStats.TIME_WINDOW_DUPLICATES).increment(1);
+                    } else {
+                        keep(match, context);
+                        hasKept = true;
+                        lastKeptTime = time;
+                    }
+                }
+            }
+            return valueCount;
+        }
+
+        private boolean addFingerprint(MatchRecord match) throws IOException {
+            recordBytes.reset();
+            match.write(recordBytes);
+            FingerprintSet.fingerprint(recordBytes.getData(), recordBytes.getLength(), fingerprint);
+            return fingerprints.add(fingerprint[0], fingerprint[1]);
+        }
+
+        private int addKeptTime(int keptCount, long time) {
+            if (keptCount == keptTimes.length) {
+                keptTimes = Arrays.copyOf(keptTimes, keptCount * 2);
+            }
+            keptTimes[keptCount] = time;
+            return keptCount + 1;
         }
 
-        private void sortMatchesChronologically(List<String> matches) {
-            Collections.sort(matches, (m1, m2) -> {
-                String d1 = getDateString(m1);
-                String d2 = getDateString(m2);
-                return d1.compareTo(d2);
-            });
+        private void keep(MatchRecord match, Context context) throws IOException, InterruptedException {
+            context.write(NullWritable.get(), match);
+            if (cleanOutput != null) {
+                cleanOutput.write("clean", NullWritable.get(), match, "clean/part");
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            timers.report(context);
+            profiler.write(context);
+            if (cleanOutput != null) {
+                cleanOutput.close();
+            }
+            if (fingerprints != null) {
+                context.getCounter(DedupStats.FINGERPRINT_SPILLS).increment(fingerprints.getSpills());
+                context.getCounter(DedupStats.FINGERPRINT_COLLISIONS).increment(fingerprints.getPartialCollisions());
+                fingerprints.close();
+            }
         }
     }
-}
\ No newline at end of file
+}
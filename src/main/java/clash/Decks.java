@@ -0,0 +1,37 @@
+package clash;
+
+/**
+ * Packed deck encoding: one byte per card, cards left-aligned in a long
+ * ("0a0e151e" -> 0x0a0e151e00000000L). Unsigned comparison of two packed
+ * archetypes of the same size gives the order of their hex strings.
+ *
+ * A byte has no case: "0A" and "0a" pack to the same card, and toHex() writes lower case.
+ * The raw decks are lower case, so this only merges decks that the text keys would have
+ * kept apart if some were upper case.
+ */
+public final class Decks {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Decks() {}
+
+    public static long pack(String hex) {
+        int size = hex.length() / 2;
+        if (size == 0) return 0L;
+        return Long.parseUnsignedLong(hex, 16) << (8 * (8 - size));
+    }
+
+    public static String toHex(long archetype, int size) {
+        char[] chars = new char[size * 2];
+        for (int i = 0; i < size; i++) {
+            int card = card(archetype, i);
+            chars[i * 2] = HEX_DIGITS[card >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[card & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    public static int card(long archetype, int index) {
+        return (int) (archetype >>> (56 - 8 * index)) & 0xFF;
+    }
+}
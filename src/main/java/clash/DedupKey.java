@@ -0,0 +1,165 @@
+package clash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Key of the cleaning job: canonical player pair ("tag1|tag2", smaller tag first), round
+ * and match timestamp. Sorting on all three fields while grouping and partitioning on
+ * (players, round) only gives the reducer each pair's matches in chronological order.
+ *
+ * Layout: players as a Text (vint length + bytes), round as a 4-byte int, timestamp as
+ * an 8-byte long, so raw comparators can read the fields in place.
+ */
+public class DedupKey implements WritableComparable<DedupKey> {
+
+    private final Text players = new Text();
+    private int round;
+    private long timestamp;
+
+    public DedupKey() {}
+
+    public Text getPlayers() {
+        return players;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setRound(int round) {
+        this.round = round;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        players.write(out);
+        out.writeInt(round);
+        out.writeLong(timestamp);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        players.readFields(in);
+        round = in.readInt();
+        timestamp = in.readLong();
+    }
+
+    @Override
+    public int compareTo(DedupKey other) {
+        int cmp = compareGroup(other);
+        if (cmp != 0) return cmp;
+        return Long.compare(timestamp, other.timestamp);
+    }
+
+    private int compareGroup(DedupKey other) {
+        int cmp = players.compareTo(other.players);
+        if (cmp != 0) return cmp;
+        return Integer.compare(round, other.round);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DedupKey)) return false;
+        DedupKey other = (DedupKey) o;
+        return players.equals(other.players) && round == other.round && timestamp == other.timestamp;
+    }
+
+    @Override
+    public int hashCode() {
+        return groupHash() * 31 + Long.hashCode(timestamp);
+    }
+
+    private int groupHash() {
+        return WritableComparator.hashBytes(players.getBytes(), players.getLength()) * 31 + round;
+    }
+
+    @Override
+    public String toString() {
+        return players + "|" + round + "|" + timestamp;
+    }
+
+
+    /** Full order: players, round, then timestamp. */
+    public static class Comparator extends WritableComparator {
+
+        public Comparator() {
+            super(DedupKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareRaw(b1, s1, b2, s2, true);
+        }
+    }
+
+    /** Groups the values of a reduce call by (players, round), ignoring the timestamp. */
+    public static class GroupingComparator extends WritableComparator {
+
+        public GroupingComparator() {
+            super(DedupKey.class, true);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareRaw(b1, s1, b2, s2, false);
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public int compare(WritableComparable a, WritableComparable b) {
+            return ((DedupKey) a).compareGroup((DedupKey) b);
+        }
+    }
+
+    /** Sends every match of a (players, round) group to the same reducer, whatever its timestamp. */
+    public static class GroupPartitioner<V> extends Partitioner<DedupKey, V> {
+
+        @Override
+        public int getPartition(DedupKey key, V value, int numPartitions) {
+            return (key.groupHash() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    private static int compareRaw(byte[] b1, int s1, byte[] b2, int s2, boolean withTimestamp) {
+        try {
+            int lengthSize1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int lengthSize2 = WritableUtils.decodeVIntSize(b2[s2]);
+            int length1 = WritableComparator.readVInt(b1, s1);
+            int length2 = WritableComparator.readVInt(b2, s2);
+            int players1 = s1 + lengthSize1;
+            int players2 = s2 + lengthSize2;
+
+            int cmp = WritableComparator.compareBytes(b1, players1, length1, b2, players2, length2);
+            if (cmp != 0) return cmp;
+
+            int round1 = players1 + length1;
+            int round2 = players2 + length2;
+            cmp = Integer.compare(WritableComparator.readInt(b1, round1), WritableComparator.readInt(b2, round2));
+            if (cmp != 0 || !withTimestamp) return cmp;
+
+            return Long.compare(WritableComparator.readLong(b1, round1 + 4), WritableComparator.readLong(b2, round2 + 4));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    static {
+        WritableComparator.define(DedupKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,191 @@
+package clash;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Count-Min sketch of the edges of one archetype size (-approx): DEPTH rows of width cells,
+ * each cell holding the matches and the wins (of the first archetype) of the edges hashed to
+ * it. The estimate of an edge is the minimum over the rows, never below its true value.
+ *
+ * In a mapper, the sketch also decides which edges are heavy. An edge is counted exactly
+ * (emitted) from the first match where its estimate reaches the tracking threshold: trackMin
+ * plus the mean load of a row. Before that its matches only go to the sketch; as the estimate
+ * never undercounts, fewer than threshold of them are skipped. The threshold rises with the
+ * matches added, so the edges already tracked are remembered (tracked set, sized by
+ * clash.approx.tracked.mb) and stay tracked: threshold - 1 at the end of the mapper, its
+ * slack, bounds what any edge lost in it. Once the tracked set is full, the new heavy edges
+ * are still emitted but can lose more later, so the slack of the mapper becomes its total
+ * and only the merged estimate bounds them.
+ *
+ * The sketches of the mappers are summed cell by cell (as ArchetypeKey sketch cells, sent to
+ * every reducer of the size), the slacks too (in the extra SLACK_ROW), which gives a reducer
+ * the two upper bounds of an edge: the merged estimate, and the exact count plus the total
+ * slack.
+ */
+public class EdgeSketch {
+
+    static final int DEPTH = 4;
+    static final int SLACK_ROW = DEPTH;
+    private static final long[] SEEDS = {
+        0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+
+    private final int width;
+    private final int mask;
+    private final long[] counts;
+    private final long[] wins;
+    private final int trackMin;
+    private long total; // matches added, or merged from row 0
+    private long slack; // merged side
+
+    // tracked set: open addressing on the canonical edge, second == 0 for an empty slot
+    // (the second archetype of an edge is above the first, never 0)
+    private long[] trackedFirsts;
+    private long[] trackedSeconds;
+    private int trackedMask;
+    private int trackedMax;
+    private int trackedCount;
+    private boolean trackedFull;
+
+    private final ArchetypeKey cellKey = new ArchetypeKey();
+    private final CountWin cellValue = new CountWin();
+
+    /** Sketch of a mapper (with a tracked set) when tracking, merged sketch of a reducer otherwise. */
+    public EdgeSketch(Configuration conf, boolean tracking) {
+        long budgetBytes = conf.getLong("clash.approx.sketch.mb", 8) << 20;
+        width = Integer.highestOneBit((int) Math.max(1024, Math.min(budgetBytes / (DEPTH * 16), 1 << 26)));
+        mask = width - 1;
+        counts = new long[DEPTH * width];
+        wins = new long[DEPTH * width];
+        trackMin = conf.getInt("clash.approx.track.min", 2);
+        if (tracking) {
+            long trackedBytes = conf.getLong("clash.approx.tracked.mb", 4) << 20;
+            int capacity = Integer.highestOneBit((int) Math.max(1024, Math.min(trackedBytes / 16, 1 << 28)));
+            trackedFirsts = new long[capacity];
+            trackedSeconds = new long[capacity];
+            trackedMask = capacity - 1;
+            trackedMax = capacity / 2;
+        }
+    }
+
+    /**
+     * Adds one match of the edge (first below second, unsigned). Returns true when the edge is
+     * heavy, or was in an earlier match of this mapper, and must be counted exactly.
+     */
+    public boolean add(long first, long second, boolean win) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int cell = cell(row, first, second);
+            counts[cell]++;
+            if (win) wins[cell]++;
+            estimate = Math.min(estimate, counts[cell]);
+        }
+        total++;
+        int slot = trackedSlot(first, second);
+        if (trackedSeconds[slot] != 0) return true;
+        if (estimate < threshold()) return false;
+        if (trackedCount < trackedMax) {
+            trackedFirsts[slot] = first;
+            trackedSeconds[slot] = second;
+            trackedCount++;
+        } else {
+            trackedFull = true;
+        }
+        return true;
+    }
+
+    private int trackedSlot(long first, long second) {
+        long h = (first ^ 0x632BE59BD9B4E019L) * 0xBF58476D1CE4E5B9L + second;
+        int slot = (int) (h ^ (h >>> 31)) & trackedMask;
+        while (trackedSeconds[slot] != 0 && (trackedFirsts[slot] != first || trackedSeconds[slot] != second)) {
+            slot = (slot + 1) & trackedMask;
+        }
+        return slot;
+    }
+
+    private long threshold() {
+        return trackMin + total / width;
+    }
+
+    public long estimateCount(long first, long second) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counts[cell(row, first, second)]);
+        }
+        return estimate;
+    }
+
+    public long estimateWins(long first, long second) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, wins[cell(row, first, second)]);
+        }
+        return estimate;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /** Edges remembered as tracked by this mapper. */
+    public int getTrackedCount() {
+        return trackedCount;
+    }
+
+    /** True once a heavy edge could not be remembered: the slack of the mapper is then its total. */
+    public boolean isTrackedFull() {
+        return trackedFull;
+    }
+
+    // what an edge can have lost in this mapper before being counted exactly
+    long mapperSlack() {
+        return trackedFull ? total : threshold() - 1;
+    }
+
+    /** Sum of the slacks of the mappers: what an edge can have lost before being counted exactly. */
+    public long getSlack() {
+        return slack;
+    }
+
+    /** Merges a cell written by write(). */
+    public void addCell(int row, int column, long count, long win) {
+        if (row == SLACK_ROW) {
+            slack += count;
+            return;
+        }
+        counts[row * width + column] += count;
+        wins[row * width + column] += win;
+        if (row == 0) {
+            total += count;
+        }
+    }
+
+    /**
+     * Writes the non-empty cells and the slack of this mapper, once for each of the replicas
+     * reducers of the size. Returns the number of cells written.
+     */
+    public long write(int size, int replicas, TaskInputOutputContext<?, ?, ArchetypeKey, CountWin> context)
+            throws IOException, InterruptedException {
+        if (total == 0) return 0;
+        long written = 0;
+        for (int replica = 0; replica < replicas; replica++) {
+            for (int cell = 0; cell < counts.length; cell++) {
+                if (counts[cell] == 0) continue;
+                context.write(cellKey.setSketchCell(size, cell / width, cell & mask, replica), cellValue.set(counts[cell], wins[cell]));
+                written++;
+            }
+            context.write(cellKey.setSketchCell(size, SLACK_ROW, 0, replica), cellValue.set(mapperSlack(), 0));
+        }
+        return written;
+    }
+
+    private int cell(int row, long first, long second) {
+        long h = (first ^ SEEDS[row]) * 0xBF58476D1CE4E5B9L + second;
+        h = (h ^ (h >>> 31)) * 0x94D049BB133111EBL;
+        h ^= h >>> 29;
+        return row * width + ((int) h & mask);
+    }
+}
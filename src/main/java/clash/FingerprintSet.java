@@ -0,0 +1,325 @@
+package clash;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set of 128-bit fingerprints with a bounded memory footprint.
+ *
+ * Fingerprints live in an open-addressing table of two primitive long arrays. When the
+ * table reaches its memory cap it is sorted and written to a local run file of 16-byte
+ * entries, and membership checks then also search every run: the first entry of each 4 KB
+ * block of a run stays in memory, so a lookup reads a single block per run.
+ *
+ * A slot is in use when its stamp equals the current epoch, so clear() (called once per
+ * reduce group) only bumps the epoch instead of wiping the whole table.
+ */
+public class FingerprintSet {
+
+    private static final int BYTES_PER_SLOT = 20; // high, low and epoch stamp
+    private static final double MAX_LOAD = 0.7;
+    private static final int ENTRY_BYTES = 16;
+    private static final int BLOCK_ENTRIES = 256;
+
+    private final long[] highs;
+    private final long[] lows;
+    private final int[] stamps;
+    private int epoch = 1;
+    private final int mask;
+    private final int maxEntries;
+    private int size;
+
+    private final File spillDirectory;
+    private final List<Run> runs = new ArrayList<>();
+    private final List<File> runFiles = new ArrayList<>();
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_ENTRIES * ENTRY_BYTES);
+
+    private long spills;
+    private long partialCollisions;
+
+    public FingerprintSet(long memoryBudgetBytes, File spillDirectory) {
+        long slots = Math.max(1024, memoryBudgetBytes / BYTES_PER_SLOT);
+        int capacity = Integer.highestOneBit((int) Math.min(slots, 1 << 30));
+        highs = new long[capacity];
+        lows = new long[capacity];
+        stamps = new int[capacity];
+        mask = capacity - 1;
+        maxEntries = (int) (capacity * MAX_LOAD);
+        this.spillDirectory = spillDirectory;
+    }
+
+    /** Adds a fingerprint. Returns false when it was already in the set. */
+    public boolean add(long high, long low) throws IOException {
+        int slot = (int) (high ^ (high >>> 32)) & mask;
+        boolean sameHigh = false;
+        while (stamps[slot] == epoch) {
+            if (highs[slot] == high) {
+                if (lows[slot] == low) return false;
+                sameHigh = true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        for (Run run : runs) {
+            int found = run.find(high, low, block);
+            if (found > 0) return false;
+            sameHigh |= found < 0;
+        }
+        if (sameHigh) {
+            partialCollisions++;
+        }
+
+        stamps[slot] = epoch;
+        highs[slot] = high;
+        lows[slot] = low;
+        size++;
+        if (size >= maxEntries) {
+            spill();
+        }
+        return true;
+    }
+
+    /** Number of run files written since the set was created. */
+    public long getSpills() {
+        return spills;
+    }
+
+    /**
+     * Fingerprints sharing their first 64 bits only: what a 64-bit hash would have merged. Counts
+     * each added fingerprint once, whether its match is in the table or in a spilled run.
+     */
+    public long getPartialCollisions() {
+        return partialCollisions;
+    }
+
+    /** Empties the set and deletes its run files. */
+    public void clear() throws IOException {
+        if (size > 0) {
+            nextEpoch();
+        }
+        deleteRuns();
+    }
+
+    public void close() throws IOException {
+        clear();
+    }
+
+    private void spill() throws IOException {
+        long[] sortedHighs = new long[size];
+        long[] sortedLows = new long[size];
+        int n = 0;
+        for (int slot = 0; slot < stamps.length; slot++) {
+            if (stamps[slot] == epoch) {
+                sortedHighs[n] = highs[slot];
+                sortedLows[n] = lows[slot];
+                n++;
+            }
+        }
+        sort(sortedHighs, sortedLows, 0, n - 1);
+
+        File runFile = File.createTempFile("fingerprints-", ".run", spillDirectory);
+        runFiles.add(runFile);
+        int blocks = (n + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES;
+        long[] firstHighs = new long[blocks];
+        long[] firstLows = new long[blocks];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile)))) {
+            for (int i = 0; i < n; i++) {
+                if (i % BLOCK_ENTRIES == 0) {
+                    firstHighs[i / BLOCK_ENTRIES] = sortedHighs[i];
+                    firstLows[i / BLOCK_ENTRIES] = sortedLows[i];
+                }
+                out.writeLong(sortedHighs[i]);
+                out.writeLong(sortedLows[i]);
+            }
+        }
+        runs.add(new Run(new RandomAccessFile(runFile, "r"), n, firstHighs, firstLows));
+        spills++;
+
+        nextEpoch();
+    }
+
+    private void nextEpoch() {
+        size = 0;
+        if (++epoch == 0) { // wrapped: stamps of 2^32 epochs ago would look current
+            Arrays.fill(stamps, 0);
+            epoch = 1;
+        }
+    }
+
+    private void deleteRuns() throws IOException {
+        for (Run run : runs) {
+            run.file.close();
+        }
+        for (File runFile : runFiles) {
+            runFile.delete();
+        }
+        runs.clear();
+        runFiles.clear();
+    }
+
+    private static int compare(long high1, long low1, long high2, long low2) {
+        int cmp = Long.compareUnsigned(high1, high2);
+        return cmp != 0 ? cmp : Long.compareUnsigned(low1, low2);
+    }
+
+    /** A sorted run file and the first entry of each of its blocks. */
+    private static class Run {
+
+        final RandomAccessFile file;
+        final int entries;
+        final long[] firstHighs;
+        final long[] firstLows;
+
+        Run(RandomAccessFile file, int entries, long[] firstHighs, long[] firstLows) {
+            this.file = file;
+            this.entries = entries;
+            this.firstHighs = firstHighs;
+            this.firstLows = firstLows;
+        }
+
+        /**
+         * Looks the fingerprint up with one read of the block that would hold it. Returns 1 when
+         * found, -1 when only an entry with the same high is, 0 otherwise.
+         */
+        int find(long high, long low, ByteBuffer block) throws IOException {
+            // last block starting at or before the fingerprint
+            int lo = 0;
+            int hi = firstHighs.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(firstHighs[mid], firstLows[mid], high, low) <= 0) lo = mid + 1; else hi = mid - 1;
+            }
+            int b = hi;
+            if (b < 0) {
+                return firstHighs[0] == high ? -1 : 0;
+            }
+
+            int length = Math.min(BLOCK_ENTRIES, entries - b * BLOCK_ENTRIES);
+            block.clear().limit(length * ENTRY_BYTES);
+            FileChannel channel = file.getChannel();
+            long position = (long) b * BLOCK_ENTRIES * ENTRY_BYTES;
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0) {
+                    throw new IOException("Truncated fingerprint run");
+                }
+            }
+
+            lo = 0;
+            hi = length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compare(block.getLong(mid * ENTRY_BYTES), block.getLong(mid * ENTRY_BYTES + 8), high, low);
+                if (cmp == 0) return 1;
+                if (cmp < 0) lo = mid + 1; else hi = mid - 1;
+            }
+            // an entry with the same high would be next to the insertion point, maybe first of the next block
+            long next = lo < length ? block.getLong(lo * ENTRY_BYTES)
+                    : b + 1 < firstHighs.length ? firstHighs[b + 1] : ~high;
+            return block.getLong(hi * ENTRY_BYTES) == high || next == high ? -1 : 0;
+        }
+    }
+
+    /** Quicksort of (highs[i], lows[i]) pairs. */
+    private static void sort(long[] highs, long[] lows, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            long pivotHigh = highs[mid];
+            long pivotLow = lows[mid];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (compare(highs[i], lows[i], pivotHigh, pivotLow) < 0) i++;
+                while (compare(highs[j], lows[j], pivotHigh, pivotLow) > 0) j--;
+                if (i <= j) {
+                    long h = highs[i]; highs[i] = highs[j]; highs[j] = h;
+                    long l = lows[i]; lows[i] = lows[j]; lows[j] = l;
+                    i++;
+                    j--;
+                }
+            }
+            if (j - from < to - i) {
+                sort(highs, lows, from, j);
+                from = i;
+            } else {
+                sort(highs, lows, i, to);
+                to = j;
+            }
+        }
+    }
+
+
+    /** MurmurHash3 x64 128-bit of bytes[0..length), written to out[0] (high) and out[1] (low). */
+    public static void fingerprint(byte[] bytes, int length, long[] out) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLittleEndian(bytes, i * 16);
+            long k2 = getLongLittleEndian(bytes, i * 16 + 8);
+
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks * 16;
+        for (int i = length - 1; i >= tail; i--) {
+            long b = bytes[i] & 0xFFL;
+            if (i - tail >= 8) {
+                k2 ^= b << ((i - tail - 8) * 8);
+            } else {
+                k1 ^= b << ((i - tail) * 8);
+            }
+        }
+        if (length - tail > 8) {
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+        }
+        if (length - tail > 0) {
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        out[0] = h1;
+        out[1] = h2;
+    }
+
+    private static long getLongLittleEndian(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFFL);
+        }
+        return value;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,140 @@
+package clash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Key of the sort-merge joins of the Stats job: (archetype size, packed archetype, side).
+ * Grouping and partitioning ignore the side, which only orders the node record of an
+ * archetype before the edges that reference it.
+ *
+ * Layout: size byte, archetype long, side byte (10 bytes, compared as raw bytes).
+ */
+public class JoinKey implements WritableComparable<JoinKey> {
+
+    public static final byte NODE = 0;
+    public static final byte EDGE = 1;
+
+    private static final int GROUP_BYTES = 9;
+
+    private byte size;
+    private long archetype;
+    private byte side;
+
+    public JoinKey() {}
+
+    public JoinKey set(int size, long archetype, byte side) {
+        this.size = (byte) size;
+        this.archetype = archetype;
+        this.side = side;
+        return this;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getArchetype() {
+        return archetype;
+    }
+
+    public byte getSide() {
+        return side;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(size);
+        out.writeLong(archetype);
+        out.writeByte(side);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        size = in.readByte();
+        archetype = in.readLong();
+        side = in.readByte();
+    }
+
+    @Override
+    public int compareTo(JoinKey other) {
+        int cmp = compareGroup(other);
+        return cmp != 0 ? cmp : Byte.compare(side, other.side);
+    }
+
+    private int compareGroup(JoinKey other) {
+        int cmp = Byte.compare(size, other.size);
+        return cmp != 0 ? cmp : Long.compareUnsigned(archetype, other.archetype);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof JoinKey)) return false;
+        JoinKey other = (JoinKey) o;
+        return size == other.size && archetype == other.archetype && side == other.side;
+    }
+
+    @Override
+    public int hashCode() {
+        return groupHash() * 31 + side;
+    }
+
+    private int groupHash() {
+        long h = archetype * 0x9E3779B97F4A7C15L + size;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return Decks.toHex(archetype, size) + (side == NODE ? " (node)" : " (edge)");
+    }
+
+
+    public static class Comparator extends WritableComparator {
+
+        public Comparator() {
+            super(JoinKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareBytes(b1, s1, l1, b2, s2, l2);
+        }
+    }
+
+    /** Groups on (size, archetype): one reduce call sees the node, then all of its edges. */
+    public static class GroupingComparator extends WritableComparator {
+
+        public GroupingComparator() {
+            super(JoinKey.class, true);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareBytes(b1, s1, GROUP_BYTES, b2, s2, GROUP_BYTES);
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public int compare(WritableComparable a, WritableComparable b) {
+            return ((JoinKey) a).compareGroup((JoinKey) b);
+        }
+    }
+
+    public static class ArchetypePartitioner<V> extends Partitioner<JoinKey, V> {
+
+        @Override
+        public int getPartition(JoinKey key, V value, int numPartitions) {
+            return (key.groupHash() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    static {
+        WritableComparator.define(JoinKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,230 @@
+package clash;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Values-per-key profile of a reduce task: a histogram of the group sizes in powers of two
+ * (bucket b holds the keys with 2^b to 2^(b+1) - 1 values) and the N heaviest keys.
+ *
+ * A reducer sees each key once, with all its values, so a min-heap of N entries gives the
+ * exact top N of the task; a key is only turned into a string when it enters the heap. The
+ * per-key cost is a few additions and one comparison, so the profile stays on by default
+ * (-skewTop=0 turns it off).
+ *
+ * Each task writes its profile next to the job output, in a hidden _skew-r-NNNNN file; the
+ * driver merges them (merge()) into the skew summary of the job and deletes them.
+ */
+public class KeyProfiler {
+
+    private static final String FILE_PREFIX = "_skew-";
+    private static final int BUCKETS = 64;
+
+    private final int topSize;
+    private final long[] bucketKeys = new long[BUCKETS];
+    private final long[] bucketValues = new long[BUCKETS];
+    private final PriorityQueue<HotKey> top = new PriorityQueue<>();
+
+    public KeyProfiler(Configuration conf) {
+        topSize = conf.getInt("clash.skew.top", 20);
+    }
+
+    public void add(Object key, long valueCount) {
+        if (topSize <= 0 || valueCount <= 0) return;
+        int bucket = 63 - Long.numberOfLeadingZeros(valueCount);
+        bucketKeys[bucket]++;
+        bucketValues[bucket] += valueCount;
+
+        if (top.size() < topSize) {
+            top.add(new HotKey(key.toString(), valueCount, null));
+        } else if (valueCount > top.peek().values) {
+            top.poll();
+            top.add(new HotKey(key.toString(), valueCount, null));
+        }
+    }
+
+    /** Writes the profile of the task to the job output directory, even empty (an idle reducer is skew too). */
+    public void write(TaskInputOutputContext<?, ?, ?, ?> context) throws IOException {
+        Path outputDir = FileOutputFormat.getOutputPath(context);
+        if (topSize <= 0 || outputDir == null) return;
+
+        TaskAttemptID attempt = context.getTaskAttemptID();
+        String task = String.format("%c-%05d", Character.toLowerCase(attempt.getTaskType().name().charAt(0)), attempt.getTaskID().getId());
+        StringBuilder text = new StringBuilder();
+        text.append("task\t").append(task).append('\n');
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (bucketKeys[bucket] > 0) {
+                text.append("bucket\t").append(bucket).append('\t').append(bucketKeys[bucket])
+                    .append('\t').append(bucketValues[bucket]).append('\n');
+            }
+        }
+        for (HotKey hotKey : top) {
+            text.append("top\t").append(hotKey.values).append('\t').append(hotKey.key).append('\n');
+        }
+
+        Path file = new Path(outputDir, FILE_PREFIX + task);
+        try (OutputStream out = file.getFileSystem(context.getConfiguration()).create(file, true)) {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+
+    /**
+     * Merges the task profiles of a job output directory, deletes them, and returns the skew
+     * summary of the job (null when there is none): per-task totals, merged histogram and
+     * global top N.
+     */
+    public static Summary merge(Configuration conf, Path outputDir) throws IOException {
+        FileSystem fs = outputDir.getFileSystem(conf);
+        FileStatus[] files = fs.globStatus(new Path(outputDir, FILE_PREFIX + "*"));
+        if (files == null || files.length == 0) return null;
+        Arrays.sort(files);
+
+        Summary summary = new Summary(conf.getInt("clash.skew.top", 20));
+        for (FileStatus file : files) {
+            try (FSDataInputStream in = fs.open(file.getPath());
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                summary.read(reader);
+            }
+            fs.delete(file.getPath(), false);
+        }
+        return summary;
+    }
+
+    public static class Summary {
+
+        private final int topSize;
+        private final List<String> tasks = new ArrayList<>();
+        private final List<long[]> taskTotals = new ArrayList<>(); // keys, values, max values per key
+        private final long[] bucketKeys = new long[BUCKETS];
+        private final long[] bucketValues = new long[BUCKETS];
+        private final PriorityQueue<HotKey> top = new PriorityQueue<>();
+        private long values;
+
+        Summary(int topSize) {
+            this.topSize = topSize;
+        }
+
+        private void read(BufferedReader reader) throws IOException {
+            String task = null;
+            long[] totals = new long[3];
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                switch (fields[0]) {
+                    case "task":
+                        task = fields[1];
+                        break;
+                    case "bucket":
+                        int bucket = Integer.parseInt(fields[1]);
+                        long bucketKeyCount = Long.parseLong(fields[2]);
+                        long bucketValueCount = Long.parseLong(fields[3]);
+                        bucketKeys[bucket] += bucketKeyCount;
+                        bucketValues[bucket] += bucketValueCount;
+                        totals[0] += bucketKeyCount;
+                        totals[1] += bucketValueCount;
+                        break;
+                    case "top":
+                        long valueCount = Long.parseLong(fields[1]);
+                        totals[2] = Math.max(totals[2], valueCount);
+                        top.add(new HotKey(fields[2], valueCount, task));
+                        if (top.size() > topSize) top.poll();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            tasks.add(task);
+            taskTotals.add(totals);
+            values += totals[1];
+        }
+
+        /** Values of the busiest task over the mean of the tasks: 1 is a perfect balance. */
+        public double getMaxTaskValuesOverMean() {
+            long max = 0;
+            for (long[] totals : taskTotals) {
+                max = Math.max(max, totals[1]);
+            }
+            return values == 0 ? 0 : (double) max * taskTotals.size() / values;
+        }
+
+        /** Share of all the values of the job in its heaviest key. */
+        public double getTopKeyShare() {
+            long max = 0;
+            for (HotKey hotKey : top) {
+                max = Math.max(max, hotKey.values);
+            }
+            return values == 0 ? 0 : (double) max / values;
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\"maxTaskValuesOverMean\":").append(getMaxTaskValuesOverMean())
+                .append(",\"topKeyShare\":").append(getTopKeyShare()).append(",\"tasks\":[");
+            for (int i = 0; i < tasks.size(); i++) {
+                long[] totals = taskTotals.get(i);
+                json.append(i > 0 ? "," : "").append("{\"task\":\"").append(tasks.get(i))
+                    .append("\",\"keys\":").append(totals[0]).append(",\"values\":").append(totals[1])
+                    .append(",\"maxValuesPerKey\":").append(totals[2]).append('}');
+            }
+            json.append("],\"histogram\":[");
+            boolean first = true;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (bucketKeys[bucket] == 0) continue;
+                json.append(first ? "" : ",").append("{\"minValues\":").append(1L << bucket)
+                    .append(",\"keys\":").append(bucketKeys[bucket]).append(",\"values\":").append(bucketValues[bucket]).append('}');
+                first = false;
+            }
+            json.append("],\"top\":[");
+            List<HotKey> sorted = new ArrayList<>(top);
+            sorted.sort((a, b) -> Long.compare(b.values, a.values));
+            for (int i = 0; i < sorted.size(); i++) {
+                HotKey hotKey = sorted.get(i);
+                json.append(i > 0 ? "," : "").append("{\"key\":\"").append(hotKey.key.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",\"values\":").append(hotKey.values).append(",\"task\":\"").append(hotKey.task).append("\"}");
+            }
+            return json.append("]}").toString();
+        }
+
+        @Override
+        public String toString() {
+            String heaviest = top.isEmpty() ? "-" : top.stream().max((a, b) -> Long.compare(a.values, b.values)).get().key;
+            return String.format("%d tasks, busiest task at %.2fx the mean, heaviest key %s (%.2f%% of the values)",
+                tasks.size(), getMaxTaskValuesOverMean(), heaviest, 100 * getTopKeyShare());
+        }
+    }
+
+
+    private static class HotKey implements Comparable<HotKey> {
+
+        private final String key;
+        private final long values;
+        private final String task;
+
+        HotKey(String key, long values, String task) {
+            this.key = key;
+            this.values = values;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(HotKey other) {
+            return Long.compare(values, other.values);
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package clash;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.counters.GenericCounter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.QuickSort;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * In-process engine running a configured Job on all cores, without YARN or LocalJobRunner.
+ *
+ * The job's own input format, mapper, combiner, partitioner, comparators, reducer and output
+ * format are used, through the standard Hadoop context implementations, so the output layout
+ * (part files, MultipleOutputs, _SUCCESS) is the same as on the cluster. Map tasks run in a
+ * fork-join pool and keep their output in memory, serialized and split by partition; the
+ * combiner runs on those buffers whenever they exceed the buffer budget and at the end of the
+ * task. The reducers run in parallel, each one sorting the buffers of its partition and
+ * merging them as it reads, without copying them.
+ *
+ * A failed job is aborted and run() returns false; the cause is kept for the driver
+ * (getFailure()).
+ *
+ * Map output stays in memory: the engine is meant for datasets that fit on one workstation.
+ */
+public class LocalEngine {
+
+    private static final AtomicInteger JOB_IDS = new AtomicInteger();
+
+    private final int threads;
+    private final long bufferBytes;
+    private final Counters counters = new Counters();
+    private Exception failure;
+
+    public LocalEngine(Configuration conf) {
+        threads = threads(conf);
+        bufferBytes = conf.getLong("clash.engine.buffer.mb", 64) << 20;
+    }
+
+    /** Number of worker threads, and the default number of reducers of a local run. */
+    public static int threads(Configuration conf) {
+        return conf.getInt("clash.engine.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    public Counters getCounters() {
+        return counters;
+    }
+
+    /** Why the last run() returned false, null when it succeeded. */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public boolean run(Job job) throws IOException, InterruptedException, ClassNotFoundException {
+        Configuration conf = job.getConfiguration();
+        JobID jobId = new JobID("clashlocal", JOB_IDS.incrementAndGet());
+        setSplitSize(job);
+        JobContext jobContext = new JobContextImpl(conf, jobId);
+
+        OutputFormat<?, ?> outputFormat = ReflectionUtils.newInstance(jobContext.getOutputFormatClass(), conf);
+        outputFormat.checkOutputSpecs(jobContext);
+        OutputCommitter committer = outputFormat.getOutputCommitter(
+            new TaskAttemptContextImpl(conf, new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), TaskType.MAP, 0, 0)));
+        committer.setupJob(jobContext);
+
+        failure = null;
+        boolean committed = false;
+        List<File> links = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            links = localizeCacheFiles(jobContext);
+            InputFormat<?, ?> inputFormat = ReflectionUtils.newInstance(jobContext.getInputFormatClass(), conf);
+            List<InputSplit> splits = inputFormat.getSplits(jobContext);
+            int partitions = jobContext.getNumReduceTasks();
+
+            List<Callable<MapOutput>> mapTasks = new ArrayList<>();
+            for (int i = 0; i < splits.size(); i++) {
+                TaskAttemptID attemptId = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), TaskType.MAP, i, 0);
+                InputSplit split = splits.get(i);
+                mapTasks.add(() -> runMapTask(jobContext, attemptId, split, partitions));
+            }
+            List<MapOutput> mapOutputs = invokeAll(pool, mapTasks);
+
+            if (partitions > 0) {
+                List<Callable<Void>> reduceTasks = new ArrayList<>();
+                for (int p = 0; p < partitions; p++) {
+                    TaskAttemptID attemptId = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), TaskType.REDUCE, p, 0);
+                    List<SortBuffer> inputs = new ArrayList<>();
+                    for (MapOutput mapOutput : mapOutputs) {
+                        inputs.add(mapOutput.partitions[p]);
+                    }
+                    reduceTasks.add(() -> runReduceTask(jobContext, attemptId, inputs));
+                }
+                invokeAll(pool, reduceTasks);
+            }
+
+            committer.commitJob(jobContext);
+            committed = true;
+        } catch (Exception e) {
+            failure = e;
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            if (!committed) {
+                committer.abortJob(jobContext, JobStatus.State.FAILED);
+            }
+            pool.shutdownNow();
+            for (File link : links) {
+                link.delete();
+            }
+        }
+        return committed;
+    }
+
+    // at least one split per thread, like a cluster with as many map slots as cores
+    private void setSplitSize(Job job) throws IOException, InterruptedException, ClassNotFoundException {
+        InputFormat<?, ?> inputFormat = ReflectionUtils.newInstance(job.getInputFormatClass(), job.getConfiguration());
+        long totalBytes = 0;
+        int splitCount = 0;
+        for (InputSplit split : inputFormat.getSplits(job)) {
+            totalBytes += split.getLength();
+            splitCount++;
+        }
+        if (splitCount < threads && totalBytes > 0) {
+            FileInputFormat.setMaxInputSplitSize(job, Math.max(1 << 20, totalBytes / threads + 1));
+        }
+    }
+
+    // the mappers open their cache files by link name from the working directory
+    private List<File> localizeCacheFiles(JobContext jobContext) throws IOException {
+        List<File> links = new ArrayList<>();
+        URI[] cacheFiles = jobContext.getCacheFiles();
+        if (cacheFiles == null) return links;
+
+        Configuration conf = jobContext.getConfiguration();
+        File localDir = Files.createTempDirectory("clash-cache-").toFile();
+        localDir.deleteOnExit();
+        for (URI cacheFile : cacheFiles) {
+            Path source = new Path(cacheFile.getScheme(), cacheFile.getAuthority(), cacheFile.getPath());
+            String name = cacheFile.getFragment() != null ? cacheFile.getFragment() : source.getName();
+            File localCopy = new File(localDir, name);
+            source.getFileSystem(conf).copyToLocalFile(false, source, new Path(localCopy.getAbsolutePath()), true);
+            localCopy.deleteOnExit();
+
+            File link = new File(name);
+            link.delete();
+            if (FileUtil.symLink(localCopy.getAbsolutePath(), link.getPath()) != 0) {
+                throw new IOException("Cannot link cache file " + cacheFile + " to " + link);
+            }
+            links.add(link);
+        }
+        return links;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private MapOutput runMapTask(JobContext jobContext, TaskAttemptID attemptId, InputSplit split, int partitions)
+        throws Exception {
+
+        Configuration conf = jobContext.getConfiguration();
+        TaskCounters taskCounters = new TaskCounters();
+        TaskAttemptContext taskContext = new TaskAttemptContextImpl(conf, attemptId, taskCounters);
+
+        InputFormat inputFormat = ReflectionUtils.newInstance(jobContext.getInputFormatClass(), conf);
+        RecordReader reader = new CountingReader(inputFormat.createRecordReader(split, taskContext),
+            taskCounters.getCounter(TaskCounter.MAP_INPUT_RECORDS));
+        Mapper mapper = ReflectionUtils.newInstance(jobContext.getMapperClass(), conf);
+
+        OutputCommitter committer = null;
+        RecordWriter writer;
+        MapOutput mapOutput = null;
+        if (partitions == 0) {
+            OutputFormat outputFormat = ReflectionUtils.newInstance(jobContext.getOutputFormatClass(), conf);
+            committer = outputFormat.getOutputCommitter(taskContext);
+            committer.setupTask(taskContext);
+            writer = new CountingWriter(outputFormat.getRecordWriter(taskContext),
+                taskCounters.getCounter(TaskCounter.MAP_OUTPUT_RECORDS));
+        } else {
+            mapOutput = new MapOutput(jobContext, taskCounters, partitions, bufferBytes);
+            writer = mapOutput;
+        }
+
+        MapContextImpl mapContext = new MapContextImpl(conf, attemptId, reader, writer, committer, taskCounters, split);
+        Mapper.Context context = new WrappedMapper().getMapContext(mapContext);
+        reader.initialize(split, context);
+        try {
+            mapper.run(context);
+        } finally {
+            reader.close();
+        }
+        writer.close(taskContext);
+
+        if (committer != null && committer.needsTaskCommit(taskContext)) {
+            committer.commitTask(taskContext);
+        }
+        if (mapOutput != null) {
+            mapOutput.finish();
+        }
+        mergeCounters(taskCounters);
+        return mapOutput;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Void runReduceTask(JobContext jobContext, TaskAttemptID attemptId, List<SortBuffer> inputs) throws Exception {
+        Configuration conf = jobContext.getConfiguration();
+        TaskCounters taskCounters = new TaskCounters();
+        TaskAttemptContext taskContext = new TaskAttemptContextImpl(conf, attemptId, taskCounters);
+
+        for (SortBuffer input : inputs) {
+            input.sort();
+        }
+
+        OutputFormat outputFormat = ReflectionUtils.newInstance(jobContext.getOutputFormatClass(), conf);
+        OutputCommitter committer = outputFormat.getOutputCommitter(taskContext);
+        committer.setupTask(taskContext);
+        RecordWriter writer = new CountingWriter(outputFormat.getRecordWriter(taskContext),
+            taskCounters.getCounter(TaskCounter.REDUCE_OUTPUT_RECORDS));
+
+        Reducer reducer = ReflectionUtils.newInstance(jobContext.getReducerClass(), conf);
+        ReduceContextImpl reduceContext = new ReduceContextImpl(conf, attemptId, new MergeIterator(inputs),
+            taskCounters.getCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+            taskCounters.getCounter(TaskCounter.REDUCE_INPUT_RECORDS),
+            writer, committer, taskCounters, jobContext.getGroupingComparator(),
+            jobContext.getMapOutputKeyClass(), jobContext.getMapOutputValueClass());
+        reducer.run(new WrappedReducer().getReducerContext(reduceContext));
+        writer.close(taskContext);
+
+        if (committer.needsTaskCommit(taskContext)) {
+            committer.commitTask(taskContext);
+        }
+        mergeCounters(taskCounters);
+        return null;
+    }
+
+    private synchronized void mergeCounters(TaskCounters taskCounters) {
+        counters.incrAllCounters(taskCounters.counters);
+    }
+
+    private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException, InterruptedException {
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IOException("Local task failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+
+    /** Counters of one task, merged into the job counters when the task ends. */
+    private static class TaskCounters extends StatusReporter {
+
+        private final Counters counters = new Counters();
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {}
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {}
+    }
+
+
+    @SuppressWarnings("rawtypes")
+    private static class CountingReader extends RecordReader {
+
+        private final RecordReader in;
+        private final Counter records;
+
+        CountingReader(RecordReader in, Counter records) {
+            this.in = in;
+            this.records = records;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+            in.initialize(split, context);
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            if (!in.nextKeyValue()) return false;
+            records.increment(1);
+            return true;
+        }
+
+        @Override
+        public Object getCurrentKey() throws IOException, InterruptedException {
+            return in.getCurrentKey();
+        }
+
+        @Override
+        public Object getCurrentValue() throws IOException, InterruptedException {
+            return in.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() throws IOException, InterruptedException {
+            return in.getProgress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class CountingWriter extends RecordWriter {
+
+        private final RecordWriter out;
+        private final Counter records;
+
+        CountingWriter(RecordWriter out, Counter records) {
+            this.out = out;
+            this.records = records;
+        }
+
+        @Override
+        public void write(Object key, Object value) throws IOException, InterruptedException {
+            records.increment(1);
+            out.write(key, value);
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+            out.close(context);
+        }
+    }
+
+
+    /**
+     * Map output collector: serializes each record into the buffer of its partition, and runs
+     * the combiner on all the buffers when they grow past the budget.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class MapOutput extends RecordWriter {
+
+        private final JobContext jobContext;
+        private final TaskCounters taskCounters;
+        private final Partitioner partitioner;
+        private final Class<? extends Reducer> combinerClass;
+        private final SortBuffer[] partitions;
+        private final Counter outputRecords;
+        private final Counter outputBytes;
+        private long combineThreshold;
+
+        MapOutput(JobContext jobContext, TaskCounters taskCounters, int partitionCount, long bufferBytes)
+            throws IOException, ClassNotFoundException {
+
+            this.jobContext = jobContext;
+            this.taskCounters = taskCounters;
+            Configuration conf = jobContext.getConfiguration();
+            partitioner = ReflectionUtils.newInstance(jobContext.getPartitionerClass(), conf);
+            combinerClass = jobContext.getCombinerClass();
+            partitions = new SortBuffer[partitionCount];
+            for (int p = 0; p < partitionCount; p++) {
+                partitions[p] = new SortBuffer(jobContext);
+            }
+            outputRecords = taskCounters.getCounter(TaskCounter.MAP_OUTPUT_RECORDS);
+            outputBytes = taskCounters.getCounter(TaskCounter.MAP_OUTPUT_BYTES);
+            combineThreshold = bufferBytes;
+        }
+
+        @Override
+        public void write(Object key, Object value) throws IOException, InterruptedException {
+            outputRecords.increment(1);
+            int partition = partitions.length == 1 ? 0 : partitioner.getPartition(key, value, partitions.length);
+            outputBytes.increment(partitions[partition].add(key, value));
+
+            if (combinerClass != null && bytes() > combineThreshold) {
+                combine();
+                // keep a margin when the combined output alone is close to the budget
+                combineThreshold = Math.max(combineThreshold, 2 * bytes());
+            }
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {}
+
+        void finish() throws IOException, InterruptedException {
+            if (combinerClass != null) {
+                combine();
+            }
+        }
+
+        private long bytes() {
+            long bytes = 0;
+            for (SortBuffer partition : partitions) {
+                bytes += partition.bytes();
+            }
+            return bytes;
+        }
+
+        private void combine() throws IOException, InterruptedException {
+            Configuration conf = jobContext.getConfiguration();
+            Counter inputRecords = taskCounters.getCounter(TaskCounter.COMBINE_INPUT_RECORDS);
+            Counter combineOutput = taskCounters.getCounter(TaskCounter.COMBINE_OUTPUT_RECORDS);
+            for (int p = 0; p < partitions.length; p++) {
+                SortBuffer input = partitions[p];
+                if (input.size() == 0) continue;
+                input.sort();
+
+                SortBuffer output = new SortBuffer(jobContext);
+                RecordWriter writer = new CountingWriter(new RecordWriter() {
+                    @Override
+                    public void write(Object key, Object value) throws IOException {
+                        output.add(key, value);
+                    }
+
+                    @Override
+                    public void close(TaskAttemptContext context) {}
+                }, combineOutput);
+
+                TaskAttemptID attemptId = new TaskAttemptID();
+                Reducer combiner = ReflectionUtils.newInstance(combinerClass, conf);
+                ReduceContextImpl combineContext = new ReduceContextImpl(conf, attemptId, input.iterator(),
+                    new GenericCounter(), inputRecords,
+                    writer, null, taskCounters, jobContext.getCombinerKeyGroupingComparator(),
+                    jobContext.getMapOutputKeyClass(), jobContext.getMapOutputValueClass());
+                combiner.run(new WrappedReducer().getReducerContext(combineContext));
+                partitions[p] = output;
+            }
+        }
+    }
+
+
+    /**
+     * Serialized (key, value) records of one partition, sorted in place on the raw key bytes
+     * with the job's sort comparator.
+     */
+    private static class SortBuffer implements IndexedSortable {
+
+        private final RawComparator<?> comparator;
+        private final Serializer<Object> keySerializer;
+        private final Serializer<Object> valueSerializer;
+        private final DataOutputBuffer data = new DataOutputBuffer();
+        private int[] keyStarts = new int[1024];
+        private int[] valueStarts = new int[1024];
+        private int[] ends = new int[1024];
+        private int[] order = new int[1024];
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        SortBuffer(JobContext jobContext) throws IOException {
+            comparator = jobContext.getSortComparator();
+            SerializationFactory serializations = new SerializationFactory(jobContext.getConfiguration());
+            keySerializer = serializations.getSerializer((Class<Object>) jobContext.getMapOutputKeyClass());
+            valueSerializer = serializations.getSerializer((Class<Object>) jobContext.getMapOutputValueClass());
+            keySerializer.open(data);
+            valueSerializer.open(data);
+        }
+
+        /** Serializes the record, and returns its size in bytes. */
+        int add(Object key, Object value) throws IOException {
+            grow();
+            keyStarts[size] = data.getLength();
+            keySerializer.serialize(key);
+            valueStarts[size] = data.getLength();
+            valueSerializer.serialize(value);
+            ends[size] = data.getLength();
+            order[size] = size;
+            size++;
+            return ends[size - 1] - keyStarts[size - 1];
+        }
+
+        int size() {
+            return size;
+        }
+
+        long bytes() {
+            return data.getLength() + 16L * size;
+        }
+
+        void sort() {
+            if (size > 1) {
+                new QuickSort().sort(this, 0, size);
+            }
+        }
+
+        @Override
+        public int compare(int i, int j) {
+            int a = order[i];
+            int b = order[j];
+            byte[] bytes = data.getData();
+            return comparator.compare(bytes, keyStarts[a], valueStarts[a] - keyStarts[a],
+                bytes, keyStarts[b], valueStarts[b] - keyStarts[b]);
+        }
+
+        @Override
+        public void swap(int i, int j) {
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+
+        /** Compares the key of the sorted record at position i with the one of other at position j. */
+        int compareSorted(int i, SortBuffer other, int j) {
+            int a = order[i];
+            int b = other.order[j];
+            return comparator.compare(data.getData(), keyStarts[a], valueStarts[a] - keyStarts[a],
+                other.data.getData(), other.keyStarts[b], other.valueStarts[b] - other.keyStarts[b]);
+        }
+
+        /** Points key and value at the sorted record at position i. */
+        void read(int i, DataInputBuffer key, DataInputBuffer value) {
+            int record = order[i];
+            key.reset(data.getData(), keyStarts[record], valueStarts[record] - keyStarts[record]);
+            value.reset(data.getData(), valueStarts[record], ends[record] - valueStarts[record]);
+        }
+
+        RawKeyValueIterator iterator() {
+            return new RawKeyValueIterator() {
+                private final DataInputBuffer key = new DataInputBuffer();
+                private final DataInputBuffer value = new DataInputBuffer();
+                private final Progress progress = new Progress();
+                private int position = -1;
+
+                @Override
+                public DataInputBuffer getKey() {
+                    return key;
+                }
+
+                @Override
+                public DataInputBuffer getValue() {
+                    return value;
+                }
+
+                @Override
+                public boolean next() {
+                    if (++position >= size) return false;
+                    read(position, key, value);
+                    return true;
+                }
+
+                @Override
+                public void close() {}
+
+                @Override
+                public Progress getProgress() {
+                    return progress;
+                }
+            };
+        }
+
+        private void grow() {
+            if (size < order.length) return;
+            int capacity = order.length * 2;
+            keyStarts = Arrays.copyOf(keyStarts, capacity);
+            valueStarts = Arrays.copyOf(valueStarts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            order = Arrays.copyOf(order, capacity);
+        }
+    }
+
+
+    /** K-way merge of sorted buffers, read in place through a heap of cursors. */
+    private static class MergeIterator implements RawKeyValueIterator {
+
+        private final PriorityQueue<Cursor> heap;
+        private final DataInputBuffer key = new DataInputBuffer();
+        private final DataInputBuffer value = new DataInputBuffer();
+        private final Progress progress = new Progress();
+        private Cursor current;
+
+        MergeIterator(List<SortBuffer> buffers) {
+            heap = new PriorityQueue<>(Math.max(1, buffers.size()),
+                (a, b) -> a.buffer.compareSorted(a.position, b.buffer, b.position));
+            for (SortBuffer buffer : buffers) {
+                if (buffer.size() > 0) {
+                    heap.add(new Cursor(buffer));
+                }
+            }
+        }
+
+        @Override
+        public DataInputBuffer getKey() {
+            return key;
+        }
+
+        @Override
+        public DataInputBuffer getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean next() {
+            if (current != null && ++current.position < current.buffer.size()) {
+                heap.add(current);
+            }
+            current = heap.poll();
+            if (current == null) return false;
+            current.buffer.read(current.position, key, value);
+            return true;
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public Progress getProgress() {
+            return progress;
+        }
+
+
+        private static class Cursor {
+
+            private final SortBuffer buffer;
+            private int position;
+
+            Cursor(SortBuffer buffer) {
+                this.buffer = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,616 @@
+package clash;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+import org.apache.hadoop.io.Text;
+
+import clash.DataCleaning.DataQuality;
+
+/**
+ * Single-pass extractor of the match fields used by the pipeline, working directly on the
+ * UTF-8 bytes of a raw JSON line: date, round, winner, players[].utag and players[].deck.
+ * Every other value is only scanned (and validated) to be skipped, no tree is built.
+ *
+ * Validation follows the former Jackson-tree checks: malformed JSON, missing fields,
+ * players not being an array of two objects, decks not being 16 characters long.
+ * Anything but whitespace after the root value is malformed JSON too.
+ * Decks must also be hex card codes and the date an ISO-8601 instant, as they are
+ * converted to a {@link MatchRecord}.
+ * The extractor is reused from one record to the next and does not allocate.
+ */
+public class MatchExtractor {
+
+    private static final byte[] DATE = bytes("date");
+    private static final byte[] ROUND = bytes("round");
+    private static final byte[] WINNER = bytes("winner");
+    private static final byte[] PLAYERS = bytes("players");
+    private static final byte[] UTAG = bytes("utag");
+    private static final byte[] DECK = bytes("deck");
+
+    private static final int DECK_LENGTH = 16;
+
+    private static final MalformedJsonException MALFORMED = new MalformedJsonException();
+
+    private byte[] buf;
+    private int pos;
+    private int end;
+
+    private boolean hasDate, hasRound, hasWinner, hasPlayers;
+    private boolean playersValid;
+    private int playerCount;
+    private final boolean[] hasUtag = new boolean[2];
+    private final boolean[] hasDeck = new boolean[2];
+    private final boolean[] deckIsString = new boolean[2];
+
+    private int round;
+    private int winner;
+    private long timestamp;
+    private final long[] packedDecks = new long[2];
+    private final Text date = new Text();
+    private final Text[] utags = { new Text(), new Text() };
+    private final Text[] decks = { new Text(), new Text() };
+    private byte[] scratch = new byte[64];
+    private int scratchLength;
+
+    /**
+     * Extracts the fields of one JSON record.
+     * @return null when the record is a valid match, the reason of the rejection otherwise
+     */
+    public DataQuality parse(byte[] bytes, int length) {
+        DataQuality rejection = scan(bytes, length);
+        return rejection != null ? rejection : validate();
+    }
+
+    /** First half of parse(): JSON scan and extraction of the raw field values. */
+    DataQuality scan(byte[] bytes, int length) {
+        buf = bytes;
+        pos = 0;
+        end = length;
+        reset();
+
+        try {
+            skipWhitespace();
+            if (pos >= end) {
+                return DataQuality.INVALID_JSON;
+            }
+            boolean isObject = buf[pos] == '{';
+            if (isObject) parseMatch(); else skipValue();
+            skipWhitespace();
+            if (pos < end) {
+                return DataQuality.INVALID_JSON; // content after the root value
+            }
+            if (!isObject) {
+                return DataQuality.INVALID_FIELDS;
+            }
+        } catch (MalformedJsonException e) {
+            return DataQuality.INVALID_JSON;
+        }
+        return null;
+    }
+
+    /** Second half of parse(): required fields, deck and date checks of a scanned record. */
+    DataQuality validate() {
+        if (!hasDate || !hasRound || !hasWinner || !hasPlayers || !playersValid || playerCount != 2) {
+            return DataQuality.INVALID_FIELDS;
+        }
+        for (int i = 0; i < 2; i++) {
+            if (!hasUtag[i] || !hasDeck[i]) {
+                return DataQuality.INVALID_FIELDS;
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            if (!deckIsString[i] || charLength(decks[i]) != DECK_LENGTH) {
+                return DataQuality.INVALID_DECK_SIZE;
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            if (!packDeck(i)) {
+                return DataQuality.INVALID_DECK_CARDS;
+            }
+        }
+        if (!parseTimestamp()) {
+            return DataQuality.INVALID_DATE;
+        }
+        return null;
+    }
+
+    /** Fills the given record with the last valid match (player tags are not copied). */
+    public MatchRecord toRecord(MatchRecord record) {
+        return record.set(timestamp, round, winner, packedDecks[0], packedDecks[1]);
+    }
+
+    public Text getDate() {
+        return date;
+    }
+
+    /** Match date in epoch millis. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getPackedDeck(int player) {
+        return packedDecks[player];
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public int getWinner() {
+        return winner;
+    }
+
+    public Text getUtag(int player) {
+        return utags[player];
+    }
+
+    public Text getDeck(int player) {
+        return decks[player];
+    }
+
+    private void reset() {
+        hasDate = hasRound = hasWinner = hasPlayers = false;
+        playersValid = false;
+        playerCount = 0;
+        for (int i = 0; i < 2; i++) {
+            hasUtag[i] = hasDeck[i] = deckIsString[i] = false;
+            utags[i].clear();
+            decks[i].clear();
+        }
+        date.clear();
+        round = 0;
+        winner = 0;
+        timestamp = 0;
+    }
+
+    private boolean packDeck(int player) {
+        byte[] bytes = decks[player].getBytes();
+        long packed = 0;
+        for (int i = 0; i < DECK_LENGTH; i++) {
+            int digit = Character.digit(bytes[i], 16);
+            if (digit < 0) return false;
+            packed = (packed << 4) | digit;
+        }
+        packedDecks[player] = packed;
+        return true;
+    }
+
+    /** Fast path for "yyyy-MM-ddTHH:mm:ssZ", Instant.parse for anything else. */
+    private boolean parseTimestamp() {
+        if (!hasDate) return false;
+        byte[] d = date.getBytes();
+        if (date.getLength() == 20 && d[4] == '-' && d[7] == '-' && d[10] == 'T'
+                && d[13] == ':' && d[16] == ':' && d[19] == 'Z') {
+            int year = digits(d, 0, 4);
+            int month = digits(d, 5, 2);
+            int day = digits(d, 8, 2);
+            int hour = digits(d, 11, 2);
+            int minute = digits(d, 14, 2);
+            int second = digits(d, 17, 2);
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 28
+                    && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                timestamp = (daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60 + second) * 1000L;
+                return true;
+            }
+        }
+        try {
+            timestamp = Instant.parse(date.toString()).toEpochMilli();
+            return true;
+        } catch (DateTimeParseException | ArithmeticException e) {
+            return false;
+        }
+    }
+
+    private static int digits(byte[] bytes, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /** Days since 1970-01-01 of a proleptic Gregorian date. */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private void parseMatch() throws MalformedJsonException {
+        pos++; // '{'
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            int keyStart = pos;
+            skipString();
+            int keyEnd = pos;
+            expectColon();
+
+            if (keyEquals(keyStart, keyEnd, DATE)) {
+                hasDate = true;
+                if (peek() == '"') readString(date); else skipValue();
+            } else if (keyEquals(keyStart, keyEnd, ROUND)) {
+                hasRound = true;
+                round = readInt();
+            } else if (keyEquals(keyStart, keyEnd, WINNER)) {
+                hasWinner = true;
+                winner = readInt();
+            } else if (keyEquals(keyStart, keyEnd, PLAYERS)) {
+                hasPlayers = true;
+                parsePlayers();
+            } else {
+                skipValue();
+            }
+
+            if (!nextMember('}')) return;
+        }
+    }
+
+    private void parsePlayers() throws MalformedJsonException {
+        playerCount = 0;
+        for (int i = 0; i < 2; i++) {
+            hasUtag[i] = hasDeck[i] = deckIsString[i] = false;
+        }
+        if (peek() != '[') {
+            playersValid = false;
+            skipValue();
+            return;
+        }
+        playersValid = true;
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+        while (true) {
+            if (playerCount < 2 && peek() == '{') {
+                parsePlayer(playerCount);
+            } else {
+                skipValue();
+            }
+            playerCount++;
+            if (!nextMember(']')) return;
+        }
+    }
+
+    private void parsePlayer(int player) throws MalformedJsonException {
+        pos++; // '{'
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            int keyStart = pos;
+            skipString();
+            int keyEnd = pos;
+            expectColon();
+
+            if (keyEquals(keyStart, keyEnd, UTAG)) {
+                hasUtag[player] = true;
+                if (peek() == '"') readString(utags[player]); else skipValue();
+            } else if (keyEquals(keyStart, keyEnd, DECK)) {
+                hasDeck[player] = true;
+                deckIsString[player] = peek() == '"';
+                if (deckIsString[player]) readString(decks[player]); else skipValue();
+            } else {
+                skipValue();
+            }
+
+            if (!nextMember('}')) return;
+        }
+    }
+
+    /** Consumes ',' (returns true) or the closing bracket (returns false). */
+    private boolean nextMember(char closing) throws MalformedJsonException {
+        skipWhitespace();
+        byte c = peek();
+        pos++;
+        if (c == ',') {
+            skipWhitespace();
+            return true;
+        }
+        if (c == closing) {
+            return false;
+        }
+        throw MALFORMED;
+    }
+
+    private void expectColon() throws MalformedJsonException {
+        skipWhitespace();
+        if (peek() != ':') throw MALFORMED;
+        pos++;
+        skipWhitespace();
+    }
+
+    /** Same semantics as JsonNode.asInt(): numbers are truncated, numeric strings parsed, anything else is 0 (true is 1). */
+    private int readInt() throws MalformedJsonException {
+        byte c = peek();
+        if (c == '-' || (c >= '0' && c <= '9')) {
+            int start = pos;
+            skipNumber();
+            if (indexOf(buf, start, pos, (byte) '.') >= 0 || indexOf(buf, start, pos, (byte) 'e') >= 0 || indexOf(buf, start, pos, (byte) 'E') >= 0) {
+                return (int) Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.US_ASCII));
+            }
+            return parseIntPrefix(buf, start, pos);
+        }
+        if (c == '"') {
+            readStringToScratch();
+            return parseIntPrefix(scratch, 0, scratchLength);
+        }
+        if (c == 't') {
+            skipValue();
+            return 1;
+        }
+        skipValue();
+        return 0;
+    }
+
+    private static int parseIntPrefix(byte[] bytes, int start, int stop) {
+        while (start < stop && bytes[start] == ' ') start++;
+        boolean negative = start < stop && bytes[start] == '-';
+        if (negative) start++;
+        if (start >= stop || bytes[start] < '0' || bytes[start] > '9') return 0;
+        long value = 0;
+        while (start < stop && bytes[start] >= '0' && bytes[start] <= '9') {
+            value = value * 10 + (bytes[start++] - '0');
+            if (value > Integer.MAX_VALUE) return 0;
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    private void skipValue() throws MalformedJsonException {
+        byte c = peek();
+        switch (c) {
+            case '{':
+                pos++;
+                skipWhitespace();
+                if (peek() == '}') {
+                    pos++;
+                    return;
+                }
+                do {
+                    skipString();
+                    expectColon();
+                    skipValue();
+                } while (nextMember('}'));
+                return;
+            case '[':
+                pos++;
+                skipWhitespace();
+                if (peek() == ']') {
+                    pos++;
+                    return;
+                }
+                do {
+                    skipValue();
+                } while (nextMember(']'));
+                return;
+            case '"':
+                skipString();
+                return;
+            case 't':
+                skipLiteral("true");
+                return;
+            case 'f':
+                skipLiteral("false");
+                return;
+            case 'n':
+                skipLiteral("null");
+                return;
+            default:
+                skipNumber();
+        }
+    }
+
+    private void skipLiteral(String literal) throws MalformedJsonException {
+        if (pos + literal.length() > end) throw MALFORMED;
+        for (int i = 0; i < literal.length(); i++) {
+            if (buf[pos + i] != literal.charAt(i)) throw MALFORMED;
+        }
+        pos += literal.length();
+    }
+
+    private void skipNumber() throws MalformedJsonException {
+        if (pos < end && buf[pos] == '-') pos++;
+        int digitsStart = pos;
+        skipDigits();
+        if (pos == digitsStart) throw MALFORMED;
+        if (buf[digitsStart] == '0' && pos - digitsStart > 1) throw MALFORMED; // leading zero
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            int fractionStart = pos;
+            skipDigits();
+            if (pos == fractionStart) throw MALFORMED;
+        }
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            if (pos < end && (buf[pos] == '+' || buf[pos] == '-')) pos++;
+            int exponentStart = pos;
+            skipDigits();
+            if (pos == exponentStart) throw MALFORMED;
+        }
+    }
+
+    private void skipDigits() {
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') pos++;
+    }
+
+    private void skipString() throws MalformedJsonException {
+        if (peek() != '"') throw MALFORMED;
+        pos++;
+        while (pos < end) {
+            byte c = buf[pos++];
+            if (c == '"') return;
+            if (c == '\\') {
+                skipEscape();
+            } else if (c >= 0 && c < 0x20) {
+                throw MALFORMED;
+            }
+        }
+        throw MALFORMED;
+    }
+
+    private void skipEscape() throws MalformedJsonException {
+        if (pos >= end) throw MALFORMED;
+        byte c = buf[pos++];
+        if (c == 'u') {
+            readHex4();
+        } else if (unescape(c) < 0) {
+            throw MALFORMED;
+        }
+    }
+
+    /** Reads a string value into target, decoding escapes when there are any. */
+    private void readString(Text target) throws MalformedJsonException {
+        int start = pos + 1;
+        skipString();
+        int stop = pos - 1;
+        if (indexOf(buf, start, stop, (byte) '\\') < 0) {
+            target.set(buf, start, stop - start);
+        } else {
+            pos = start - 1;
+            readStringToScratch();
+            target.set(scratch, 0, scratchLength);
+        }
+    }
+
+    private void readStringToScratch() throws MalformedJsonException {
+        int start = pos;
+        skipString();
+        int stop = pos - 1;
+        scratchLength = 0;
+        int i = start + 1;
+        while (i < stop) {
+            byte c = buf[i++];
+            if (c != '\\') {
+                appendScratch(c);
+                continue;
+            }
+            byte escaped = buf[i++];
+            if (escaped == 'u') {
+                int saved = pos;
+                pos = i;
+                int codePoint = readHex4();
+                pos = saved;
+                i += 4;
+                appendUtf8(codePoint);
+            } else {
+                appendScratch((byte) unescape(escaped));
+            }
+        }
+    }
+
+    private int readHex4() throws MalformedJsonException {
+        if (pos + 4 > end) throw MALFORMED;
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(buf[pos++], 16);
+            if (digit < 0) throw MALFORMED;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static int unescape(byte c) {
+        switch (c) {
+            case '"': return '"';
+            case '\\': return '\\';
+            case '/': return '/';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            default: return -1;
+        }
+    }
+
+    private void appendUtf8(int c) {
+        if (c < 0x80) {
+            appendScratch((byte) c);
+        } else if (c < 0x800) {
+            appendScratch((byte) (0xC0 | (c >> 6)));
+            appendScratch((byte) (0x80 | (c & 0x3F)));
+        } else {
+            appendScratch((byte) (0xE0 | (c >> 12)));
+            appendScratch((byte) (0x80 | ((c >> 6) & 0x3F)));
+            appendScratch((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    private void appendScratch(byte b) {
+        if (scratchLength == scratch.length) {
+            byte[] grown = new byte[scratch.length * 2];
+            System.arraycopy(scratch, 0, grown, 0, scratchLength);
+            scratch = grown;
+        }
+        scratch[scratchLength++] = b;
+    }
+
+    private boolean keyEquals(int keyStart, int keyEnd, byte[] name) {
+        int length = keyEnd - keyStart - 2; // without quotes
+        if (length != name.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buf[keyStart + 1 + i] != name[i]) return false;
+        }
+        return true;
+    }
+
+    private byte peek() throws MalformedJsonException {
+        if (pos >= end) throw MALFORMED;
+        return buf[pos];
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return;
+            pos++;
+        }
+    }
+
+    /** Length in UTF-16 chars, as String.length() would report. */
+    private static int charLength(Text text) {
+        byte[] bytes = text.getBytes();
+        int length = 0;
+        for (int i = 0; i < text.getLength(); i++) {
+            int b = bytes[i] & 0xFF;
+            if ((b & 0xC0) != 0x80) length++;
+            if (b >= 0xF0) length++; // surrogate pair
+        }
+        return length;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int stop, byte b) {
+        for (int i = start; i < stop; i++) {
+            if (bytes[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    private static class MalformedJsonException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException() {
+            super("Malformed JSON", null, false, false);
+        }
+    }
+}
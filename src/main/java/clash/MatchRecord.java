@@ -0,0 +1,155 @@
+package clash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Cleaned match, as written by the cleaning job and read by the graph job.
+ *
+ * Fixed layout (27 bytes without tags): timestamp in epoch millis, round (vint),
+ * winner (0, 1, or -1 when neither player won), the two decks packed as in
+ * {@link Decks} in player order, then a flags byte (tags present, history record) and,
+ * when set, the two player tags.
+ *
+ * History records are matches of the previous batch, read back by an append run only to
+ * deduplicate the new batch against them; they are never written out again.
+ */
+public class MatchRecord implements Writable {
+
+    private static final byte TAGS = 1;
+    private static final byte HISTORY = 2;
+
+    private long timestamp;
+    private int round;
+    private byte winner;
+    private long deck1;
+    private long deck2;
+    private boolean hasTags;
+    private boolean history;
+    private final Text utag1 = new Text();
+    private final Text utag2 = new Text();
+
+    public MatchRecord() {}
+
+    public MatchRecord(MatchRecord other) {
+        set(other);
+    }
+
+    public MatchRecord set(long timestamp, int round, int winner, long deck1, long deck2) {
+        this.timestamp = timestamp;
+        this.round = round;
+        this.winner = (byte) (winner == 0 || winner == 1 ? winner : -1);
+        this.deck1 = deck1;
+        this.deck2 = deck2;
+        this.hasTags = false;
+        this.history = false;
+        return this;
+    }
+
+    public MatchRecord set(MatchRecord other) {
+        set(other.timestamp, other.round, other.winner, other.deck1, other.deck2);
+        if (other.hasTags) {
+            setTags(other.utag1, other.utag2);
+        }
+        history = other.history;
+        return this;
+    }
+
+    public void setTags(Text player1Tag, Text player2Tag) {
+        utag1.set(player1Tag);
+        utag2.set(player2Tag);
+        hasTags = true;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    /** 0 or 1 for the winning player, -1 otherwise. */
+    public int getWinner() {
+        return winner;
+    }
+
+    public long getDeck(int player) {
+        return player == 0 ? deck1 : deck2;
+    }
+
+    public boolean hasTags() {
+        return hasTags;
+    }
+
+    public boolean isHistory() {
+        return history;
+    }
+
+    public void setHistory(boolean history) {
+        this.history = history;
+    }
+
+    public Text getUtag(int player) {
+        return player == 0 ? utag1 : utag2;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(timestamp);
+        WritableUtils.writeVInt(out, round);
+        out.writeByte(winner);
+        out.writeLong(deck1);
+        out.writeLong(deck2);
+        out.writeByte((hasTags ? TAGS : 0) | (history ? HISTORY : 0));
+        if (hasTags) {
+            utag1.write(out);
+            utag2.write(out);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        timestamp = in.readLong();
+        round = WritableUtils.readVInt(in);
+        winner = in.readByte();
+        deck1 = in.readLong();
+        deck2 = in.readLong();
+        byte flags = in.readByte();
+        hasTags = (flags & TAGS) != 0;
+        history = (flags & HISTORY) != 0;
+        if (hasTags) {
+            utag1.readFields(in);
+            utag2.readFields(in);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MatchRecord)) return false;
+        MatchRecord other = (MatchRecord) o;
+        return timestamp == other.timestamp && round == other.round && winner == other.winner
+            && deck1 == other.deck1 && deck2 == other.deck2 && hasTags == other.hasTags && history == other.history
+            && (!hasTags || (utag1.equals(other.utag1) && utag2.equals(other.utag2)));
+    }
+
+    @Override
+    public int hashCode() {
+        long h = timestamp * 31 + round;
+        h = h * 31 + winner;
+        h = h * 31 + deck1;
+        h = h * 31 + deck2;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return timestamp + ";" + round + ";" + winner + ";" + Decks.toHex(deck1, 8) + ";" + Decks.toHex(deck2, 8)
+            + (hasTags ? ";" + utag1 + ";" + utag2 : "");
+    }
+}
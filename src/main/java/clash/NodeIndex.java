@@ -0,0 +1,279 @@
+package clash;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+/**
+ * Sorted binary index of the node counts produced by the graph job, built from all of
+ * its reducer parts and memory-mapped by the readers.
+ *
+ * Layout (big-endian):
+ *   header: magic, version (2 ints), then for each size 0..8: total count of the size,
+ *           index of its first entry, number of entries (3 longs)
+ *   entries: (packed archetype, count) pairs of longs, grouped by size and sorted by
+ *           archetype (unsigned) within a size
+ */
+public class NodeIndex implements Closeable {
+
+    public static final String FILE_NAME = "nodes.idx";
+
+    private static final int MAGIC = 0x43524e49; // "CRNI"
+    private static final int VERSION = 1;
+    private static final int MAX_SIZE = 8;
+    private static final int HEADER_BYTES = 8 + (MAX_SIZE + 1) * 24;
+    private static final int ENTRY_BYTES = 16;
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final long[] totals = new long[MAX_SIZE + 1];
+    private final long[] firstEntries = new long[MAX_SIZE + 1];
+    private final long[] entryCounts = new long[MAX_SIZE + 1];
+
+    private NodeIndex(File localFile) throws IOException {
+        file = new RandomAccessFile(localFile, "r");
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+
+        int segmentCount = (int) ((length + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+        segments = new MappedByteBuffer[Math.max(1, segmentCount)];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = i * SEGMENT_BYTES;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_BYTES, length - start));
+        }
+
+        ByteBuffer header = segments[0];
+        if (length < HEADER_BYTES || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            file.close();
+            throw new IOException("Not a node index: " + localFile);
+        }
+        for (int size = 0; size <= MAX_SIZE; size++) {
+            int offset = 8 + size * 24;
+            totals[size] = header.getLong(offset);
+            firstEntries[size] = header.getLong(offset + 8);
+            entryCounts[size] = header.getLong(offset + 16);
+        }
+    }
+
+    /** Memory-maps a local index file. */
+    public static NodeIndex open(File localFile) throws IOException {
+        return new NodeIndex(localFile);
+    }
+
+    /** Reads the per-size totals from the header of an index, without mapping it. */
+    public static long[] readTotals(Configuration conf, Path index) throws IOException {
+        long[] totals = new long[MAX_SIZE + 1];
+        try (FSDataInputStream in = index.getFileSystem(conf).open(index)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a node index: " + index);
+            }
+            for (int size = 0; size <= MAX_SIZE; size++) {
+                totals[size] = in.readLong();
+                in.readLong();
+                in.readLong();
+            }
+        }
+        return totals;
+    }
+
+    /** Sum of the counts of all archetypes of the given size. */
+    public long getTotal(int size) {
+        return totals[size];
+    }
+
+    public long getEntryCount(int size) {
+        return entryCounts[size];
+    }
+
+    /** Count of the archetype, 0 when it is not in the index. */
+    public long getCount(int size, long archetype) {
+        long lo = firstEntries[size];
+        long hi = lo + entryCounts[size] - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            int cmp = Long.compareUnsigned(archetypeAt(mid), archetype);
+            if (cmp == 0) return countAt(mid);
+            if (cmp < 0) lo = mid + 1; else hi = mid - 1;
+        }
+        return 0;
+    }
+
+    long archetypeAt(long entry) {
+        long position = HEADER_BYTES + entry * ENTRY_BYTES;
+        return segments[(int) (position / SEGMENT_BYTES)].getLong((int) (position % SEGMENT_BYTES));
+    }
+
+    long countAt(long entry) {
+        long position = HEADER_BYTES + entry * ENTRY_BYTES + 8;
+        return segments[(int) (position / SEGMENT_BYTES)].getLong((int) (position % SEGMENT_BYTES));
+    }
+
+    long getFirstEntry(int size) {
+        return firstEntries[size];
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+
+    public static void build(Configuration conf, Path nodesDir, Path output) throws IOException {
+        build(conf, nodesDir, output, 0);
+    }
+
+    /**
+     * Merges the sorted "archetype;count;win" node files of the graph job (every size=k
+     * directory) into one index. Every part is already sorted by the reducer (size, then
+     * archetype), so the parts are merged in a single streaming pass; the index is written
+     * locally, then copied to output.
+     * Nodes counted less than minCount are left out of the entries, not of the totals.
+     */
+    public static void build(Configuration conf, Path nodesDir, Path output, long minCount) throws IOException {
+        FileSystem fs = nodesDir.getFileSystem(conf);
+        List<FileStatus> parts = new ArrayList<>();
+        for (Path partition : NodesEdges.sizePartitions(conf, nodesDir, null)) {
+            FileStatus[] partitionParts = fs.globStatus(new Path(partition, "part-*"));
+            if (partitionParts != null) {
+                parts.addAll(Arrays.asList(partitionParts));
+            }
+        }
+        if (parts.isEmpty()) {
+            throw new IOException("No node files found in " + nodesDir);
+        }
+
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf); // parts written with -compressText
+        PriorityQueue<NodeFileCursor> cursors = new PriorityQueue<>();
+        List<NodeFileCursor> opened = new ArrayList<>();
+        File localFile = File.createTempFile("nodes-", ".idx");
+        try {
+            for (FileStatus part : parts) {
+                InputStream in = fs.open(part.getPath());
+                CompressionCodec codec = codecs.getCodec(part.getPath());
+                if (codec != null) {
+                    in = codec.createInputStream(in);
+                }
+                NodeFileCursor cursor = new NodeFileCursor(
+                    new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+                opened.add(cursor);
+                if (cursor.advance()) cursors.add(cursor);
+            }
+
+            long[] totals = new long[MAX_SIZE + 1];
+            long[] firstEntries = new long[MAX_SIZE + 1];
+            long[] entryCounts = new long[MAX_SIZE + 1];
+
+            try (RandomAccessFile out = new RandomAccessFile(localFile, "rw")) {
+                out.setLength(0);
+                out.write(new byte[HEADER_BYTES]);
+
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long entry = 0;
+                int previousSize = -1;
+                long previousArchetype = 0;
+                while (!cursors.isEmpty()) {
+                    NodeFileCursor cursor = cursors.poll();
+                    int size = cursor.size;
+                    long archetype = cursor.archetype;
+
+                    if (size < previousSize || (size == previousSize && Long.compareUnsigned(archetype, previousArchetype) <= 0)) {
+                        throw new IOException("Node files are not sorted at " + Decks.toHex(archetype, size));
+                    }
+                    if (size != previousSize) {
+                        firstEntries[size] = entry;
+                    }
+                    previousSize = size;
+                    previousArchetype = archetype;
+                    totals[size] += cursor.count;
+                    if (cursor.count < minCount) {
+                        if (cursor.advance()) cursors.add(cursor);
+                        continue;
+                    }
+                    entryCounts[size]++;
+
+                    if (buffer.remaining() < ENTRY_BYTES) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+                    buffer.putLong(archetype).putLong(cursor.count);
+
+                    entry++;
+                    if (cursor.advance()) cursors.add(cursor);
+                }
+                out.write(buffer.array(), 0, buffer.position());
+
+                out.seek(0);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (int size = 0; size <= MAX_SIZE; size++) {
+                    out.writeLong(totals[size]);
+                    out.writeLong(firstEntries[size]);
+                    out.writeLong(entryCounts[size]);
+                }
+            }
+
+            output.getFileSystem(conf).copyFromLocalFile(true, true, new Path(localFile.getAbsolutePath()), output);
+        } finally {
+            for (NodeFileCursor cursor : opened) {
+                cursor.reader.close();
+            }
+            localFile.delete();
+        }
+    }
+
+
+    private static class NodeFileCursor implements Comparable<NodeFileCursor> {
+
+        private final BufferedReader reader;
+        private int size;
+        private long archetype;
+        private long count;
+
+        NodeFileCursor(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        boolean advance() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int firstSeparator = line.indexOf(';');
+                int secondSeparator = line.indexOf(';', firstSeparator + 1);
+                if (firstSeparator < 0 || secondSeparator < 0) continue;
+
+                String hex = line.substring(0, firstSeparator);
+                size = hex.length() / 2;
+                archetype = Decks.pack(hex);
+                count = Long.parseLong(line.substring(firstSeparator + 1, secondSeparator));
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int compareTo(NodeFileCursor other) {
+            int cmp = Integer.compare(size, other.size);
+            return cmp != 0 ? cmp : Long.compareUnsigned(archetype, other.archetype);
+        }
+    }
+}
@@ -1,250 +1,601 @@
 package clash;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
-import org.apache.htrace.fasterxml.jackson.databind.JsonNode;
-import org.apache.htrace.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+
+import clash.PhaseTimers.PhaseNanos;
 
 public class NodesEdges {
-    
+
+    public enum InMapperAggregation {
+        FLUSHES,
+        FLUSHED_RECORDS,
+    }
+
+    public enum ArchetypeCacheStats {
+        HITS,
+        MISSES,
+    }
+
+    public enum ApproximateEdges {
+        SKETCHED_EDGES,
+        TRACKED_EDGES,
+        UNTRACKED_EDGES,   // edge matches only counted in the sketch
+        TRACKED_KEYS,      // distinct edges tracked, summed over the mappers
+        TRACKED_SET_FULL,  // mappers whose tracked set filled up (their slack is their total)
+        SKETCH_CELLS,
+    }
+
+    public enum AppendMerge {
+        UPDATED_KEYS, // in the previous output and in the batch
+        NEW_KEYS,     // in the batch only
+        KEPT_KEYS,    // rewritten as is, in a partition the batch touched
+    }
+
 
     public static class NodesEdgesMapper
-        extends Mapper<NullWritable, Text, Text, Text>{
+        extends Mapper<NullWritable, MatchRecord, ArchetypeKey, CountWin>{
 
-        private final ObjectMapper objectMapper = new ObjectMapper();
+        private final ArchetypeKey outKey = new ArchetypeKey();
+        private final CountWin win = new CountWin(1, 1);
+        private final CountWin loss = new CountWin(1, 0);
+        private final CountWin draw = new CountWin(1, 0, 1); // edges only, a node draw is a loss
         private int minArchetypeSize;
+        private CountWinTable aggregationTable; // null when in-mapper combining is off
+        private boolean emitNodes;
+        private boolean emitEdges;
+        private NodeIndex edgeFilter; // qualifying nodes of the pre-pass, null when edges are not filtered
+        private ArchetypeCache archetypeCache; // null when the deck cache is off
+        private EdgeSketch[] sketches; // by archetype size, null unless -approx
+        private long trackedEdges;
+        private long untrackedEdges;
+        private final long[] player1AllArchetypes = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+        private final long[] player2AllArchetypes = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+        private final boolean[] player1Qualifies = new boolean[ArchetypeEnumerator.MAX_ARCHETYPES];
+        private final boolean[] player2Qualifies = new boolean[ArchetypeEnumerator.MAX_ARCHETYPES];
+        private PhaseTimers timers;
 
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
+            timers = new PhaseTimers(context.getConfiguration());
             minArchetypeSize = context.getConfiguration().getInt("clash.archetype.min.size", 8);
+            emitNodes = context.getConfiguration().getBoolean("clash.graph.emit.nodes", true);
+            emitEdges = context.getConfiguration().getBoolean("clash.graph.emit.edges", true);
+            if (context.getConfiguration().getBoolean("clash.graph.edge.filter", false)) {
+                long time = timers.start();
+                edgeFilter = NodeIndex.open(new File("nodes-filter"));
+                timers.stop(PhaseNanos.CACHE_LOAD, time);
+            }
+            if (context.getConfiguration().getBoolean("clash.inmapper.enabled", false)) {
+                long budgetBytes = context.getConfiguration().getLong("clash.inmapper.memory.mb", 64) << 20;
+                aggregationTable = new CountWinTable(budgetBytes);
+            }
+            int cacheSize = context.getConfiguration().getInt("clash.archetype.cache.size", 4096);
+            if (cacheSize > 0) {
+                archetypeCache = new ArchetypeCache(cacheSize, minArchetypeSize);
+            }
+            if (emitEdges && context.getConfiguration().getBoolean("clash.graph.approx", false)) {
+                sketches = new EdgeSketch[9];
+                for (int size = minArchetypeSize; size <= 8; size++) {
+                    sketches[size] = new EdgeSketch(context.getConfiguration(), true);
+                }
+            }
         }
         
         @Override
         protected void map(
-            NullWritable key, Text value, Context context
+            NullWritable key, MatchRecord match, Context context
         ) throws IOException, InterruptedException {
 
-            String jsonLine = value.toString();
-            JsonNode matchNode = parseJson(jsonLine);
-            if (matchNode == null) return; // invalid JSON format
-
-            JsonNode player1Node = matchNode.get("players").get(0);
-            JsonNode player2Node = matchNode.get("players").get(1);
-
-            int winnerIndex = matchNode.get("winner").asInt();
+            int winnerIndex = match.getWinner();
             boolean player1Wins = (winnerIndex == 0);
             boolean player2Wins = (winnerIndex == 1);
+            CountWin player1Edge = player1Wins ? win : player2Wins ? loss : draw;
+            CountWin player2Edge = player2Wins ? win : player1Wins ? loss : draw;
             
-            String player1SortedDeck = sortDeckCards(player1Node.get("deck").asText());
-            String player2SortedDeck = sortDeckCards(player2Node.get("deck").asText());
-
-            // DEBUT RECURCIF
-            // List<List<String>> player1AllArchetypes = new ArrayList<>();
-            // for (int i = 0; i < 8; i++) player1AllArchetypes.add(new ArrayList<>());
-
-            // List<List<String>> player2AllArchetypes = new ArrayList<>();
-            // for (int i = 0; i < 8; i++) player2AllArchetypes.add(new ArrayList<>());
-
-            // List<String> cardsList1 = new ArrayList<>();
-            // for (int i = 0; i < 8; i++) {
-            //     cardsList1.add(player1SortedDeck.substring(i * 2, i * 2 + 2));
-            // }
-
-            // List<String> cardsList2 = new ArrayList<>();
-            // for (int i = 0; i < 8; i++) {
-            //     cardsList2.add(player2SortedDeck.substring(i * 2, i * 2 + 2));
-            // }
-
-            // generateSubDecks(cardsList1, minArchetypeSize, 0, new ArrayList<>(), player1AllArchetypes);
-            // generateSubDecks(cardsList2, minArchetypeSize, 0, new ArrayList<>(), player2AllArchetypes);
-            // FIN RECURCIF
+            long time = timers.start();
+            long[] player1Archetypes = archetypesOf(match.getDeck(0), player1AllArchetypes);
+            long[] player2Archetypes = archetypesOf(match.getDeck(1), player2AllArchetypes);
+            time = timers.stop(PhaseNanos.ENUMERATE, time);
 
             for (int size = minArchetypeSize; size <= 8; size++) {
-                List<String> player1Archetypes = getArchetypesOfSize(player1SortedDeck, size);
-                List<String> player2Archetypes = getArchetypesOfSize(player2SortedDeck, size);
+                int from = ArchetypeEnumerator.offsetOfSize(minArchetypeSize, size);
+                int to = from + ArchetypeEnumerator.countOfSize(size);
 
-                // DEBUT RECURCIF
-                // List<String> player1Archetypes = player1AllArchetypes.get(size-1);
-                // List<String> player2Archetypes = player2AllArchetypes.get(size-1);
-                // FIN RECURCIF
-
-                
                 // Nodes
-                for (String archetype : player1Archetypes) {
-                    context.write(new Text("N" + archetype), new Text(player1Wins ? "1" : "0"));
-                }
-                for (String archetype : player2Archetypes) {
-                    context.write(new Text("N" + archetype), new Text(player2Wins ? "1" : "0"));
+                if (emitNodes) {
+                    for (int i = from; i < to; i++) {
+                        emit(outKey.setNode(size, player1Archetypes[i]), player1Wins ? win : loss, context);
+                    }
+                    for (int i = from; i < to; i++) {
+                        emit(outKey.setNode(size, player2Archetypes[i]), player2Wins ? win : loss, context);
+                    }
                 }
 
                 // Edges
-                for (String archetype1 : player1Archetypes) {
-                    for (String archetype2 : player2Archetypes) {
-                        if (archetype1.compareTo(archetype2) < 0) {
-                            context.write(new Text("E" + archetype1 + ";" + archetype2), new Text(player1Wins ? "1" : "0"));
+                if (!emitEdges) continue;
+                if (edgeFilter != null) {
+                    filterArchetypes(size, player1Archetypes, from, to, player1Qualifies);
+                    filterArchetypes(size, player2Archetypes, from, to, player2Qualifies);
+                }
+                for (int i = from; i < to; i++) {
+                    if (edgeFilter != null && !player1Qualifies[i]) continue;
+                    long archetype1 = player1Archetypes[i];
+                    for (int j = from; j < to; j++) {
+                        if (edgeFilter != null && !player2Qualifies[j]) continue;
+                        long archetype2 = player2Archetypes[j];
+                        if (Long.compareUnsigned(archetype1, archetype2) < 0) {
+                            emitEdge(size, archetype1, archetype2, player1Edge, context);
                         } else {
-                            context.write(new Text("E" + archetype2 + ";" + archetype1), new Text(player2Wins ? "1" : "0"));
+                            emitEdge(size, archetype2, archetype1, player2Edge, context);
                         }
                     }
                 }
             }
+            timers.stop(PhaseNanos.EMIT, time);
         }
 
-        
-        private JsonNode parseJson(String content) {
-            if (content == null || content.trim().isEmpty()) {
-                return null;
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (aggregationTable != null) {
+                long time = timers.start();
+                flushAggregationTable(context);
+                timers.stop(PhaseNanos.EMIT, time);
+            }
+            if (sketches != null) {
+                long time = timers.start();
+                writeSketches(context);
+                timers.stop(PhaseNanos.EMIT, time);
+            }
+            timers.report(context);
+            if (edgeFilter != null) {
+                edgeFilter.close();
             }
+            if (archetypeCache != null) {
+                context.getCounter(ArchetypeCacheStats.HITS).increment(archetypeCache.getHits());
+                context.getCounter(ArchetypeCacheStats.MISSES).increment(archetypeCache.getMisses());
+            }
+        }
 
-            try {
-                return objectMapper.readTree(content);
-            } catch (Exception e) {
-                return null;
+        // the cached array is shared by every match of the same deck, and must stay read-only
+        private long[] archetypesOf(long deck, long[] buffer) {
+            long sortedDeck = ArchetypeEnumerator.sortDeckCards(deck);
+            if (archetypeCache != null) {
+                return archetypeCache.get(sortedDeck);
             }
+            ArchetypeEnumerator.enumerate(sortedDeck, minArchetypeSize, buffer);
+            return buffer;
         }
 
-        private String sortDeckCards(String deck) {
-            String[] cards = new String[8];
-            for (int i = 0; i < 8; i++) {
-                cards[i] = deck.substring(i * 2, i * 2 + 2);
+        // the filter only holds nodes that pass the Stats count threshold
+        private void filterArchetypes(int size, long[] archetypes, int from, int to, boolean[] qualifies) {
+            for (int i = from; i < to; i++) {
+                qualifies[i] = edgeFilter.getCount(size, archetypes[i]) > 0;
             }
-            Arrays.sort(cards);
-            return String.join("", cards);
         }
 
-        private List<String> getArchetypesOfSize(String sortedDeck, int targetSize) {
-            List<String> archetypes = new ArrayList<>();
-            
-            String[] cards = new String[8];
-            for (int i = 0; i < 8; i++) cards[i] = sortedDeck.substring(i * 2, i * 2 + 2);
-
-            int maxCombinations = 1 << 8; // 256
-            for (int mask = 0; mask < maxCombinations; mask++) {
-                
-                if (Integer.bitCount(mask) != targetSize) continue;
-
-                StringBuilder sb = new StringBuilder();
-                for (int j = 0; j < 8; j++) {
-                    if ((mask & (1 << j)) != 0) {
-                        sb.append(cards[j]);
-                    }
+        // approximate mode: an edge only reaches the shuffle once its sketch estimate says it is heavy
+        private void emitEdge(int size, long archetype1, long archetype2, CountWin result, Context context)
+                throws IOException, InterruptedException {
+            if (sketches != null) {
+                if (!sketches[size].add(archetype1, archetype2, result == win)) {
+                    untrackedEdges++;
+                    return;
+                }
+                trackedEdges++;
+            }
+            emit(outKey.setEdge(size, archetype1, archetype2), result, context);
+        }
+
+        // each reducer of a size gets its own replica of the sketch of the size
+        private void writeSketches(Context context) throws IOException, InterruptedException {
+            ArchetypeKey.SizePartitioner<CountWin> partitioner = new ArchetypeKey.SizePartitioner<>();
+            partitioner.setConf(context.getConfiguration());
+            long sketchedEdges = 0;
+            long trackedKeys = 0;
+            long cells = 0;
+            for (int size = minArchetypeSize; size <= 8; size++) {
+                sketchedEdges += sketches[size].getTotal();
+                trackedKeys += sketches[size].getTrackedCount();
+                int replicas = Math.max(1, partitioner.partitionsOfSize(size, context.getNumReduceTasks()));
+                cells += sketches[size].write(size, replicas, context);
+                if (sketches[size].isTrackedFull()) {
+                    context.getCounter(ApproximateEdges.TRACKED_SET_FULL).increment(1);
                 }
-                archetypes.add(sb.toString());
-            }
-            return archetypes;
-        }
-
-        // private void generateSubDecks(List<String> sortedCards, int minSize, int start, List<String> current, List<List<String>> result) {
-        //     int currentSize = current.size();
-        //     if (currentSize >= minSize) {
-        //         StringBuilder subDeck = new StringBuilder();
-        //         for (String card : current) {
-        //             subDeck.append(card);
-        //         }
-        //         result.get(currentSize - 1).add(subDeck.toString());
-        //     }
-        //     if (currentSize == 8) {
-        //         return;
-        //     }
-
-        //     for (int i = start; i < sortedCards.size(); i++) {
-        //         current.add(sortedCards.get(i));
-        //         generateSubDecks(sortedCards, minSize, i + 1, current, result);
-        //         current.remove(current.size() - 1);
-        //     }
-        // }
+            }
+            context.getCounter(ApproximateEdges.SKETCHED_EDGES).increment(sketchedEdges);
+            context.getCounter(ApproximateEdges.TRACKED_EDGES).increment(trackedEdges);
+            context.getCounter(ApproximateEdges.UNTRACKED_EDGES).increment(untrackedEdges);
+            context.getCounter(ApproximateEdges.TRACKED_KEYS).increment(trackedKeys);
+            context.getCounter(ApproximateEdges.SKETCH_CELLS).increment(cells);
+        }
+
+        private void emit(ArchetypeKey archetypeKey, CountWin result, Context context) throws IOException, InterruptedException {
+            if (aggregationTable == null) {
+                context.write(archetypeKey, result);
+                return;
+            }
+            if (aggregationTable.add(archetypeKey, 1, result.getWins(), result.getDraws())) {
+                flushAggregationTable(context);
+            }
+        }
+
+        private void flushAggregationTable(Context context) throws IOException, InterruptedException {
+            context.getCounter(InMapperAggregation.FLUSHES).increment(1);
+            context.getCounter(InMapperAggregation.FLUSHED_RECORDS).increment(aggregationTable.size());
+            aggregationTable.flush(context);
+        }
     }
     
 
 
+    /**
+     * Append runs: reads back the "archetype;count;wins" node lines and "source;target;count;wins;draws"
+     * edge lines of a graph output, so that existing aggregates and the deltas of a new batch
+     * are summed by the same combiner and reducer. An edge line without draws comes from an
+     * output written before they were counted: it has none.
+     */
+    public static class AggregateLineMapper
+        extends Mapper<LongWritable, Text, ArchetypeKey, CountWin> {
+
+        private final ArchetypeKey outKey = new ArchetypeKey();
+        private final CountWin countWin = new CountWin();
+
+        @Override
+        protected void map(
+            LongWritable key, Text value, Context context
+        ) throws IOException, InterruptedException {
+
+            String[] parts = value.toString().split(";");
+            int size = parts[0].length() / 2;
+            if (parts.length == 3) {
+                outKey.setNode(size, Decks.pack(parts[0]));
+                countWin.set(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            } else if (parts.length == 4 || parts.length == 5) {
+                outKey.setEdge(size, Decks.pack(parts[0]), Decks.pack(parts[1]));
+                countWin.set(Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts.length == 5 ? Long.parseLong(parts[4]) : 0);
+            } else {
+                return;
+            }
+            context.write(outKey, countWin);
+        }
+    }
+
+
+
+    /**
+     * Append merge of one partition, given as "kind/size=k/part-r-NNNNN<TAB>previous part<TAB>
+     * batch part" (the previous part is empty for a new partition). Both parts come from
+     * reducers with the same layout, so they hold the same keys, sorted: one streaming pass
+     * sums the counts of the keys found in both. The merged part keeps its relative name in
+     * the job output, for the next append.
+     */
+    public static class SortedMergeMapper
+        extends Mapper<LongWritable, Text, NullWritable, Text> {
+
+        private CompressionCodecFactory codecs;
+
+        @Override
+        protected void setup(Context context) {
+            codecs = new CompressionCodecFactory(context.getConfiguration());
+        }
+
+        @Override
+        protected void map(
+            LongWritable key, Text value, Context context
+        ) throws IOException, InterruptedException {
+
+            String[] fields = value.toString().split("\t", -1);
+            Path output = new Path(FileOutputFormat.getWorkOutputPath(context), fields[0]);
+            try (LineCursor previous = new LineCursor(fields[1].isEmpty() ? null : new Path(fields[1]), context.getConfiguration());
+                 LineCursor batch = new LineCursor(new Path(fields[2]), context.getConfiguration());
+                 Writer out = create(output, context.getConfiguration())) {
+
+                previous.next();
+                batch.next();
+                while (previous.key != null || batch.key != null) {
+                    int cmp = previous.key == null ? 1 : batch.key == null ? -1 : previous.key.compareTo(batch.key);
+                    if (cmp < 0) {
+                        previous.write(out, null);
+                        context.getCounter(AppendMerge.KEPT_KEYS).increment(1);
+                        previous.next();
+                    } else if (cmp > 0) {
+                        batch.write(out, null);
+                        context.getCounter(AppendMerge.NEW_KEYS).increment(1);
+                        batch.next();
+                    } else {
+                        previous.write(out, batch);
+                        context.getCounter(AppendMerge.UPDATED_KEYS).increment(1);
+                        previous.next();
+                        batch.next();
+                    }
+                }
+            }
+        }
+
+        private Writer create(Path file, Configuration conf) throws IOException {
+            OutputStream out = file.getFileSystem(conf).create(file, false);
+            CompressionCodec codec = codecs.getCodec(file);
+            if (codec != null) {
+                out = codec.createOutputStream(out);
+            }
+            return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Reads the "archetype;count;wins" or "source;target;count;wins;draws" lines of a part in
+         * order (edge lines without draws as in AggregateLineMapper).
+         */
+        private class LineCursor implements Closeable {
+
+            private final BufferedReader reader;
+            private ArchetypeKey key; // null at the end
+            private final ArchetypeKey current = new ArchetypeKey();
+            private String line;
+            private long count;
+            private long wins;
+            private long draws;
+
+            LineCursor(Path file, Configuration conf) throws IOException {
+                if (file == null) {
+                    reader = null;
+                    return;
+                }
+                InputStream in = file.getFileSystem(conf).open(file);
+                CompressionCodec codec = codecs.getCodec(file);
+                if (codec != null) {
+                    in = codec.createInputStream(in);
+                }
+                reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+
+            void next() throws IOException {
+                line = reader == null ? null : reader.readLine();
+                if (line == null) {
+                    key = null;
+                    return;
+                }
+                String[] parts = line.split(";");
+                int size = parts[0].length() / 2;
+                key = parts.length == 3
+                    ? current.setNode(size, Decks.pack(parts[0]))
+                    : current.setEdge(size, Decks.pack(parts[0]), Decks.pack(parts[1]));
+                int values = parts.length == 3 ? 1 : 2;
+                count = Long.parseLong(parts[values]);
+                wins = Long.parseLong(parts[values + 1]);
+                draws = parts.length == 5 ? Long.parseLong(parts[4]) : 0;
+            }
+
+            // sums the values of the same key in other, when not null
+            void write(Writer out, LineCursor other) throws IOException {
+                out.write(key.toString());
+                out.write(';');
+                out.write(Long.toString(other == null ? count : count + other.count));
+                out.write(';');
+                out.write(Long.toString(other == null ? wins : wins + other.wins));
+                if (key.isEdge()) {
+                    out.write(';');
+                    out.write(Long.toString(other == null ? draws : draws + other.draws));
+                }
+                out.write('\n');
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (reader != null) reader.close();
+            }
+        }
+    }
+
+
+
     public static class NodesEdgesCombiner
-        extends Reducer<Text,Text,Text,Text> {
+        extends Reducer<ArchetypeKey,CountWin,ArchetypeKey,CountWin> {
+
+        private final CountWin total = new CountWin();
 
         @Override
         protected void reduce(
-            Text key, Iterable<Text> values, Context context
+            ArchetypeKey key, Iterable<CountWin> values, Context context
         ) throws IOException, InterruptedException {
 
-            if (!isNodeKey(key) && !isEdgeKey(key)) return;
+            total.set(0, 0);
+            for (CountWin val : values) {
+                total.add(val);
+            }
 
-            int count = 0;
-            int win = 0;
+            context.write(key, total);
+        }
+    }
+
+
+
+    // marks a graph output built with -prefilter, whose edges below the Stats threshold were never counted
+    public static final String PREFILTER_FILE = "_prefilter";
+
+    // partitioning of a graph output (see writeLayout)
+    public static final String LAYOUT_FILE = "_layout";
+
+    /**
+     * Records how the parts of a graph output are partitioned: reducers, minimum archetype
+     * size and partitioner. An append run builds its delta with the same ones, so that the
+     * part-r-NNNNN of a size=k directory holds the same keys in both, and merges them file by
+     * file (SortedMergeMapper).
+     */
+    public static void writeLayout(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        Properties layout = new Properties();
+        layout.setProperty("reducers", Integer.toString(job.getNumReduceTasks()));
+        layout.setProperty("minSize", Integer.toString(conf.getInt("clash.archetype.min.size", 8)));
+        layout.setProperty("partitioner", conf.get(MRJobConfig.PARTITIONER_CLASS_ATTR, HashPartitioner.class.getName()));
+        Path file = new Path(FileOutputFormat.getOutputPath(job), LAYOUT_FILE);
+        try (OutputStream out = file.getFileSystem(conf).create(file, true)) {
+            layout.store(out, null);
+        }
+    }
+
+    /** Layout of a graph output, null for outputs written before it was recorded. */
+    public static Properties readLayout(Configuration conf, Path dir) throws IOException {
+        Path file = new Path(dir, LAYOUT_FILE);
+        FileSystem fs = file.getFileSystem(conf);
+        if (!fs.exists(file)) return null;
+        Properties layout = new Properties();
+        try (InputStream in = fs.open(file)) {
+            layout.load(in);
+        }
+        return layout;
+    }
+
+    // nodes/size=k and edges/size=k, one directory per archetype size
+    private static final String SIZE_PREFIX = "size=";
+    private static final String[] NODE_PARTS = new String[9];
+    private static final String[] EDGE_PARTS = new String[9];
+    static {
+        for (int size = 0; size <= 8; size++) {
+            NODE_PARTS[size] = "nodes/" + sizeDirectory(size) + "/part";
+            EDGE_PARTS[size] = "edges/" + sizeDirectory(size) + "/part";
+        }
+    }
+
+    public static String sizeDirectory(int size) {
+        return SIZE_PREFIX + size;
+    }
 
-            for (Text val : values) {
-                count++;
-                if (val.toString().equals("1")) win++;
+    /**
+     * Input directories of a nodes/ or edges/ output: its size=k directories for the sizes
+     * asked (all of them when sizes is null), or the directory itself for the flat layout of
+     * older outputs, which can only be read whole.
+     */
+    public static List<Path> sizePartitions(Configuration conf, Path dir, boolean[] sizes) throws IOException {
+        FileSystem fs = dir.getFileSystem(conf);
+        List<Path> partitions = new ArrayList<>();
+        FileStatus[] sizeDirs = fs.globStatus(new Path(dir, SIZE_PREFIX + "*"));
+        if (sizeDirs == null || sizeDirs.length == 0) {
+            if (sizes != null) {
+                throw new IOException(dir + " is not partitioned by size: rerun the graph job to select sizes");
             }
-            
-            context.write(key, new Text(count + ";" + win));
+            partitions.add(dir);
+            return partitions;
         }
+        Arrays.sort(sizeDirs);
+        for (FileStatus sizeDir : sizeDirs) {
+            int size = Integer.parseInt(sizeDir.getPath().getName().substring(SIZE_PREFIX.length()));
+            if (sizes == null || sizes[size]) {
+                partitions.add(sizeDir.getPath());
+            }
+        }
+        return partitions;
     }
 
 
 
     public static class NodesEdgesReducer
-        extends Reducer<Text,Text,NullWritable,Text> {
+        extends Reducer<ArchetypeKey,CountWin,NullWritable,Text> {
 
         private MultipleOutputs<NullWritable, Text> multipleOutputs;
+        private final CountWin total = new CountWin();
+        private PhaseTimers timers;
+        private KeyProfiler profiler;
+        private EdgeSketch[] sketches; // merged sketches by archetype size, null unless -approx
 
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
             multipleOutputs = new MultipleOutputs<>(context);
+            timers = new PhaseTimers(context.getConfiguration());
+            profiler = new KeyProfiler(context.getConfiguration());
+            if (context.getConfiguration().getBoolean("clash.graph.approx", false)) {
+                sketches = new EdgeSketch[9];
+            }
         }
 
         @Override
         public void reduce(
-            Text key, Iterable<Text> values, Context context
+            ArchetypeKey key, Iterable<CountWin> values, Context context
         ) throws IOException, InterruptedException {
 
-            if (!isNodeKey(key) && !isEdgeKey(key)) return;
-
-            int count = 0;
-            int win = 0;
-
-            for (Text val : values) {
-                String stringVal = val.toString();
-
-                if (stringVal.contains(";")) { // from combiner
-                    String[] parts = stringVal.split(";");
-                    count += Integer.parseInt(parts[0]);
-                    win += Integer.parseInt(parts[1]);
-                
-                } else { // direct from mapper
-                    count++;
-                    if (stringVal.equals("1")) win++;
-                }
+            long time = timers.start();
+            total.set(0, 0);
+            int valueCount = 0;
+            for (CountWin val : values) {
+                total.add(val);
+                valueCount++;
             }
-            
-            String cleanKey = key.toString().substring(1);
-            Text statsLine = new Text(cleanKey + ";" + count + ";" + win);
+            if (key.isSketchCell()) { // sorted before the edges, a replica sent to every reducer of the size
+                sketchOf(key.getSize(), context).addCell(key.getRow(), key.getColumn(), total.getCount(), total.getWins());
+                timers.stop(PhaseNanos.AGGREGATE, time);
+                return;
+            }
+            profiler.add(key, valueCount);
+            time = timers.stop(PhaseNanos.AGGREGATE, time);
+
+            Text statsLine = new Text(key.isNode() ? key + ";" + total
+                : sketches != null ? approximateEdgeLine(key)
+                : key + ";" + total + ";" + total.getDraws());
 
-            if (isNodeKey(key)) {
-                multipleOutputs.write("nodes", NullWritable.get(), statsLine, "nodes/part");
+            if (key.isNode()) {
+                multipleOutputs.write("nodes", NullWritable.get(), statsLine, NODE_PARTS[key.getSize()]);
             } else {
-                multipleOutputs.write("edges", NullWritable.get(), statsLine, "edges/part");
+                multipleOutputs.write("edges", NullWritable.get(), statsLine, EDGE_PARTS[key.getSize()]);
             }
+            timers.stop(PhaseNanos.EMIT, time);
         }
 
         @Override
         protected void cleanup(Context context) throws IOException, InterruptedException {
+            timers.report(context);
+            profiler.write(context);
             multipleOutputs.close();
         }
-    }
-
 
-    private static boolean isNodeKey(Text key) {
-        return key.toString().startsWith("N");
-    }
+        private EdgeSketch sketchOf(int size, Context context) {
+            if (sketches[size] == null) {
+                sketches[size] = new EdgeSketch(context.getConfiguration(), false);
+            }
+            return sketches[size];
+        }
 
-    private static boolean isEdgeKey(Text key) {
-        return key.toString().startsWith("E");
+        /**
+         * "source;target;count;wins;draws;countError;winsError": count, wins and draws are exact
+         * for the matches seen once the edge was heavy in a mapper, the true count and wins are at
+         * most countError and winsError above them (the sketch does not count draws).
+         */
+        private String approximateEdgeLine(ArchetypeKey key) {
+            EdgeSketch sketch = sketches[key.getSize()];
+            long count = total.getCount();
+            long wins = total.getWins();
+            long countHigh = Math.min(sketch.estimateCount(key.getFirst(), key.getSecond()), count + sketch.getSlack());
+            long winsHigh = Math.min(sketch.estimateWins(key.getFirst(), key.getSecond()), wins + countHigh - count);
+            return key + ";" + count + ";" + wins + ";" + total.getDraws() + ";" + (countHigh - count) + ";" + (winsHigh - wins);
+        }
     }
 }
@@ -0,0 +1,84 @@
+package clash;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Deterministic sample of the matches (-sample=RATE), drawn by player pair: a pair is kept
+ * when a 64-bit hash of its canonical "tag1|tag2" (and clash.sample.seed) falls in the first
+ * RATE of the hash range. The sample is stratified by pair: a pair is kept or dropped with
+ * all its matches, so duplicates stay together for the dedup, and the same pairs are kept by
+ * every run and every batch of an append.
+ *
+ * The rate is recorded in a _sample file inside clean/ and nodesEdges/, which keep the raw
+ * counts of the sample; Stats reads it back to scale its output (see Stats.StatsWriter).
+ */
+public class PairSampler {
+
+    public static final String FILE_NAME = "_sample";
+
+    private final long threshold; // unsigned hashes below it are kept
+    private final long seed;
+    private final boolean enabled;
+
+    public PairSampler(Configuration conf) {
+        double rate = getRate(conf);
+        enabled = rate < 1;
+        threshold = (long) (rate * 0x1p63) << 1; // rate * 2^64, as an unsigned long
+        seed = conf.getLong("clash.sample.seed", 0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** players: the canonical pair of a DedupKey. */
+    public boolean keep(Text players) {
+        if (!enabled) return true;
+        long h = seed ^ 0xCBF29CE484222325L;
+        byte[] bytes = players.getBytes();
+        for (int i = 0; i < players.getLength(); i++) {
+            h = (h ^ (bytes[i] & 0xFF)) * 0x100000001B3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return Long.compareUnsigned(h, threshold) < 0;
+    }
+
+    public static double getRate(Configuration conf) {
+        return Double.parseDouble(conf.get("clash.sample.rate", "1"));
+    }
+
+    /** Rate recorded in an output directory, 1 when it holds every match. */
+    public static double readRate(Configuration conf, Path dir) throws IOException {
+        Path file = new Path(dir, FILE_NAME);
+        FileSystem fs = file.getFileSystem(conf);
+        if (!fs.exists(file)) return 1;
+        try (FSDataInputStream in = fs.open(file);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return Double.parseDouble(reader.readLine().trim());
+        }
+    }
+
+    public static void writeRate(Configuration conf, Path dir, double rate) throws IOException {
+        Path file = new Path(dir, FILE_NAME);
+        FileSystem fs = file.getFileSystem(conf);
+        if (rate >= 1) {
+            fs.delete(file, false);
+            return;
+        }
+        try (OutputStream out = fs.create(file, true)) {
+            out.write((rate + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
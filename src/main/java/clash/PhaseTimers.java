@@ -0,0 +1,55 @@
+package clash;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Per-phase wall-clock timers of a task, in nanoseconds. Phases are timed per record (not
+ * per emitted key), accumulated in fields and added to the PhaseNanos counters in cleanup,
+ * so the cost is two System.nanoTime() calls per timed phase and record.
+ *
+ * Off with -noTimers (clash.timers.enabled=false).
+ */
+public class PhaseTimers {
+
+    public enum PhaseNanos {
+        PARSE,       // JSON scan of a raw line, or split of a text line
+        VALIDATE,    // checks and packing of the extracted fields
+        DEDUP,       // duplicate detection of a (players, round) group, writes included
+        ENUMERATE,   // archetypes of the two decks of a match (cache lookups included)
+        EMIT,        // key/value construction and context.write (in-mapper table included)
+        AGGREGATE,   // sum of the values of a key in the reducer
+        CACHE_LOAD,  // opening of the distributed cache files in setup
+        JOIN_LOOKUP, // node index lookups of the Stats join
+    }
+
+    private final boolean enabled;
+    private final long[] nanos = new long[PhaseNanos.values().length];
+
+    public PhaseTimers(Configuration conf) {
+        enabled = conf.getBoolean("clash.timers.enabled", true);
+    }
+
+    /** Start time of a phase, 0 when the timers are off. */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Adds the time since start to the phase, and returns the start time of the next phase. */
+    public long stop(PhaseNanos phase, long start) {
+        if (!enabled) return 0;
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - start;
+        return now;
+    }
+
+    public void report(TaskInputOutputContext<?, ?, ?, ?> context) throws IOException {
+        for (PhaseNanos phase : PhaseNanos.values()) {
+            if (nanos[phase.ordinal()] > 0) {
+                context.getCounter(phase).increment(nanos[phase.ordinal()]);
+            }
+        }
+    }
+}
@@ -1,42 +1,141 @@
 package clash;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.Lz4Codec;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.chain.ChainReducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.InputSampler;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 import clash.DataCleaning.CleaningMapper;
 import clash.DataCleaning.DeduplicationReducer;
+import clash.DataCleaning.HistoryMapper;
+import clash.NodesEdges.AggregateLineMapper;
 import clash.NodesEdges.NodesEdgesMapper;
 import clash.NodesEdges.NodesEdgesCombiner;
 import clash.NodesEdges.NodesEdgesReducer;
+import clash.NodesEdges.SortedMergeMapper;
+import clash.Stats.EdgeJoinMapper;
+import clash.Stats.NodeJoinMapper;
+import clash.Stats.SourceJoinReducer;
 import clash.Stats.StatsReplicatedJoin;
+import clash.Stats.TargetJoinReducer;
 
 public class ProjectDriver {
 
+    private static RunReport runReport; // null when serving
+
     public static void main(String[] args) throws Exception {
 
+        // "serve <base_output_dir>": query server over the output of a previous run
+        if (args.length > 0 && args[0].equals("serve")) {
+            QueryServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        // every option ends up in the base configuration, copied by each job
+        Configuration conf = new Configuration();
         List<String> positionalArgs = new ArrayList<>();
-        boolean useCombiner = true; // default
-        int minArchetypeSize = 8;
-        String executionMode = "all"; // options: all, clean, graph, stats
+        String executionMode = "all"; // options: all, clean, graph, stats, append
 
         for (String argument : args) {
             if (argument.equalsIgnoreCase("-noCombiner")) {
-                useCombiner = false;
+                conf.setBoolean("clash.combiner.enabled", false);
+            } else if (argument.equalsIgnoreCase("-inMapper")) {
+                conf.setBoolean("clash.inmapper.enabled", true);
+            } else if (argument.startsWith("-inMapperMb=")) {
+                conf.setBoolean("clash.inmapper.enabled", true);
+                conf.setInt("clash.inmapper.memory.mb", Integer.parseInt(argument.split("=")[1]));
+            } else if (argument.equalsIgnoreCase("-noTimers")) {
+                conf.setBoolean("clash.timers.enabled", false);
+            } else if (argument.startsWith("-skewTop=")) {
+                conf.setInt("clash.skew.top", Integer.parseInt(argument.split("=")[1])); // 0 disables
+            } else if (argument.equalsIgnoreCase("-keepTags")) {
+                conf.setBoolean("clash.record.tags", true);
+            } else if (argument.startsWith("-dedup=")) {
+                conf.set("clash.dedup.mode", argument.split("=")[1].toLowerCase()); // time, exact
+            } else if (argument.startsWith("-reducers=")) {
+                conf.setInt("clash.reducers", Integer.parseInt(argument.split("=")[1]));
+            } else if (argument.equalsIgnoreCase("-prefilter")) {
+                conf.setBoolean("clash.graph.prefilter", true);
+            } else if (argument.startsWith("-statsJoin=")) {
+                conf.set("clash.stats.join", argument.split("=")[1].toLowerCase()); // auto, replicated, merge
+            } else if (argument.startsWith("-statsCacheMb=")) {
+                conf.setInt("clash.stats.cache.mb", Integer.parseInt(argument.split("=")[1]));
+            } else if (argument.startsWith("-statsFormat=")) {
+                conf.set("clash.stats.format", argument.split("=")[1].toLowerCase()); // text, binary
+            } else if (argument.startsWith("-sizes=")) {
+                conf.set("clash.stats.sizes", argument.split("=")[1]); // e.g. 6,8: Stats of these archetype sizes only
+            } else if (argument.startsWith("-deckCache=")) {
+                conf.setInt("clash.archetype.cache.size", Integer.parseInt(argument.split("=")[1])); // 0 disables
             } else if (argument.startsWith("-minSize=")) {
-                minArchetypeSize = Integer.parseInt(argument.split("=")[1]);
+                conf.setInt("clash.archetype.min.size", Integer.parseInt(argument.split("=")[1]));
+            } else if (argument.equalsIgnoreCase("-approx")) {
+                conf.setBoolean("clash.graph.approx", true);
+            } else if (argument.startsWith("-approxMb=")) {
+                conf.setBoolean("clash.graph.approx", true);
+                conf.setInt("clash.approx.sketch.mb", Integer.parseInt(argument.split("=")[1]));
+            } else if (argument.startsWith("-sample=")) {
+                double rate = Double.parseDouble(argument.split("=")[1]);
+                if (rate <= 0 || rate > 1) {
+                    System.err.println("-sample=RATE needs 0 < RATE <= 1");
+                    System.exit(-1);
+                }
+                conf.set("clash.sample.rate", Double.toString(rate));
+            } else if (argument.equalsIgnoreCase("-fused")) {
+                conf.setBoolean("clash.pipeline.fused", true);
+            } else if (argument.equalsIgnoreCase("-keepClean")) {
+                conf.setBoolean("clash.fused.clean.output", true);
+            } else if (argument.equalsIgnoreCase("-totalOrder")) {
+                conf.setBoolean("clash.graph.total.order", true);
+            } else if (argument.startsWith("-compress=")) {
+                conf.set("clash.compress.codec", argument.split("=")[1].toLowerCase()); // none, default, deflate, gzip, bzip2, lz4, snappy
+            } else if (argument.equalsIgnoreCase("-compressText")) {
+                conf.setBoolean("clash.compress.text", true);
+            } else if (argument.startsWith("-engine=")) {
+                conf.set("clash.engine", argument.split("=")[1].toLowerCase()); // hadoop, local
+            } else if (argument.startsWith("-threads=")) {
+                conf.setInt("clash.engine.threads", Integer.parseInt(argument.split("=")[1]));
             } else if (argument.startsWith("-job=")) {
                 executionMode = argument.split("=")[1].toLowerCase();
             } else {
@@ -45,12 +144,13 @@ public class ProjectDriver {
         }
 
         if (positionalArgs.size() < 2) {
-            System.err.println("Usage: ProjectDriver <raw_input> <base_output_dir> [-noCombiner] [-minSize=X] [-job=clean|graph|stats|all]");
+            System.err.println("Usage: ProjectDriver <raw_input> <base_output_dir> [-noCombiner] [-inMapper] [-inMapperMb=X] [-noTimers] [-skewTop=N] [-keepTags] [-dedup=time|exact] [-reducers=N] [-prefilter] [-totalOrder] [-statsJoin=auto|replicated|merge] [-statsCacheMb=X] [-statsFormat=text|binary] [-sizes=K,...] [-deckCache=N] [-minSize=X] [-approx] [-approxMb=X] [-sample=RATE] [-fused] [-keepClean] [-compress=none|default|gzip|bzip2|lz4|snappy] [-compressText] [-engine=hadoop|local] [-threads=N] [-job=clean|graph|stats|all|append]");
             System.exit(-1);
         }
 
         Path rawInput = new Path(positionalArgs.get(0));
         Path baseOutputDir = new Path(positionalArgs.get(1));
+        runReport = new RunReport(baseOutputDir);
 
         Path cleanOutput = new Path(baseOutputDir, "clean");
         Path nodesEdgesOutput = new Path(baseOutputDir, "nodesEdges");
@@ -58,9 +158,27 @@ public class ProjectDriver {
 
         boolean runAll = executionMode.equals("all");
 
+        // approximate edges carry error columns that neither the binary Stats record nor an append merge can hold
+        if (conf.getBoolean("clash.graph.approx", false)
+                && (Stats.isBinaryFormat(conf) || executionMode.equals("append"))) {
+            System.err.println("-approx only supports the text Stats output, and no append runs");
+            System.exit(-1);
+        }
+
+        // fused mode replaces jobs 1 and 2 when both run (the prefilter needs clean/ twice)
+        boolean fused = runAll && conf.getBoolean("clash.pipeline.fused", false)
+            && !conf.getBoolean("clash.graph.prefilter", false);
+        if (fused) {
+            boolean success = runFusedCleaningGraphJobs(conf, rawInput, cleanOutput, nodesEdgesOutput);
+            if (!success) {
+                System.err.println("Fused Cleaning + Nodes & Edges Jobs failed");
+                System.exit(1);
+            }
+        }
+
         // Job 1: Cleaning
-        if (runAll || executionMode.equals("clean")) {
-            boolean success = runCleaningJob(rawInput, cleanOutput);
+        if (!fused && (runAll || executionMode.equals("clean"))) {
+            boolean success = runCleaningJob(conf, rawInput, null, cleanOutput);
             if (!success) {
                 System.err.println("Data Cleaning Job failed");
                 System.exit(1);
@@ -68,17 +186,31 @@ public class ProjectDriver {
         }
 
         // Job 2: Nodes & Edges
-        if (runAll || executionMode.equals("graph")) {
-            boolean success = runNodesEdgesJob(cleanOutput, nodesEdgesOutput, useCombiner, minArchetypeSize);
+        if (!fused && (runAll || executionMode.equals("graph"))) {
+            boolean success = conf.getBoolean("clash.graph.prefilter", false)
+                ? runPrefilteredNodesEdgesJobs(conf, cleanOutput, nodesEdgesOutput)
+                : runNodesEdgesJob(conf, cleanOutput, nodesEdgesOutput);
             if (!success) {
                 System.err.println("Nodes & Edges Job failed");
                 System.exit(1);
             }
         }
 
+        // Append: <raw_input> is a new batch, merged into the aggregates already in <base_output_dir>
+        boolean append = executionMode.equals("append");
+        if (append) {
+            boolean success = runAppendJobs(conf, rawInput, cleanOutput, nodesEdgesOutput);
+            if (!success) {
+                System.err.println("Append Jobs failed");
+                System.exit(1);
+            }
+            // every prediction depends on the per-size totals, which the batch changed
+            finalOutput.getFileSystem(conf).delete(finalOutput, true);
+        }
+
         // Job 3: Statistics
-        if (runAll || executionMode.equals("stats")) {
-            boolean success = runStatsJob(nodesEdgesOutput, finalOutput);
+        if (runAll || append || executionMode.equals("stats")) {
+            boolean success = runStatsJob(conf, nodesEdgesOutput, finalOutput);
             if (!success) {
                 System.err.println("Stats Job failed");
                 System.exit(1);
@@ -87,62 +219,638 @@ public class ProjectDriver {
     }
 
 
-    private static boolean runCleaningJob(Path input, Path output) throws Exception {
-        Configuration conf = new Configuration();
-        String jobName = "Data Cleaning";
+    // history: cleaned matches of the previous batch in an append run, null otherwise
+    private static boolean runCleaningJob(Configuration baseConf, Path input, Path history, Path output) throws Exception {
+        Configuration conf = new Configuration(baseConf);
+        if (history != null) {
+            conf.setBoolean("clash.dedup.append", true);
+            conf.setBoolean("clash.record.tags", true); // the next batch needs them to rebuild the dedup keys
+        }
+        String dedupMode = conf.get("clash.dedup.mode", "time");
+        String jobName = "Data Cleaning [Dedup=" + dedupMode + (history != null ? ", Append" : "") + "]";
         System.out.println(">>> Starting Job: " + jobName);
         Job job = Job.getInstance(conf, jobName);
 
         job.setJarByClass(ProjectDriver.class);
         job.setMapperClass(CleaningMapper.class);
         job.setReducerClass(DeduplicationReducer.class);
+        setNumReducers(job);
+        job.setPartitionerClass(DedupKey.GroupPartitioner.class);
+        job.setGroupingComparatorClass(DedupKey.GroupingComparator.class);
 
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(Text.class);
+        job.setMapOutputKeyClass(DedupKey.class);
+        job.setMapOutputValueClass(MatchRecord.class);
         job.setOutputKeyClass(NullWritable.class);
-        job.setOutputValueClass(Text.class);
+        job.setOutputValueClass(MatchRecord.class);
 
-        FileInputFormat.addInputPath(job, input);
+        if (history != null) {
+            MultipleInputs.addInputPath(job, input, TextInputFormat.class, CleaningMapper.class);
+            MultipleInputs.addInputPath(job, history, SequenceFileInputFormat.class, HistoryMapper.class);
+        } else {
+            FileInputFormat.addInputPath(job, input);
+        }
         FileOutputFormat.setOutputPath(job, output);
 
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        configureCompression(job, true);
 
-        return job.waitForCompletion(true);
+        if (!waitForCompletion(job)) {
+            return false;
+        }
+        PairSampler.writeRate(conf, output, PairSampler.getRate(conf));
+        return true;
     }
 
-    private static boolean runNodesEdgesJob(Path input, Path output, boolean useCombiner, int minArchetypeSize) throws Exception {
-        Configuration conf = new Configuration();
-        conf.setInt("clash.archetype.min.size", minArchetypeSize);
-        String jobName = "Nodes & Edges [Combiner=" + (useCombiner ? "ON" : "OFF") + ", MinSize=" + minArchetypeSize + "]";
+    private static boolean runNodesEdgesJob(Configuration baseConf, Path input, Path output) throws Exception {
+        if (!runGraphJob(new Configuration(baseConf), "", input, output)) {
+            return false;
+        }
+        buildNodeIndex(baseConf, output);
+        PairSampler.writeRate(baseConf, output, PairSampler.readRate(baseConf, input));
+        return true;
+    }
+
+    // Pass 1 counts nodes only; pass 2 emits only the edges whose two endpoints reach the Stats threshold
+    private static boolean runPrefilteredNodesEdgesJobs(Configuration baseConf, Path input, Path output) throws Exception {
+        Configuration nodesConf = new Configuration(baseConf);
+        nodesConf.setBoolean("clash.graph.emit.edges", false);
+        if (!runGraphJob(nodesConf, "Nodes Pass, ", input, output)) {
+            return false;
+        }
+        buildNodeIndex(baseConf, output);
+
+        System.out.println(">>> Building edge filter");
+        Path edgeFilter = new Path(output, "nodes-filter.idx");
+        NodeIndex.build(baseConf, new Path(output, "nodes"), edgeFilter, Stats.minSampledCount(PairSampler.readRate(baseConf, input)));
+
+        Configuration edgesConf = new Configuration(baseConf);
+        edgesConf.setBoolean("clash.graph.emit.nodes", false);
+        edgesConf.setBoolean("clash.graph.edge.filter", true);
+        Path edgesOutput = new Path(output.getParent(), output.getName() + "EdgesPass");
+        if (!runGraphJob(edgesConf, "Edges Pass, ", input, edgesOutput, new URI(edgeFilter.toUri().getPath() + "#nodes-filter"))) {
+            return false;
+        }
+
+        FileSystem fs = output.getFileSystem(baseConf);
+        Path edges = new Path(edgesOutput, "edges");
+        if (fs.exists(edges)) {
+            fs.rename(edges, new Path(output, "edges"));
+        }
+        fs.delete(edgesOutput, true);
+        PairSampler.writeRate(baseConf, output, PairSampler.readRate(baseConf, input));
+        try (OutputStream out = fs.create(new Path(output, NodesEdges.PREFILTER_FILE), true)) {
+            out.write((Stats.MIN_COUNT_THRESHOLD + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return true;
+    }
+
+    private static boolean runGraphJob(Configuration conf, String phase, Path input, Path output, URI... cacheFiles) throws Exception {
+        boolean useCombiner = conf.getBoolean("clash.combiner.enabled", true);
+        boolean useInMapperCombining = conf.getBoolean("clash.inmapper.enabled", false);
+        int inMapperMemoryMb = conf.getInt("clash.inmapper.memory.mb", 64);
+        int minArchetypeSize = conf.getInt("clash.archetype.min.size", 8);
+        String approx = conf.getBoolean("clash.graph.approx", false) && conf.getBoolean("clash.graph.emit.edges", true)
+            ? ", Approx=" + conf.getInt("clash.approx.sketch.mb", 8) + "MB" : "";
+        String jobName = "Nodes & Edges [" + phase + "Combiner=" + (useCombiner ? "ON" : "OFF") + ", InMapper=" + (useInMapperCombining ? inMapperMemoryMb + "MB" : "OFF") + ", MinSize=" + minArchetypeSize + approx + "]";
         System.out.println(">>> Starting Job: " + jobName);
         Job job = Job.getInstance(conf, jobName);
 
         job.setJarByClass(ProjectDriver.class);
         job.setMapperClass(NodesEdgesMapper.class);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        configureGraphReduce(job, useCombiner);
+        configureCompression(job, false);
+
+        for (URI cacheFile : cacheFiles) {
+            job.addCacheFile(cacheFile);
+        }
+
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+
+        Path partitionFile = new Path(output.getParent(), output.getName() + "Partitions");
+        if (useTotalOrder(job)) {
+            System.out.println(">>> Sampling partition boundaries");
+            ArchetypeSampler.writePartitionFile(job, partitionFile);
+        }
+        boolean success = waitForCompletion(job);
+        partitionFile.getFileSystem(conf).delete(partitionFile, false);
+        if (success) {
+            NodesEdges.writeLayout(job);
+        }
+        return success;
+    }
+
+    // -totalOrder: sampled TotalOrderPartitioner boundaries instead of hashing, only useful with several reducers
+    // (-approx sends the sketch cells of a size to each of its reducers, which range partitions cannot do)
+    private static boolean useTotalOrder(Job job) {
+        return job.getConfiguration().getBoolean("clash.graph.total.order", false) && job.getNumReduceTasks() > 1
+            && !job.getConfiguration().getBoolean("clash.graph.approx", false);
+    }
+
+    /**
+     * Append run: the new batch is deduplicated together with the previous batch (clean/, the
+     * boundary window), its graph is built alone, and its node/edge counts are summed with the
+     * existing ones. clean/ then holds the new batch, the boundary window of the next run.
+     *
+     * The delta graph is built with the layout of nodesEdges/ (_layout: reducers, minimum size,
+     * SizePartitioner), so each of its parts is merged with the part of the same name in one
+     * streaming pass (SortedMergeMapper), and the parts the batch does not touch are moved as
+     * they are. Outputs without a layout, or range-partitioned (-totalOrder), are merged by a
+     * full graph reduce instead.
+     */
+    private static boolean runAppendJobs(Configuration baseConf, Path batchInput, Path cleanOutput, Path nodesEdgesOutput) throws Exception {
+        FileSystem fs = nodesEdgesOutput.getFileSystem(baseConf);
+        Path previous = new Path(nodesEdgesOutput.getParent(), nodesEdgesOutput.getName() + "Previous");
+        if (fs.exists(previous)) {
+            System.err.println("A previous append was interrupted: its old parts are in " + previous + ", move them back to " + nodesEdgesOutput + " first");
+            return false;
+        }
+        if (!fs.exists(new Path(nodesEdgesOutput, "nodes")) || !fs.exists(cleanOutput)) {
+            System.err.println("Append needs the clean/ and nodesEdges/ outputs of a previous run");
+            return false;
+        }
+        if (fs.exists(new Path(nodesEdgesOutput, NodesEdges.PREFILTER_FILE))) {
+            System.err.println("Append cannot merge into a -prefilter output: its edges below the threshold are gone. Rerun the graph job without -prefilter");
+            return false;
+        }
+        if (!hasPlayerTags(baseConf, cleanOutput)) {
+            System.err.println("Append needs the player tags in clean/ to deduplicate against it: run the previous batch with -keepTags (append runs keep them)");
+            return false;
+        }
+        // every batch is sampled like the first one
+        double sampleRate = PairSampler.readRate(baseConf, nodesEdgesOutput);
+        if (sampleRate != PairSampler.getRate(baseConf)) {
+            System.out.println(">>> Sampling the batch at the rate of the existing outputs: " + sampleRate);
+            baseConf = new Configuration(baseConf);
+            baseConf.set("clash.sample.rate", Double.toString(sampleRate));
+        }
+        Properties layout = NodesEdges.readLayout(baseConf, nodesEdgesOutput);
+        boolean sortedMerge = layout != null
+            && ArchetypeKey.SizePartitioner.class.getName().equals(layout.getProperty("partitioner"));
+        Path batchClean = new Path(cleanOutput.getParent(), cleanOutput.getName() + "Append");
+        Path delta = new Path(nodesEdgesOutput.getParent(), nodesEdgesOutput.getName() + "Delta");
+        Path merged = new Path(nodesEdgesOutput.getParent(), nodesEdgesOutput.getName() + "Merged");
+
+        if (!runCleaningJob(baseConf, batchInput, cleanOutput, batchClean)) {
+            return false;
+        }
+        Configuration deltaConf = new Configuration(baseConf);
+        deltaConf.setBoolean("clash.graph.prefilter", false); // edge thresholds apply to the merged counts only
+        if (sortedMerge) {
+            deltaConf.setInt("clash.reducers", Integer.parseInt(layout.getProperty("reducers")));
+            deltaConf.set("clash.archetype.min.size", layout.getProperty("minSize"));
+            deltaConf.setBoolean("clash.graph.total.order", false);
+        }
+        if (!runGraphJob(deltaConf, "Append Delta, ", batchClean, delta)) {
+            return false;
+        }
+
+        List<String> untouchedParts = new ArrayList<>();
+        boolean success = sortedMerge
+            ? runSortedMergeJob(baseConf, nodesEdgesOutput, delta, merged, untouchedParts)
+            : runGraphMergeJob(baseConf, nodesEdgesOutput, delta, merged);
+        if (!success) {
+            return false;
+        }
+
+        // the untouched parts are moved from the previous output once it is aside
+        if (!fs.rename(nodesEdgesOutput, previous)) {
+            throw new IOException("Cannot move " + nodesEdgesOutput + " aside to " + previous);
+        }
+        for (String part : untouchedParts) {
+            Path target = new Path(merged, part);
+            fs.mkdirs(target.getParent());
+            if (!fs.rename(new Path(previous, part), target)) {
+                throw new IOException("Cannot move " + part + " from " + previous + " to " + merged);
+            }
+        }
+        if (sortedMerge) {
+            fs.rename(new Path(previous, NodesEdges.LAYOUT_FILE), new Path(merged, NodesEdges.LAYOUT_FILE));
+        }
+        buildNodeIndex(baseConf, merged);
+        PairSampler.writeRate(baseConf, merged, sampleRate);
+        if (!fs.rename(merged, nodesEdgesOutput)) {
+            throw new IOException("Cannot move " + merged + " to " + nodesEdgesOutput + ": the previous output is in " + previous);
+        }
+        fs.delete(previous, true);
+        fs.delete(delta, true);
+        replace(fs, cleanOutput, batchClean);
+        return true;
+    }
+
+    /**
+     * Map-only merge of the delta parts with the parts of the same name in nodesEdges/, one
+     * task per delta part. Parts are paired on their part-r-NNNNN stem, so that a batch
+     * compressed differently from the previous runs still finds its parts. Fills
+     * untouchedParts with the parts of nodesEdges/ (relative paths) that the batch has no key for.
+     */
+    private static boolean runSortedMergeJob(
+        Configuration baseConf, Path nodesEdgesOutput, Path delta, Path merged, List<String> untouchedParts
+    ) throws Exception {
+        FileSystem fs = merged.getFileSystem(baseConf);
+        StringBuilder tasks = new StringBuilder();
+        for (String kind : new String[] { "nodes", "edges" }) {
+            Path previousKind = new Path(nodesEdgesOutput, kind);
+            Path deltaKind = new Path(delta, kind);
+            // previous parts by stem (kind/size=k/part-r-NNNNN), whatever their codec extension
+            Map<String, String> previousParts = new HashMap<>();
+            if (fs.exists(previousKind)) {
+                for (Path sizeDir : NodesEdges.sizePartitions(baseConf, previousKind, null)) {
+                    for (FileStatus part : fs.globStatus(new Path(sizeDir, "part-*"))) {
+                        String name = kind + "/" + sizeDir.getName() + "/" + part.getPath().getName();
+                        previousParts.put(partStem(name), name);
+                    }
+                }
+            }
+            Set<String> touched = new HashSet<>();
+            if (fs.exists(deltaKind)) {
+                for (Path sizeDir : NodesEdges.sizePartitions(baseConf, deltaKind, null)) {
+                    FileStatus[] parts = fs.globStatus(new Path(sizeDir, "part-*"));
+                    Arrays.sort(parts);
+                    for (FileStatus part : parts) {
+                        String name = kind + "/" + sizeDir.getName() + "/" + part.getPath().getName();
+                        String previousPart = previousParts.get(partStem(name));
+                        tasks.append(name).append('\t').append(previousPart != null ? new Path(nodesEdgesOutput, previousPart) : "")
+                            .append('\t').append(part.getPath()).append('\n');
+                        touched.add(partStem(name));
+                    }
+                }
+            }
+            for (Map.Entry<String, String> previousPart : previousParts.entrySet()) {
+                if (!touched.contains(previousPart.getKey())) {
+                    untouchedParts.add(previousPart.getValue());
+                }
+            }
+        }
+        if (tasks.length() == 0) {
+            fs.mkdirs(merged); // empty batch
+            return true;
+        }
+
+        Configuration conf = new Configuration(baseConf);
+        String jobName = "Nodes & Edges [Append Merge, Sorted, " + untouchedParts.size() + " parts untouched]";
+        System.out.println(">>> Starting Job: " + jobName);
+        Job job = Job.getInstance(conf, jobName);
+
+        Path taskFile = new Path(merged.getParent(), merged.getName() + "Tasks");
+        try (OutputStream out = fs.create(taskFile, true)) {
+            out.write(tasks.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        job.setJarByClass(ProjectDriver.class);
+        job.setMapperClass(SortedMergeMapper.class);
+        job.setNumReduceTasks(0);
+        job.setInputFormatClass(NLineInputFormat.class);
+        NLineInputFormat.setNumLinesPerSplit(job, 1);
+        NLineInputFormat.addInputPath(job, taskFile);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+        LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class); // the mappers write their parts themselves
+        FileOutputFormat.setOutputPath(job, merged);
+
+        boolean success = waitForCompletion(job);
+        fs.delete(taskFile, false);
+        return success;
+    }
+
+    // part-r-00003.gz -> part-r-00003
+    private static String partStem(String name) {
+        int dot = name.indexOf('.', name.lastIndexOf('/') + 1);
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    // Full merge: every node/edge line of nodesEdges/ and of the delta goes through the graph reduce
+    private static boolean runGraphMergeJob(Configuration baseConf, Path nodesEdgesOutput, Path delta, Path merged) throws Exception {
+        FileSystem fs = merged.getFileSystem(baseConf);
+        Configuration conf = new Configuration(baseConf);
+        boolean useCombiner = conf.getBoolean("clash.combiner.enabled", true);
+        String jobName = "Nodes & Edges [Append Merge, Combiner=" + (useCombiner ? "ON" : "OFF") + "]";
+        System.out.println(">>> Starting Job: " + jobName);
+        Job job = Job.getInstance(conf, jobName);
+
+        job.setJarByClass(ProjectDriver.class);
+        job.setMapperClass(AggregateLineMapper.class);
+        job.setInputFormatClass(TextInputFormat.class);
+        configureGraphReduce(job, useCombiner);
+        configureCompression(job, false);
+
+        for (Path aggregates : new Path[] { nodesEdgesOutput, delta }) {
+            for (String kind : new String[] { "nodes", "edges" }) {
+                Path kindOutput = new Path(aggregates, kind);
+                if (!fs.exists(kindOutput)) continue;
+                for (Path partition : NodesEdges.sizePartitions(conf, kindOutput, null)) {
+                    FileInputFormat.addInputPath(job, new Path(partition, "part-*"));
+                }
+            }
+        }
+        FileOutputFormat.setOutputPath(job, merged);
+        if (!waitForCompletion(job)) {
+            return false;
+        }
+        NodesEdges.writeLayout(job);
+        return true;
+    }
+
+    // the previous output is renamed aside, and only deleted once the new one is in its place
+    private static void replace(FileSystem fs, Path output, Path newOutput) throws IOException {
+        Path previous = new Path(output.getParent(), output.getName() + "Previous");
+        fs.delete(previous, true);
+        if (!fs.rename(output, previous)) {
+            throw new IOException("Cannot move " + output + " aside to " + previous);
+        }
+        if (!fs.rename(newOutput, output)) {
+            throw new IOException("Cannot move " + newOutput + " to " + output + ": the previous output is in " + previous);
+        }
+        fs.delete(previous, true);
+    }
+
+    // the first record of clean/ tells whether it was written with the player tags (-keepTags)
+    private static boolean hasPlayerTags(Configuration conf, Path cleanOutput) throws IOException {
+        FileSystem fs = cleanOutput.getFileSystem(conf);
+        FileStatus[] parts = fs.globStatus(new Path(cleanOutput, "part-*"));
+        if (parts == null) return true;
+        Arrays.sort(parts);
+        MatchRecord record = new MatchRecord();
+        for (FileStatus part : parts) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part.getPath()))) {
+                if (reader.next(NullWritable.get(), record)) {
+                    return record.hasTags();
+                }
+            }
+        }
+        return true; // nothing to deduplicate against
+    }
+
+    // Shuffle and reduce side of the graph job: (archetype key, count/wins) summed into nodes/size=k and edges/size=k
+    private static void configureGraphReduce(Job job, boolean useCombiner) {
         if (useCombiner) {
             job.setCombinerClass(NodesEdgesCombiner.class);
         }
         job.setReducerClass(NodesEdgesReducer.class);
+        setNumReducers(job);
+        job.setPartitionerClass(ArchetypeKey.SizePartitioner.class);
 
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(Text.class);
+        job.setMapOutputKeyClass(ArchetypeKey.class);
+        job.setMapOutputValueClass(CountWin.class);
         job.setOutputKeyClass(NullWritable.class);
         job.setOutputValueClass(Text.class);
 
-        job.setInputFormatClass(SequenceFileInputFormat.class);
-
         MultipleOutputs.addNamedOutput(job, "nodes", TextOutputFormat.class, NullWritable.class, Text.class);
         MultipleOutputs.addNamedOutput(job, "edges", TextOutputFormat.class, NullWritable.class, Text.class);
+    }
+
+    /**
+     * Cleaning and graph building without materializing clean/: the matches kept by
+     * DeduplicationReducer feed NodesEdgesMapper through a ChainReducer, which writes partial
+     * (archetype key, count/wins) sums; a light job then sums them into nodes/ and edges/.
+     */
+    private static boolean runFusedCleaningGraphJobs(Configuration baseConf, Path input, Path cleanOutput, Path output) throws Exception {
+        Path partialOutput = new Path(output.getParent(), output.getName() + "Partial");
+        boolean keepClean = baseConf.getBoolean("clash.fused.clean.output", false);
+
+        Configuration conf = new Configuration(baseConf);
+        // partial counts are only smaller than the matches once aggregated in the chained mapper
+        conf.setBoolean("clash.inmapper.enabled", true);
+        String dedupMode = conf.get("clash.dedup.mode", "time");
+        int minArchetypeSize = conf.getInt("clash.archetype.min.size", 8);
+        String jobName = "Cleaning + Nodes & Edges [Fused, Dedup=" + dedupMode + ", InMapper=" + conf.getInt("clash.inmapper.memory.mb", 64) + "MB, MinSize=" + minArchetypeSize + "]";
+        System.out.println(">>> Starting Job: " + jobName);
+        Job job = Job.getInstance(conf, jobName);
+
+        job.setJarByClass(ProjectDriver.class);
+        job.setMapperClass(CleaningMapper.class);
+        setNumReducers(job);
+        job.setPartitionerClass(DedupKey.GroupPartitioner.class);
+        job.setGroupingComparatorClass(DedupKey.GroupingComparator.class);
+        job.setMapOutputKeyClass(DedupKey.class);
+        job.setMapOutputValueClass(MatchRecord.class);
+
+        ChainReducer.setReducer(job, DeduplicationReducer.class,
+            DedupKey.class, MatchRecord.class, NullWritable.class, MatchRecord.class, new Configuration(false));
+        ChainReducer.addMapper(job, NodesEdgesMapper.class,
+            NullWritable.class, MatchRecord.class, ArchetypeKey.class, CountWin.class, new Configuration(false));
+        job.setOutputKeyClass(ArchetypeKey.class);
+        job.setOutputValueClass(CountWin.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        if (keepClean) {
+            MultipleOutputs.addNamedOutput(job, "clean", SequenceFileOutputFormat.class, NullWritable.class, MatchRecord.class);
+        }
+        configureCompression(job, true);
 
         FileInputFormat.addInputPath(job, input);
-        FileOutputFormat.setOutputPath(job, output);
+        FileOutputFormat.setOutputPath(job, partialOutput);
+        if (!waitForCompletion(job)) {
+            return false;
+        }
 
-        return job.waitForCompletion(true);
+        Configuration aggregationConf = new Configuration(baseConf);
+        boolean useCombiner = aggregationConf.getBoolean("clash.combiner.enabled", true);
+        jobName = "Nodes & Edges [Fused Aggregation, Combiner=" + (useCombiner ? "ON" : "OFF") + "]";
+        System.out.println(">>> Starting Job: " + jobName);
+        Job aggregationJob = Job.getInstance(aggregationConf, jobName);
+
+        aggregationJob.setJarByClass(ProjectDriver.class);
+        aggregationJob.setMapperClass(Mapper.class); // identity
+        aggregationJob.setInputFormatClass(SequenceFileInputFormat.class);
+        configureGraphReduce(aggregationJob, useCombiner);
+        configureCompression(aggregationJob, false);
+
+        FileInputFormat.addInputPath(aggregationJob, new Path(partialOutput, "part-*")); // not the clean/ side output
+        FileOutputFormat.setOutputPath(aggregationJob, output);
+        if (useTotalOrder(aggregationJob)) {
+            // the partial counts are keyed by archetype already, so InputSampler applies as is
+            System.out.println(">>> Sampling partition boundaries");
+            TotalOrderPartitioner.setPartitionFile(aggregationJob.getConfiguration(), new Path(partialOutput, "_partitions"));
+            InputSampler.writePartitionFile(aggregationJob, new InputSampler.SplitSampler<ArchetypeKey, CountWin>(
+                aggregationConf.getInt("clash.sampler.keys", 100000), 10));
+            aggregationJob.setPartitionerClass(TotalOrderPartitioner.class);
+        }
+        if (!waitForCompletion(aggregationJob)) {
+            return false;
+        }
+        NodesEdges.writeLayout(aggregationJob);
+        buildNodeIndex(baseConf, output);
+        PairSampler.writeRate(baseConf, output, PairSampler.getRate(baseConf));
+
+        FileSystem fs = partialOutput.getFileSystem(baseConf);
+        if (keepClean) {
+            fs.delete(cleanOutput, true);
+            fs.rename(new Path(partialOutput, "clean"), cleanOutput);
+            PairSampler.writeRate(baseConf, cleanOutput, PairSampler.getRate(baseConf));
+        }
+        fs.delete(partialOutput, true);
+        return true;
     }
 
-    private static boolean runStatsJob(Path input, Path output) throws Exception {
-        Configuration conf = new Configuration();
-        String jobName = "Stats";
+    // Merges every nodes/part-r-* of the graph job into the sorted binary index used by Stats
+    private static void buildNodeIndex(Configuration conf, Path nodesEdgesOutput) throws Exception {
+        System.out.println(">>> Building node index");
+        long start = System.currentTimeMillis();
+        NodeIndex.build(conf, new Path(nodesEdgesOutput, "nodes"), new Path(nodesEdgesOutput, NodeIndex.FILE_NAME));
+        report(conf, "Node Index", true, start, null);
+    }
+
+    // -engine=local runs the same job in process, on all cores
+    private static boolean waitForCompletion(Job job) throws Exception {
+        long start = System.currentTimeMillis();
+        boolean success;
+        Counters counters;
+        if (isLocalEngine(job.getConfiguration())) {
+            LocalEngine engine = new LocalEngine(job.getConfiguration());
+            success = engine.run(job);
+            counters = engine.getCounters();
+            if (success) {
+                System.out.println(counters);
+            } else {
+                System.err.println(">>> " + job.getJobName() + " failed: " + describe(engine.getFailure()));
+            }
+        } else {
+            success = job.waitForCompletion(true);
+            counters = job.getCounters();
+        }
+
+        // values-per-key profiles left by the reducers next to the output
+        KeyProfiler.Summary skew = null;
+        Path output = FileOutputFormat.getOutputPath(job);
+        if (output != null && job.getConfiguration().getInt("clash.skew.top", 20) > 0) {
+            skew = KeyProfiler.merge(job.getConfiguration(), output);
+            if (skew != null) {
+                System.out.println(">>> Skew (" + job.getJobName() + "): " + skew);
+            }
+        }
+        report(job.getConfiguration(), job.getJobName(), success, start, counters, skew);
+        return success;
+    }
+
+    // the exception and its causes, one per line
+    private static String describe(Throwable failure) {
+        StringBuilder text = new StringBuilder(String.valueOf(failure));
+        for (Throwable cause = failure == null ? null : failure.getCause(); cause != null; cause = cause.getCause()) {
+            text.append("\n    caused by ").append(cause);
+            StackTraceElement[] trace = cause.getStackTrace();
+            if (trace.length > 0) {
+                text.append("\n      at ").append(trace[0]);
+            }
+        }
+        return text.toString();
+    }
+
+    // run-report.json / .csv, rewritten after every step
+    private static void report(Configuration conf, String step, boolean success, long startMillis, Counters counters) throws Exception {
+        report(conf, step, success, startMillis, counters, null);
+    }
+
+    private static void report(
+        Configuration conf, String step, boolean success, long startMillis, Counters counters, KeyProfiler.Summary skew
+    ) throws Exception {
+        if (runReport == null) return;
+        runReport.add(step, success, startMillis, System.currentTimeMillis(), counters, skew);
+        runReport.write(conf);
+    }
+
+    /**
+     * -compress=CODEC compresses the map output and the intermediate outputs (SequenceFiles in
+     * BLOCK mode); the text outputs read by the user (nodes/, edges/, final/) are only
+     * compressed with -compressText.
+     */
+    private static void configureCompression(Job job, boolean intermediateOutput) {
+        Configuration conf = job.getConfiguration();
+        String codecName = conf.get("clash.compress.codec", "none");
+        if (codecName.equals("none")) return;
+        Class<? extends CompressionCodec> codec = resolveCodec(codecName, conf);
+
+        conf.setBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, true);
+        conf.setClass(MRJobConfig.MAP_OUTPUT_COMPRESS_CODEC, codec, CompressionCodec.class);
+        boolean compressOutput = intermediateOutput || conf.getBoolean("clash.compress.text", false);
+        if (compressOutput) {
+            FileOutputFormat.setCompressOutput(job, true);
+            FileOutputFormat.setOutputCompressorClass(job, codec);
+            SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
+        }
+        System.out.println(">>> Compression: " + codec.getSimpleName() + " (map output" + (compressOutput ? ", job output)" : ")"));
+    }
+
+    // snappy, lz4 (and gzip in SequenceFiles) need libhadoop; checked on the driver, assumed identical on the nodes
+    private static Class<? extends CompressionCodec> resolveCodec(String name, Configuration conf) {
+        switch (name) {
+            case "default":
+            case "deflate":
+                return DefaultCodec.class;
+            case "gzip":
+                if (ZlibFactory.isNativeZlibLoaded(conf)) return GzipCodec.class;
+                break;
+            case "bzip2":
+                return BZip2Codec.class;
+            case "snappy":
+                if (isNativeCodecLoaded(name)) return SnappyCodec.class;
+                break;
+            case "lz4":
+                if (isNativeCodecLoaded(name)) return Lz4Codec.class;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + name);
+        }
+        System.err.println("Native " + name + " codec not available, falling back to DefaultCodec");
+        return DefaultCodec.class;
+    }
+
+    private static boolean isNativeCodecLoaded(String name) {
+        try {
+            return name.equals("snappy") ? SnappyCodec.isNativeCodeLoaded() : Lz4Codec.isNativeCodeLoaded();
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+
+    private static boolean isLocalEngine(Configuration conf) {
+        return conf.get("clash.engine", "hadoop").equals("local");
+    }
+
+    private static void setNumReducers(Job job) {
+        Configuration conf = job.getConfiguration();
+        int numReducers = conf.getInt("clash.reducers", 0); // 0 = cluster default, one per thread in local
+        if (numReducers <= 0 && isLocalEngine(conf)) {
+            numReducers = LocalEngine.threads(conf);
+        }
+        if (numReducers > 0) {
+            job.setNumReduceTasks(numReducers);
+        }
+    }
+
+    private static boolean runStatsJob(Configuration baseConf, Path input, Path output) throws Exception {
+        Configuration conf = new Configuration(baseConf);
+        Path nodeIndex = new Path(input, NodeIndex.FILE_NAME);
+        FileSystem fs = nodeIndex.getFileSystem(conf);
+        if (!fs.exists(nodeIndex)) {
+            buildNodeIndex(conf, input);
+        }
+
+        // -sizes: only the size=k partitions of these sizes are read
+        boolean[] sizes = statsSizes(conf);
+        List<Path> edgePartitions = NodesEdges.sizePartitions(conf, new Path(input, "edges"), sizes);
+        if (edgePartitions.isEmpty()) {
+            System.err.println("No edges of the sizes " + conf.get("clash.stats.sizes") + " in " + input);
+            return false;
+        }
+
+        // counts of a sampled graph are scaled back, with confidence intervals that the binary record cannot hold
+        conf.set("clash.sample.rate", Double.toString(PairSampler.readRate(conf, input)));
+        if (PairSampler.getRate(conf) < 1 && Stats.isBinaryFormat(conf)) {
+            System.err.println("The graph output is sampled: its Stats need the text output");
+            return false;
+        }
+
+        // the replicated join needs the node index in every mapper: fall back to a sort-merge join when it is too big
+        String joinStrategy = conf.get("clash.stats.join", "auto");
+        long cacheBudgetBytes = conf.getLong("clash.stats.cache.mb", 512) << 20;
+        long indexBytes = fs.getFileStatus(nodeIndex).getLen();
+        boolean useMergeJoin = joinStrategy.equals("merge")
+            || (joinStrategy.equals("auto") && indexBytes > cacheBudgetBytes);
+        if (useMergeJoin) {
+            return runStatsMergeJoin(conf, input, edgePartitions, output) && buildStatsFile(conf, output);
+        }
+
+        String jobName = "Stats" + (sizes != null ? " [Sizes=" + conf.get("clash.stats.sizes") + "]" : "");
         System.out.println(">>> Starting Job: " + jobName);
         Job job = Job.getInstance(conf, jobName);
 
@@ -151,13 +859,111 @@ public class ProjectDriver {
         job.setNumReduceTasks(0); // Map-only job
 
         job.setMapOutputKeyClass(NullWritable.class);
-        job.setMapOutputValueClass(Text.class);
+        job.setMapOutputValueClass(Stats.isBinaryFormat(conf) ? StatsRecord.class : Text.class);
+        configureStatsOutput(job);
 
-        job.addCacheFile(new URI(input.toString() + "/nodes/part-r-00000#nodes-cache"));
+        job.addCacheFile(new URI(nodeIndex.toUri().getPath() + "#nodes-index"));
+        configureCompression(job, Stats.isBinaryFormat(conf));
         
-        FileInputFormat.addInputPath(job, new Path(input, "edges"));
+        for (Path edgePartition : edgePartitions) {
+            FileInputFormat.addInputPath(job, edgePartition);
+        }
         FileOutputFormat.setOutputPath(job, output);
 
-        return job.waitForCompletion(true);
+        return waitForCompletion(job) && buildStatsFile(conf, output);
+    }
+
+    // -statsFormat=binary: the tasks write StatsRecord SequenceFiles, merged by buildStatsFile
+    private static void configureStatsOutput(Job job) {
+        if (!Stats.isBinaryFormat(job.getConfiguration())) return;
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(StatsRecord.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    }
+
+    // Sorts the StatsRecord parts into output/stats.bin, then removes them
+    private static boolean buildStatsFile(Configuration conf, Path output) throws Exception {
+        if (!Stats.isBinaryFormat(conf)) return true;
+        System.out.println(">>> Building stats file");
+        long start = System.currentTimeMillis();
+        StatsFile.build(conf, output, new Path(output, StatsFile.FILE_NAME));
+        report(conf, "Stats File", true, start, null);
+        FileSystem fs = output.getFileSystem(conf);
+        for (FileStatus part : fs.globStatus(new Path(output, "part-*"))) {
+            fs.delete(part.getPath(), false);
+        }
+        return true;
+    }
+
+    // null for every size
+    private static boolean[] statsSizes(Configuration conf) {
+        String list = conf.get("clash.stats.sizes");
+        if (list == null || list.isEmpty()) return null;
+        boolean[] sizes = new boolean[9];
+        for (String size : list.split(",")) {
+            int archetypeSize = Integer.parseInt(size.trim());
+            if (archetypeSize < 1 || archetypeSize > 8) {
+                throw new IllegalArgumentException("-sizes: archetype sizes go from 1 to 8, not " + archetypeSize);
+            }
+            sizes[archetypeSize] = true;
+        }
+        return sizes;
+    }
+
+    private static boolean runStatsMergeJoin(Configuration conf, Path input, List<Path> edgePartitions, Path output) throws Exception {
+        List<Path> nodes = NodesEdges.sizePartitions(conf, new Path(input, "nodes"), statsSizes(conf));
+        Path sourceJoined = new Path(output.getParent(), "statsSourceJoin");
+
+        // Pass 1: edges joined with the count of their source
+        String jobName = "Stats [Merge Join, Source]";
+        System.out.println(">>> Starting Job: " + jobName);
+        Job sourceJob = Job.getInstance(conf, jobName);
+        sourceJob.setJarByClass(ProjectDriver.class);
+        sourceJob.getConfiguration().setInt("clash.stats.join.column", 0);
+        configureJoinJob(sourceJob, nodes, edgePartitions, sourceJoined);
+        sourceJob.setReducerClass(SourceJoinReducer.class);
+        configureCompression(sourceJob, true);
+        if (!waitForCompletion(sourceJob)) {
+            return false;
+        }
+
+        // Pass 2: joined with the count of their target, prediction computed from the per-size totals
+        jobName = "Stats [Merge Join, Target]";
+        System.out.println(">>> Starting Job: " + jobName);
+        Job targetJob = Job.getInstance(conf, jobName);
+        targetJob.setJarByClass(ProjectDriver.class);
+        targetJob.getConfiguration().setInt("clash.stats.join.column", 1);
+        long[] totals = NodeIndex.readTotals(conf, new Path(input, NodeIndex.FILE_NAME));
+        for (int size = 1; size <= 8; size++) {
+            targetJob.getConfiguration().setLong("clash.stats.total." + size, totals[size]);
+        }
+        configureJoinJob(targetJob, nodes, Collections.singletonList(sourceJoined), output);
+        targetJob.setReducerClass(TargetJoinReducer.class);
+        configureStatsOutput(targetJob);
+        configureCompression(targetJob, Stats.isBinaryFormat(conf));
+        boolean success = waitForCompletion(targetJob);
+
+        sourceJoined.getFileSystem(conf).delete(sourceJoined, true);
+        return success;
+    }
+
+    private static void configureJoinJob(Job job, List<Path> nodes, List<Path> edges, Path output) {
+        for (Path nodePartition : nodes) {
+            MultipleInputs.addInputPath(job, nodePartition, TextInputFormat.class, NodeJoinMapper.class);
+        }
+        for (Path edgePartition : edges) {
+            MultipleInputs.addInputPath(job, edgePartition, TextInputFormat.class, EdgeJoinMapper.class);
+        }
+
+        setNumReducers(job);
+        job.setPartitionerClass(JoinKey.ArchetypePartitioner.class);
+        job.setGroupingComparatorClass(JoinKey.GroupingComparator.class);
+
+        job.setMapOutputKeyClass(JoinKey.class);
+        job.setMapOutputValueClass(Text.class);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        FileOutputFormat.setOutputPath(job, output);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,386 @@
+package clash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Read-only HTTP query service over the output of a ProjectDriver run:
+ *
+ *   GET  /node?deck=HEX                            count and frequency of an archetype
+ *   GET  /matchup?a=HEX&b=HEX                      wins of a against b, observed vs predicted count
+ *   GET  /counters?deck=HEX[&size=k][&limit=N][&minCount=N]
+ *                                                  archetypes of size k with the best win rate
+ *                                                  against the deck (or its sub-archetypes of size k)
+ *   POST /reload[?dir=PATH]                        loads PATH (or the same directory again)
+ *   GET  /status
+ *
+ * Node counts come from the node index (memory-mapped) and matchups from the stats file,
+ * built from a text final/ when the run did not use -statsFormat=binary. Both are copied to
+ * a local directory first when the output is on HDFS. Matchups are those of final/: edges
+ * whose two archetypes are below the Stats threshold are not served. The predictions of a
+ * text final/ are rounded to 2 decimals, and so are the "predicted" counts served from it:
+ * small predictions can even read 0 (observedOverPredicted is then null); a run with
+ * -statsFormat=binary keeps them exact.
+ *
+ * The server listens on the loopback interface unless started with -bind=ADDRESS (e.g.
+ * -bind=0.0.0.0). There is no authentication, so /reload only answers loopback clients, and
+ * only loads directories under the reload root (-reloadRoot=PATH, the parent of the served
+ * directory by default).
+ *
+ * A reload builds the new snapshot next to the current one, then swaps it atomically; the
+ * old one is closed when its last in-flight request ends.
+ */
+public class QueryServer {
+
+    private final Configuration conf;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    private final Path reloadRoot; // qualified
+
+    public QueryServer(Configuration conf, Path baseOutputDir, Path reloadRoot) throws IOException {
+        this.conf = conf;
+        current.set(new Snapshot(conf, baseOutputDir));
+        if (reloadRoot == null) {
+            reloadRoot = baseOutputDir.getParent() != null ? baseOutputDir.getParent() : baseOutputDir;
+        }
+        this.reloadRoot = reloadRoot.getFileSystem(conf).makeQualified(reloadRoot);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors();
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        Path reloadRoot = null;
+        List<String> positionalArgs = new ArrayList<>();
+        for (String argument : args) {
+            if (argument.startsWith("-port=")) {
+                port = Integer.parseInt(argument.split("=")[1]);
+            } else if (argument.startsWith("-bind=")) {
+                bind = InetAddress.getByName(argument.split("=")[1]);
+            } else if (argument.startsWith("-reloadRoot=")) {
+                reloadRoot = new Path(argument.split("=")[1]);
+            } else if (argument.startsWith("-threads=")) {
+                threads = Integer.parseInt(argument.split("=")[1]);
+            } else {
+                positionalArgs.add(argument);
+            }
+        }
+        if (positionalArgs.size() < 1) {
+            System.err.println("Usage: ProjectDriver serve <base_output_dir> [-port=N] [-bind=ADDRESS] [-reloadRoot=PATH] [-threads=N]");
+            System.exit(-1);
+        }
+
+        // headers and body are two writes: without it, Nagle and delayed ACKs add ~40 ms per request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        QueryServer queryServer = new QueryServer(conf, new Path(positionalArgs.get(0)), reloadRoot);
+        HttpServer server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        server.createContext("/node", queryServer.handler(queryServer::node));
+        server.createContext("/matchup", queryServer.handler(queryServer::matchup));
+        server.createContext("/counters", queryServer.handler(queryServer::counters));
+        server.createContext("/status", queryServer.handler(queryServer::status));
+        server.createContext("/reload", queryServer::reload);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(0);
+            FileUtil.fullyDelete(queryServer.current.get().localDir); // local copies of the snapshot
+        }));
+        System.out.println(">>> Serving " + positionalArgs.get(0) + " on " + bind.getHostAddress() + ":" + port);
+    }
+
+
+    // Queries, answered from the snapshot current when the request started
+
+    interface Query {
+        String answer(Snapshot snapshot, Map<String, String> parameters) throws IOException;
+    }
+
+    String node(Snapshot snapshot, Map<String, String> parameters) {
+        String deck = archetype(parameters, "deck");
+        int size = deck.length() / 2;
+        long count = snapshot.nodes.getCount(size, Decks.pack(deck));
+        long total = snapshot.nodes.getTotal(size);
+        return "{\"deck\":\"" + deck + "\",\"size\":" + size + ",\"count\":" + count
+            + ",\"total\":" + total + ",\"frequency\":" + (total == 0 ? 0.0 : (double) count / total) + "}";
+    }
+
+    String matchup(Snapshot snapshot, Map<String, String> parameters) throws IOException {
+        String a = archetype(parameters, "a");
+        String b = archetype(parameters, "b");
+        if (a.length() != b.length()) {
+            throw new IllegalArgumentException("a and b must have the same size");
+        }
+        StatsRecord record = new StatsRecord();
+        if (!snapshot.stats.get(a, b, record)) {
+            return null;
+        }
+        return "{\"a\":\"" + a + "\",\"b\":\"" + b + "\",\"size\":" + record.getSize()
+            + ",\"count\":" + record.getCount() + ",\"wins\":" + record.getWins() + ",\"draws\":" + record.getDraws()
+            + ",\"winRate\":" + ratio(record.getWins(), record.getCount())
+            + ",\"countA\":" + record.getCountSource() + ",\"countB\":" + record.getCountTarget()
+            + ",\"predicted\":" + record.getPrediction()
+            + ",\"observedOverPredicted\":" + ratio(record.getCount(), record.getPrediction()) + "}";
+    }
+
+    String counters(Snapshot snapshot, Map<String, String> parameters) throws IOException {
+        String deck = archetype(parameters, "deck");
+        int deckSize = deck.length() / 2;
+        int size = integer(parameters, "size", deckSize);
+        int limit = integer(parameters, "limit", 10);
+        long minCount = integer(parameters, "minCount", Stats.MIN_COUNT_THRESHOLD);
+        if (size < 1 || size > deckSize || (size < deckSize && deckSize != ArchetypeEnumerator.DECK_SIZE)) {
+            throw new IllegalArgumentException("size must be the size of the deck, or at most 8 for a full deck");
+        }
+
+        long[] archetypes;
+        if (size == deckSize) {
+            archetypes = new long[] { Decks.pack(deck) };
+        } else {
+            long[] all = new long[ArchetypeEnumerator.MAX_ARCHETYPES];
+            ArchetypeEnumerator.enumerate(Decks.pack(deck), size, all);
+            archetypes = Arrays.copyOf(all, ArchetypeEnumerator.countOfSize(size));
+        }
+
+        // highest win rate of the counter first (draws are won by neither side)
+        PriorityQueue<long[]> top = new PriorityQueue<>(
+            (x, y) -> x[3] * y[2] != y[3] * x[2] ? Long.compare(y[3] * x[2], x[3] * y[2]) : Long.compare(y[2], x[2]));
+        StatsRecord record = new StatsRecord();
+        for (long archetype : archetypes) {
+            StatsFile.Scanner scanner = snapshot.stats.scan(size, archetype);
+            while (scanner.next(record)) {
+                if (record.getCount() < minCount) continue;
+                long counterWins = record.getCount() - record.getWins() - record.getDraws();
+                top.add(new long[] { archetype, record.getTarget(), record.getCount(), counterWins });
+            }
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"deck\":\"").append(deck).append("\",\"size\":").append(size).append(",\"counters\":[");
+        for (int i = 0; i < limit && !top.isEmpty(); i++) {
+            long[] counter = top.poll();
+            if (i > 0) json.append(',');
+            json.append("{\"archetype\":\"").append(Decks.toHex(counter[0], size))
+                .append("\",\"counter\":\"").append(Decks.toHex(counter[1], size))
+                .append("\",\"count\":").append(counter[2])
+                .append(",\"counterWinRate\":").append(ratio(counter[3], counter[2]))
+                .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    String status(Snapshot snapshot, Map<String, String> parameters) {
+        return "{\"dir\":\"" + snapshot.baseOutputDir + "\",\"loadedAt\":" + snapshot.loadedAt
+            + ",\"matchups\":" + snapshot.stats.getRecordCount() + "}";
+    }
+
+    private void reload(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 405, "{\"error\":\"POST only\"}");
+            return;
+        }
+        if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+            send(exchange, 403, "{\"error\":\"reload is only allowed from the server host\"}");
+            return;
+        }
+        try {
+            String dir = parameters(exchange).get("dir");
+            if (dir != null && !isUnderReloadRoot(dir)) {
+                send(exchange, 403, "{\"error\":\"dir must be under " + escape(reloadRoot.toString()) + "\"}");
+                return;
+            }
+            Snapshot replaced;
+            synchronized (this) {
+                Path baseOutputDir = dir != null ? new Path(dir) : current.get().baseOutputDir;
+                replaced = current.getAndSet(new Snapshot(conf, baseOutputDir));
+            }
+            replaced.release();
+            System.out.println(">>> Reloaded " + current.get().baseOutputDir);
+            send(exchange, 200, "{\"reloaded\":\"" + current.get().baseOutputDir + "\"}");
+        } catch (IOException | RuntimeException e) {
+            send(exchange, 500, "{\"error\":\"" + escape(String.valueOf(e.getMessage())) + "\"}");
+        }
+    }
+
+    private HttpHandler handler(Query query) {
+        return exchange -> {
+            Snapshot snapshot = acquire();
+            try {
+                String answer = query.answer(snapshot, parameters(exchange));
+                if (answer == null) {
+                    send(exchange, 404, "{\"error\":\"not found\"}");
+                } else {
+                    send(exchange, 200, answer);
+                }
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, "{\"error\":\"" + escape(e.getMessage()) + "\"}");
+            } catch (IOException e) {
+                send(exchange, 500, "{\"error\":\"" + escape(String.valueOf(e.getMessage())) + "\"}");
+            } finally {
+                snapshot.release();
+            }
+        };
+    }
+
+    private Snapshot acquire() {
+        while (true) {
+            Snapshot snapshot = current.get();
+            if (snapshot.tryAcquire()) return snapshot;
+        }
+    }
+
+
+    // Request parsing and answers
+
+    private static Map<String, String> parameters(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return parameters;
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator <= 0) continue;
+            parameters.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+    // hex archetype of 1 to 8 cards, with its cards sorted as in the pipeline output
+    private static String archetype(Map<String, String> parameters, String name) {
+        String hex = parameters.get(name);
+        if (hex == null || hex.isEmpty() || hex.length() % 2 != 0 || hex.length() > 16 || !hex.matches("[0-9a-fA-F]+")) {
+            throw new IllegalArgumentException(name + " must be an archetype of 1 to 8 hex cards");
+        }
+        String[] cards = new String[hex.length() / 2];
+        for (int i = 0; i < cards.length; i++) {
+            cards[i] = hex.substring(2 * i, 2 * i + 2).toLowerCase();
+        }
+        Arrays.sort(cards);
+        return String.join("", cards);
+    }
+
+    private static int integer(Map<String, String> parameters, String name, int defaultValue) {
+        String value = parameters.get(name);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+    }
+
+    private boolean isUnderReloadRoot(String dir) throws IOException {
+        Path path = new Path(dir);
+        if (Arrays.asList(path.toUri().getPath().split("/")).contains("..")) return false;
+        String qualified = path.getFileSystem(conf).makeQualified(path).toString();
+        String root = reloadRoot.toString();
+        return qualified.startsWith(root.endsWith("/") ? root : root + "/");
+    }
+
+    // JSON null instead of NaN or Infinity
+    private static String ratio(double numerator, double denominator) {
+        return denominator == 0 ? "null" : Double.toString(numerator / denominator);
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+
+    /** Node index and stats file of one output directory, reference-counted by the requests. */
+    static class Snapshot {
+
+        private final Path baseOutputDir;
+        private final long loadedAt = System.currentTimeMillis();
+        private final File localDir;
+        private final NodeIndex nodes;
+        private final StatsFile stats;
+        private final AtomicInteger references = new AtomicInteger(1); // 1 = held by the server
+
+        Snapshot(Configuration conf, Path baseOutputDir) throws IOException {
+            this.baseOutputDir = baseOutputDir;
+            localDir = Files.createTempDirectory("clash-query-").toFile();
+            try {
+                Path nodesEdges = new Path(baseOutputDir, "nodesEdges");
+                File nodeIndexFile = localCopy(conf, new Path(nodesEdges, NodeIndex.FILE_NAME));
+                if (nodeIndexFile == null) {
+                    nodeIndexFile = new File(localDir, NodeIndex.FILE_NAME);
+                    NodeIndex.build(conf, new Path(nodesEdges, "nodes"), new Path(nodeIndexFile.toURI()));
+                }
+                Path finalOutput = new Path(baseOutputDir, "final");
+                File statsFile = localCopy(conf, new Path(finalOutput, StatsFile.FILE_NAME));
+                if (statsFile == null) {
+                    statsFile = new File(localDir, StatsFile.FILE_NAME);
+                    StatsFile.build(conf, finalOutput, new Path(statsFile.toURI()));
+                }
+
+                nodes = NodeIndex.open(nodeIndexFile);
+                stats = StatsFile.open(conf, new Path(statsFile.toURI()));
+            } catch (IOException | RuntimeException e) {
+                FileUtil.fullyDelete(localDir);
+                throw e;
+            }
+        }
+
+        // the file itself when it is local, a copy in localDir otherwise, null when it does not exist
+        private File localCopy(Configuration conf, Path path) throws IOException {
+            FileSystem fs = path.getFileSystem(conf);
+            if (!fs.exists(path)) return null;
+            if (fs.getUri().getScheme().equals("file")) {
+                return new File(path.toUri().getPath());
+            }
+            File local = new File(localDir, path.getName());
+            fs.copyToLocalFile(false, path, new Path(local.toURI()), true);
+            return local;
+        }
+
+        boolean tryAcquire() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) return false; // closed by a reload
+                if (references.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        void release() throws IOException {
+            if (references.decrementAndGet() == 0) {
+                nodes.close();
+                stats.close();
+                FileUtil.fullyDelete(localDir);
+            }
+        }
+    }
+}
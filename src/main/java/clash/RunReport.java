@@ -0,0 +1,186 @@
+package clash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormatCounter;
+
+import clash.PhaseTimers.PhaseNanos;
+
+/**
+ * Machine-readable report of a ProjectDriver run, rewritten in the base output directory
+ * after every step (so a failed run still has one):
+ *
+ *   run-report.json  {"steps": [{"name", "success", "startMillis", "millis",
+ *                     "counters": {group: {name: value}}, "derived": {name: value},
+ *                     "skew": {...}}]}
+ *   run-report.csv   step,group,counter,value (one line per counter, derived values in the
+ *                     "derived" group)
+ *
+ * Steps are the jobs, with all their counters, and the driver-side work between them (index
+ * builds), with none. Derived values are the ratios that the counters do not give directly:
+ * records per reduce key, bytes per record, and the share of each phase timer. Jobs whose
+ * reducers profile their keys (KeyProfiler) also get their skew summary, and its two ratios
+ * as derived values.
+ */
+public class RunReport {
+
+    public static final String JSON_FILE_NAME = "run-report.json";
+    public static final String CSV_FILE_NAME = "run-report.csv";
+
+    private final Path baseOutputDir;
+    private final List<Step> steps = new ArrayList<>();
+
+    public RunReport(Path baseOutputDir) {
+        this.baseOutputDir = baseOutputDir;
+    }
+
+    /** Adds a step; counters is null for driver-side steps, skew for jobs without a profile. */
+    public void add(
+        String name, boolean success, long startMillis, long endMillis, Counters counters, KeyProfiler.Summary skew
+    ) {
+        steps.add(new Step(name, success, startMillis, endMillis - startMillis, counters, skew));
+    }
+
+    public void write(Configuration conf) throws IOException {
+        FileSystem fs = baseOutputDir.getFileSystem(conf);
+        StringBuilder json = new StringBuilder("{\"steps\":[");
+        StringBuilder csv = new StringBuilder("step,group,counter,value\n");
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            if (i > 0) json.append(',');
+            json.append("\n{\"name\":\"").append(escape(step.name)).append("\",\"success\":").append(step.success)
+                .append(",\"startMillis\":").append(step.startMillis).append(",\"millis\":").append(step.millis)
+                .append(",\"counters\":{");
+            csv.append(csvField(step.name)).append(",step,millis,").append(step.millis).append('\n');
+
+            if (step.counters != null) {
+                boolean firstGroup = true;
+                for (CounterGroup group : step.counters) {
+                    json.append(firstGroup ? "" : ",").append('"').append(escape(group.getName())).append("\":{");
+                    firstGroup = false;
+                    boolean firstCounter = true;
+                    for (Counter counter : group) {
+                        json.append(firstCounter ? "" : ",").append('"').append(escape(counter.getName()))
+                            .append("\":").append(counter.getValue());
+                        firstCounter = false;
+                        csv.append(csvField(step.name)).append(',').append(csvField(group.getName())).append(',')
+                            .append(csvField(counter.getName())).append(',').append(counter.getValue()).append('\n');
+                    }
+                    json.append('}');
+                }
+            }
+
+            json.append("},\"derived\":{");
+            boolean first = true;
+            for (Map.Entry<String, Double> derived : derive(step.counters, step.skew).entrySet()) {
+                json.append(first ? "" : ",").append('"').append(derived.getKey()).append("\":").append(derived.getValue());
+                first = false;
+                csv.append(csvField(step.name)).append(",derived,").append(derived.getKey()).append(',')
+                    .append(derived.getValue()).append('\n');
+            }
+            json.append('}');
+            if (step.skew != null) {
+                json.append(",\"skew\":").append(step.skew.toJson());
+            }
+            json.append('}');
+        }
+        json.append("\n]}\n");
+
+        write(fs, new Path(baseOutputDir, JSON_FILE_NAME), json);
+        write(fs, new Path(baseOutputDir, CSV_FILE_NAME), csv);
+    }
+
+    private static Map<String, Double> derive(Counters counters, KeyProfiler.Summary skew) {
+        Map<String, Double> derived = new LinkedHashMap<>();
+        if (skew != null) {
+            derived.put("skew.maxTaskValuesOverMean", skew.getMaxTaskValuesOverMean());
+            derived.put("skew.topKeyShare", skew.getTopKeyShare());
+        }
+        if (counters == null) return derived;
+        ratio(derived, "reduceRecordsPerKey",
+            value(counters, TaskCounter.REDUCE_INPUT_RECORDS), value(counters, TaskCounter.REDUCE_INPUT_GROUPS));
+        ratio(derived, "mapOutputBytesPerRecord",
+            value(counters, TaskCounter.MAP_OUTPUT_BYTES), value(counters, TaskCounter.MAP_OUTPUT_RECORDS));
+        ratio(derived, "mapInputBytesPerRecord",
+            value(counters, FileInputFormatCounter.BYTES_READ), value(counters, TaskCounter.MAP_INPUT_RECORDS));
+        ratio(derived, "mapOutputRecordsPerInputRecord",
+            value(counters, TaskCounter.MAP_OUTPUT_RECORDS), value(counters, TaskCounter.MAP_INPUT_RECORDS));
+
+        long totalNanos = 0;
+        for (PhaseNanos phase : PhaseNanos.values()) {
+            totalNanos += value(counters, phase);
+        }
+        for (PhaseNanos phase : PhaseNanos.values()) {
+            long nanos = value(counters, phase);
+            if (nanos > 0) {
+                derived.put("phaseShare." + phase, (double) nanos / totalNanos);
+            }
+        }
+        return derived;
+    }
+
+    private static void ratio(Map<String, Double> derived, String name, long numerator, long denominator) {
+        if (numerator > 0 && denominator > 0) {
+            derived.put(name, (double) numerator / denominator);
+        }
+    }
+
+    // without creating the group or the counter when it is missing
+    private static long value(Counters counters, Enum<?> name) {
+        String groupName = name.getDeclaringClass().getName();
+        for (String existing : counters.getGroupNames()) {
+            if (existing.equals(groupName)) {
+                Counter counter = counters.getGroup(groupName).findCounter(name.name(), false);
+                return counter == null ? 0 : counter.getValue();
+            }
+        }
+        return 0;
+    }
+
+    private static void write(FileSystem fs, Path path, CharSequence text) throws IOException {
+        try (OutputStream out = fs.create(path, true)) {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String csvField(String text) {
+        return text.indexOf(',') < 0 && text.indexOf('"') < 0 ? text : "\"" + text.replace("\"", "\"\"") + "\"";
+    }
+
+
+    private static class Step {
+
+        private final String name;
+        private final boolean success;
+        private final long startMillis;
+        private final long millis;
+        private final Counters counters;
+        private final KeyProfiler.Summary skew;
+
+        Step(String name, boolean success, long startMillis, long millis, Counters counters, KeyProfiler.Summary skew) {
+            this.name = name;
+            this.success = success;
+            this.startMillis = startMillis;
+            this.millis = millis;
+            this.counters = counters;
+            this.skew = skew;
+        }
+    }
+}
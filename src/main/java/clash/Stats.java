@@ -1,87 +1,317 @@
 package clash;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.Map;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+import clash.PhaseTimers.PhaseNanos;
 
 public class Stats {
-    
-    public static class StatsReplicatedJoin extends Mapper<Object, Text, NullWritable, Text> {
 
-        private Map<String, Long> nodesMap = new HashMap<>();
-        private long[] totalCountByArchetypeSize = new long[9];
+    static final int MIN_COUNT_THRESHOLD = 10;
 
-        private static final int MIN_COUNT_THRESHOLD = 10;
+    /**
+     * Smallest node count of a sample taken at rate whose scaled count (count / rate, rounded
+     * as in the output) reaches MIN_COUNT_THRESHOLD: the threshold applies to the counts the
+     * output reports, not to the raw counts of the sample.
+     */
+    static long minSampledCount(double sampleRate) {
+        return (long) Math.ceil((MIN_COUNT_THRESHOLD - 0.5) * Math.min(1, sampleRate));
+    }
+    
+    public static class StatsReplicatedJoin extends Mapper<Object, Text, NullWritable, Writable> {
+
+        private NodeIndex nodeIndex;
+        private StatsWriter writer;
+        private long minCount;
+        private PhaseTimers timers;
 
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
+            writer = new StatsWriter(context.getConfiguration());
+            minCount = minSampledCount(PairSampler.getRate(context.getConfiguration()));
+            timers = new PhaseTimers(context.getConfiguration());
+            long time = timers.start();
             
             URI[] cacheFiles = context.getCacheFiles();
             if (cacheFiles == null || cacheFiles.length == 0) {
-                throw new IOException("Nodes cache file not found in Distributed Cache");
+                throw new IOException("Nodes index not found in Distributed Cache");
             }
-            
-            try (BufferedReader reader = new BufferedReader(new FileReader("nodes-cache"))) {
-
-                String line;
-                while ((line = reader.readLine()) != null) {
 
-                    String[] parts = line.split(";");
-                    if (parts.length < 3) continue;
-
-                    String archetype = parts[0];
-                    long count = Long.parseLong(parts[1]);
-                    
-                    int size = archetype.length() / 2;
-                    totalCountByArchetypeSize[size] += count;
-
-                    if (count >= MIN_COUNT_THRESHOLD) {
-                        nodesMap.put(archetype, count);
-                    }
-                }
-            }
+            // memory-mapped: startup time and heap do not depend on the number of nodes
+            nodeIndex = NodeIndex.open(new File("nodes-index"));
+            timers.stop(PhaseNanos.CACHE_LOAD, time);
         }
 
         @Override
         protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
 
+            long time = timers.start();
             String line = value.toString();
             String[] parts = line.split(";");
-            if (parts.length < 4) return;
+            if (parts.length < 5) return;
 
             String archSource = parts[0];
             String archTarget = parts[1];
             long edgeCount = Long.parseLong(parts[2]);
             long edgeWin = Long.parseLong(parts[3]);
+            long edgeDraws = Long.parseLong(parts[4]);
+            long countError = parts.length >= 7 ? Long.parseLong(parts[5]) : -1; // -approx edges
+            long winError = parts.length >= 7 ? Long.parseLong(parts[6]) : -1;
+            time = timers.stop(PhaseNanos.PARSE, time);
+
+            int archetypeSize = archSource.length() / 2;
+            long countSource = nodeIndex.getCount(archetypeSize, Decks.pack(archSource));
+            long countTarget = nodeIndex.getCount(archetypeSize, Decks.pack(archTarget));
+            time = timers.stop(PhaseNanos.JOIN_LOOKUP, time);
 
             if (
-                !nodesMap.containsKey(archSource) || 
-                !nodesMap.containsKey(archTarget)
+                countSource < minCount || 
+                countTarget < minCount
             ) {
                 return;
             }
 
-            long countSource = nodesMap.get(archSource);
-            long countTarget = nodesMap.get(archTarget);
-            
-            int archetypeSize = archSource.length() / 2;
-            double prediction = (double) (countSource * countTarget) / totalCountByArchetypeSize[archetypeSize];
+            writer.write(context, archSource, archTarget, edgeCount, edgeWin, edgeDraws, countSource, countTarget,
+                nodeIndex.getTotal(archetypeSize), countError, winError);
+            timers.stop(PhaseNanos.EMIT, time);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            timers.report(context);
+            nodeIndex.close();
+        }
+    }
+
+
+
+    // Sort-merge join, used when the node index is too big to be cached by every mapper.
+    // Pass 1 joins each edge with the count of its source, pass 2 with the count of its target.
+
+    public static class NodeJoinMapper extends Mapper<Object, Text, JoinKey, Text> {
+
+        private final JoinKey outKey = new JoinKey();
+        private final Text outValue = new Text();
+        private long minCount;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            minCount = minSampledCount(PairSampler.getRate(context.getConfiguration()));
+        }
+
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+
+            String line = value.toString();
+            String[] parts = line.split(";");
+            if (parts.length < 3) return;
+
+            long count = Long.parseLong(parts[1]);
+            if (count < minCount) return;
+
+            String archetype = parts[0];
+            outKey.set(archetype.length() / 2, Decks.pack(archetype), JoinKey.NODE);
+            outValue.set(parts[1]);
+            context.write(outKey, outValue);
+        }
+    }
+
+    public static class EdgeJoinMapper extends Mapper<Object, Text, JoinKey, Text> {
+
+        private final JoinKey outKey = new JoinKey();
+        private int joinColumn; // 0 = source archetype, 1 = target archetype
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            joinColumn = context.getConfiguration().getInt("clash.stats.join.column", 0);
+        }
+
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+
+            String line = value.toString();
+            String[] parts = line.split(";");
+            if (parts.length < 5) return;
+
+            String archetype = parts[joinColumn];
+            outKey.set(archetype.length() / 2, Decks.pack(archetype), JoinKey.EDGE);
+            context.write(outKey, value);
+        }
+    }
+
+    /** Appends the source count to the edges: "source;target;count;win;draws[;countError;winError];countSource". */
+    public static class SourceJoinReducer extends Reducer<JoinKey, Text, NullWritable, Text> {
+
+        private final Text outValue = new Text();
+
+        @Override
+        protected void reduce(JoinKey key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+
+            String countSource = null;
+            for (Text value : values) {
+                if (key.getSide() == JoinKey.NODE) { // sorted first
+                    countSource = value.toString();
+                    continue;
+                }
+                if (countSource == null) return; // source below MIN_COUNT_THRESHOLD
+
+                outValue.set(value.toString() + ";" + countSource);
+                context.write(NullWritable.get(), outValue);
+            }
+        }
+    }
+
+    /** Joins the target count and writes the same lines as StatsReplicatedJoin. */
+    public static class TargetJoinReducer extends Reducer<JoinKey, Text, NullWritable, Writable> {
+
+        private final long[] totalCountByArchetypeSize = new long[9];
+        private StatsWriter writer;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            writer = new StatsWriter(context.getConfiguration());
+            for (int size = 1; size <= 8; size++) {
+                totalCountByArchetypeSize[size] = context.getConfiguration().getLong("clash.stats.total." + size, 0);
+            }
+        }
+
+        @Override
+        protected void reduce(JoinKey key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+
+            long countTarget = -1;
+            for (Text value : values) {
+                if (key.getSide() == JoinKey.NODE) { // sorted first
+                    countTarget = Long.parseLong(value.toString());
+                    continue;
+                }
+                if (countTarget < 0) return; // target below MIN_COUNT_THRESHOLD
+
+                String[] parts = value.toString().split(";");
+                String archSource = parts[0];
+                String archTarget = parts[1];
+                long edgeCount = Long.parseLong(parts[2]);
+                long edgeWin = Long.parseLong(parts[3]);
+                long edgeDraws = Long.parseLong(parts[4]);
+                long countSource = Long.parseLong(parts[parts.length - 1]);
+                long countError = parts.length >= 8 ? Long.parseLong(parts[5]) : -1;
+                long winError = parts.length >= 8 ? Long.parseLong(parts[6]) : -1;
+
+                int archetypeSize = archSource.length() / 2;
+                writer.write(context, archSource, archTarget, edgeCount, edgeWin, edgeDraws, countSource, countTarget,
+                    totalCountByArchetypeSize[archetypeSize], countError, winError);
+            }
+        }
+    }
+
+
+    static boolean isBinaryFormat(Configuration conf) {
+        return conf.get("clash.stats.format", "text").equals("binary");
+    }
+
+    /**
+     * Writes the Stats lines of a task: text, or the reused record of the binary output
+     * (-statsFormat=binary). A text line is "source;target;count;win;countSource;countTarget;
+     * prediction;draws" (draws: matches won by neither side), then the extra columns of the run:
+     *
+     *   ";countError;winError"  -approx edges: the true values are at most that much higher
+     *   ";countLow;countHigh;winRateLow;winRateHigh"  -sample runs: 95% confidence intervals
+     *
+     * so every line of an output has the same columns: 8, 10, 12 or 14 of them.
+     *
+     * In a sampled run (clash.sample.rate < 1) every count is scaled by 1 / rate, and so is the
+     * prediction. The matches of a pair are kept or dropped together, so the count of a matchup
+     * is taken as binomial in the sample (a normal interval), and its win rate gets a Wilson
+     * interval over the sampled matches; pairs that play each other often make both intervals
+     * a little optimistic.
+     */
+    static class StatsWriter {
+
+        private static final double Z = 1.96;
+
+        private final StatsRecord record; // null for the text output
+        private final double sampleRate;
+
+        StatsWriter(Configuration conf) {
+            record = isBinaryFormat(conf) ? new StatsRecord() : null;
+            sampleRate = PairSampler.getRate(conf);
+        }
+
+        // countError and winError are -1 for exact edges
+        void write(
+            TaskInputOutputContext<?, ?, NullWritable, Writable> context,
+            String archSource, String archTarget, long edgeCount, long edgeWin, long edgeDraws,
+            long countSource, long countTarget, long totalCount, long countError, long winError
+        ) throws IOException, InterruptedException {
+            if (record != null) {
+                record.set(archSource.length() / 2, Decks.pack(archSource), Decks.pack(archTarget), edgeCount, edgeWin,
+                    edgeDraws, countSource, countTarget, prediction(countSource, countTarget, totalCount));
+                context.write(NullWritable.get(), record);
+                return;
+            }
+
+            if (sampleRate >= 1) {
+                String statsLine = formatStatsLine(archSource, archTarget, edgeCount, edgeWin, countSource, countTarget, totalCount)
+                    + ";" + edgeDraws;
+                if (countError >= 0) {
+                    statsLine += ";" + countError + ";" + winError;
+                }
+                context.write(NullWritable.get(), new Text(statsLine));
+                return;
+            }
 
             StringBuilder sb = new StringBuilder();
             sb.append(archSource).append(";").append(archTarget).append(";")
-              .append(edgeCount).append(";").append(edgeWin).append(";")
-              .append(countSource).append(";").append(countTarget).append(";")
-              .append(String.format("%.2f", prediction));
+              .append(scale(edgeCount)).append(";").append(scale(edgeWin)).append(";")
+              .append(scale(countSource)).append(";").append(scale(countTarget)).append(";")
+              .append(String.format("%.2f", prediction(countSource, countTarget, totalCount) / sampleRate))
+              .append(";").append(scale(edgeDraws));
+            if (countError >= 0) {
+                sb.append(";").append(scale(countError)).append(";").append(scale(winError));
+            }
+
+            double count = edgeCount / sampleRate;
+            double countMargin = Z * Math.sqrt(edgeCount * (1 - sampleRate)) / sampleRate;
+            sb.append(";").append(Math.max(0, Math.round(count - countMargin)))
+              .append(";").append(Math.round(count + countMargin));
 
+            double winRate = (double) edgeWin / edgeCount;
+            double z2 = Z * Z / edgeCount;
+            double center = (winRate + z2 / 2) / (1 + z2);
+            double winMargin = Z * Math.sqrt(winRate * (1 - winRate) / edgeCount + z2 / (4 * edgeCount)) / (1 + z2);
+            sb.append(";").append(String.format("%.3f", center - winMargin))
+              .append(";").append(String.format("%.3f", center + winMargin));
             context.write(NullWritable.get(), new Text(sb.toString()));
         }
+
+        private long scale(long sampledCount) {
+            return Math.round(sampledCount / sampleRate);
+        }
+    }
+
+    static double prediction(long countSource, long countTarget, long totalCount) {
+        return (double) (countSource * countTarget) / totalCount;
     }
 
+    static String formatStatsLine(
+        String archSource, String archTarget, long edgeCount, long edgeWin,
+        long countSource, long countTarget, long totalCount
+    ) {
+        double prediction = prediction(countSource, countTarget, totalCount);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(archSource).append(";").append(archTarget).append(";")
+          .append(edgeCount).append(";").append(edgeWin).append(";")
+          .append(countSource).append(";").append(countTarget).append(";")
+          .append(String.format("%.2f", prediction));
+        return sb.toString();
+    }
 }
@@ -0,0 +1,507 @@
+package clash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * Sorted binary file of the Stats output (-statsFormat=binary), with a sparse block index,
+ * for point lookups and "all matchups of an archetype" scans without reading the whole file.
+ *
+ * Every matchup is stored twice, once from each side (see StatsRecord.setMirror), so that
+ * the matchups of an archetype are the contiguous range of records with that source.
+ *
+ * Layout (big-endian):
+ *   header: magic, version, records per block (3 ints), record count, block count, offset
+ *           of the index (3 longs), then for each size 0..8: first record, record count (2 longs)
+ *   records: source, target, count, wins, draws, countSource, countTarget (7 longs),
+ *           prediction (double), grouped by size, sorted by source then target (unsigned)
+ *           within a size
+ *   index: first key of every block of records: size (int), source, target (2 longs)
+ *
+ * Readers only load the header and the index (20 bytes per block), then read one block per
+ * lookup, so the file can be queried directly on HDFS.
+ */
+public class StatsFile implements Closeable {
+
+    public static final String FILE_NAME = "stats.bin";
+
+    private static final int MAGIC = 0x43525346; // "CRSF"
+    private static final int VERSION = 2;
+    private static final int MAX_SIZE = 8;
+    private static final int HEADER_BYTES = 12 + 24 + (MAX_SIZE + 1) * 16;
+    private static final int RECORD_BYTES = 64;
+    private static final int INDEX_ENTRY_BYTES = 20;
+    private static final int BLOCK_RECORDS = 128;
+
+    private final FSDataInputStream in;
+    private final long recordCount;
+    private final int blockRecords;
+    private final long[] firstRecords = new long[MAX_SIZE + 1];
+    private final long[] recordCounts = new long[MAX_SIZE + 1];
+
+    // sparse index: first key of each block
+    private final int[] blockSizes;
+    private final long[] blockSources;
+    private final long[] blockTargets;
+
+    // last block read, per reader thread
+    private final ThreadLocal<BlockBuffer> blocks;
+
+    private StatsFile(FSDataInputStream in, Path path) throws IOException {
+        this.in = in;
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            in.close();
+            throw new IOException("Not a stats file: " + path);
+        }
+        blockRecords = in.readInt();
+        recordCount = in.readLong();
+        int blockCount = (int) in.readLong();
+        long indexOffset = in.readLong();
+        for (int size = 0; size <= MAX_SIZE; size++) {
+            firstRecords[size] = in.readLong();
+            recordCounts[size] = in.readLong();
+        }
+
+        blockSizes = new int[blockCount];
+        blockSources = new long[blockCount];
+        blockTargets = new long[blockCount];
+        in.seek(indexOffset);
+        for (int i = 0; i < blockCount; i++) {
+            blockSizes[i] = in.readInt();
+            blockSources[i] = in.readLong();
+            blockTargets[i] = in.readLong();
+        }
+
+        int blockBytes = blockRecords * RECORD_BYTES;
+        blocks = ThreadLocal.withInitial(() -> new BlockBuffer(blockBytes));
+    }
+
+    /**
+     * Opens a stats file on any Hadoop file system; only its index is read. Lookups and scans
+     * use positional reads and a block buffer per thread, so one instance serves concurrent
+     * readers (a Scanner itself belongs to one thread).
+     */
+    public static StatsFile open(Configuration conf, Path path) throws IOException {
+        return new StatsFile(path.getFileSystem(conf).open(path), path);
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getRecordCount(int size) {
+        return recordCounts[size];
+    }
+
+    /** Looks up the matchup source vs target into record; false when it is not in the file. */
+    public boolean get(int size, long source, long target, StatsRecord record) throws IOException {
+        if (recordCounts[size] == 0) return false;
+        long first = blockOf(size, source, target) * (long) blockRecords;
+        long end = Math.min(first + blockRecords, recordCount);
+
+        // binary search within the block
+        long lo = Math.max(first, firstRecords[size]);
+        long hi = Math.min(end, firstRecords[size] + recordCounts[size]) - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            readRecord(mid, size, record);
+            int cmp = compare(size, record.getSource(), record.getTarget(), size, source, target);
+            if (cmp == 0) return true;
+            if (cmp < 0) lo = mid + 1; else hi = mid - 1;
+        }
+        return false;
+    }
+
+    public boolean get(String source, String target, StatsRecord record) throws IOException {
+        return get(source.length() / 2, Decks.pack(source), Decks.pack(target), record);
+    }
+
+    /** Range scan of every matchup of source, by increasing target. */
+    public Scanner scan(int size, long source) throws IOException {
+        long position = firstRecords[size] + recordCounts[size];
+        if (recordCounts[size] > 0) {
+            long first = Math.max(blockOf(size, source, 0L) * (long) blockRecords, firstRecords[size]);
+            long last = firstRecords[size] + recordCounts[size];
+            StatsRecord record = new StatsRecord();
+            for (position = first; position < last; position++) {
+                readRecord(position, size, record);
+                if (Long.compareUnsigned(record.getSource(), source) >= 0) break;
+            }
+        }
+        return new Scanner(size, source, position);
+    }
+
+    public Scanner scan(String source) throws IOException {
+        return scan(source.length() / 2, Decks.pack(source));
+    }
+
+    /** Records of a scan, read into a caller-provided StatsRecord. */
+    public class Scanner {
+
+        private final int size;
+        private final long source;
+        private long position;
+
+        private Scanner(int size, long source, long position) {
+            this.size = size;
+            this.source = source;
+            this.position = position;
+        }
+
+        public boolean next(StatsRecord record) throws IOException {
+            if (position >= firstRecords[size] + recordCounts[size]) return false;
+            readRecord(position, size, record);
+            if (record.getSource() != source) {
+                position = Long.MAX_VALUE;
+                return false;
+            }
+            position++;
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // last block whose first key is <= the key, 0 when the key is before every block
+    private int blockOf(int size, long source, long target) {
+        int lo = 0;
+        int hi = blockSizes.length - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(blockSizes[mid], blockSources[mid], blockTargets[mid], size, source, target) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private void readRecord(long position, int size, StatsRecord record) throws IOException {
+        BlockBuffer buffer = blocks.get();
+        long blockIndex = position / blockRecords;
+        if (blockIndex != buffer.loaded) {
+            long first = blockIndex * blockRecords;
+            int records = (int) Math.min(blockRecords, recordCount - first);
+            in.readFully(HEADER_BYTES + first * RECORD_BYTES, buffer.bytes, 0, records * RECORD_BYTES);
+            buffer.loaded = blockIndex;
+        }
+        ByteBuffer block = buffer.block;
+        int offset = (int) (position % blockRecords) * RECORD_BYTES;
+        record.set(size, block.getLong(offset), block.getLong(offset + 8), block.getLong(offset + 16),
+            block.getLong(offset + 24), block.getLong(offset + 32), block.getLong(offset + 40),
+            block.getLong(offset + 48), block.getDouble(offset + 56));
+    }
+
+    private static class BlockBuffer {
+
+        private final byte[] bytes;
+        private final ByteBuffer block;
+        private long loaded = -1;
+
+        BlockBuffer(int size) {
+            bytes = new byte[size];
+            block = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private static int compare(int size1, long source1, long target1, int size2, long source2, long target2) {
+        int cmp = Integer.compare(size1, size2);
+        if (cmp != 0) return cmp;
+        cmp = Long.compareUnsigned(source1, source2);
+        return cmp != 0 ? cmp : Long.compareUnsigned(target1, target2);
+    }
+
+
+    /**
+     * Builds the stats file from the parts written by the Stats job, in any order: StatsRecord
+     * SequenceFiles, or text lines (whose predictions are rounded to 2 decimals). Records (and
+     * their mirrors) are sorted in runs of at most clash.stats.sort.mb, spilled to local files,
+     * then merged; the file is written locally, then copied to output.
+     */
+    public static void build(Configuration conf, Path statsDir, Path output) throws IOException {
+        FileSystem fs = statsDir.getFileSystem(conf);
+        FileStatus[] parts = fs.globStatus(new Path(statsDir, "part-*"));
+        if (parts == null) {
+            throw new IOException("No stats files found in " + statsDir);
+        }
+
+        int runRecords = (int) Math.min(Integer.MAX_VALUE - 8,
+            (conf.getLong("clash.stats.sort.mb", 64) << 20) / (RECORD_BYTES + 1));
+        SortRun run = new SortRun(Math.max(2, runRecords));
+        List<File> runFiles = new ArrayList<>();
+        File localFile = File.createTempFile("stats-", ".bin");
+        try {
+            StatsRecord record = new StatsRecord();
+            StatsRecord mirror = new StatsRecord();
+            NullWritable key = NullWritable.get();
+            CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+            for (FileStatus part : parts) {
+                if (isSequenceFile(fs, part.getPath())) {
+                    try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part.getPath()))) {
+                        while (reader.next(key, record)) {
+                            addToRun(run, runFiles, record, mirror);
+                        }
+                    }
+                    continue;
+                }
+                InputStream in = fs.open(part.getPath());
+                CompressionCodec codec = codecs.getCodec(part.getPath());
+                if (codec != null) {
+                    in = codec.createInputStream(in);
+                }
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] columns = line.split(";");
+                        if (columns.length < 7) continue;
+                        if (columns.length == 7) {
+                            throw new IOException(part.getPath() + " was written before draws were counted: rerun Stats to build the index");
+                        }
+                        record.set(columns[0].length() / 2, Decks.pack(columns[0]), Decks.pack(columns[1]),
+                            Long.parseLong(columns[2]), Long.parseLong(columns[3]), Long.parseLong(columns[7]), Long.parseLong(columns[4]),
+                            Long.parseLong(columns[5]), Double.parseDouble(columns[6].replace(',', '.')));
+                        addToRun(run, runFiles, record, mirror);
+                    }
+                }
+            }
+            if (run.size > 0 || runFiles.isEmpty()) runFiles.add(run.spill());
+
+            merge(runFiles, localFile);
+            output.getFileSystem(conf).copyFromLocalFile(true, true, new Path(localFile.getAbsolutePath()), output);
+        } finally {
+            for (File runFile : runFiles) {
+                runFile.delete();
+            }
+            localFile.delete();
+        }
+    }
+
+    private static void addToRun(SortRun run, List<File> runFiles, StatsRecord record, StatsRecord mirror) throws IOException {
+        if (run.isFull(2)) runFiles.add(run.spill());
+        run.add(record);
+        if (record.getSource() != record.getTarget()) {
+            run.add(mirror.setMirror(record));
+        }
+    }
+
+    private static boolean isSequenceFile(FileSystem fs, Path path) throws IOException {
+        byte[] magic = new byte[3];
+        try (FSDataInputStream in = fs.open(path)) {
+            return in.read(magic) == 3 && magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q';
+        }
+    }
+
+    private static void merge(List<File> runFiles, File localFile) throws IOException {
+        PriorityQueue<RunCursor> cursors = new PriorityQueue<>();
+        List<RunCursor> opened = new ArrayList<>();
+        try (RandomAccessFile out = new RandomAccessFile(localFile, "rw")) {
+            for (File runFile : runFiles) {
+                RunCursor cursor = new RunCursor(runFile);
+                opened.add(cursor);
+                if (cursor.advance()) cursors.add(cursor);
+            }
+
+            long[] firstRecords = new long[MAX_SIZE + 1];
+            long[] recordCounts = new long[MAX_SIZE + 1];
+            ByteBuffer index = ByteBuffer.allocate(1024);
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_RECORDS * RECORD_BYTES);
+            out.setLength(0);
+            out.write(new byte[HEADER_BYTES]);
+
+            long records = 0;
+            int previousSize = -1;
+            while (!cursors.isEmpty()) {
+                RunCursor cursor = cursors.poll();
+                StatsRecord record = cursor.record;
+                if (record.getSize() != previousSize) {
+                    firstRecords[record.getSize()] = records;
+                    previousSize = record.getSize();
+                }
+                recordCounts[record.getSize()]++;
+
+                if (records % BLOCK_RECORDS == 0) {
+                    if (index.remaining() < INDEX_ENTRY_BYTES) {
+                        ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2);
+                        index.flip();
+                        index = larger.put(index);
+                    }
+                    index.putInt(record.getSize()).putLong(record.getSource()).putLong(record.getTarget());
+                }
+                if (buffer.remaining() < RECORD_BYTES) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                buffer.putLong(record.getSource()).putLong(record.getTarget()).putLong(record.getCount())
+                    .putLong(record.getWins()).putLong(record.getDraws()).putLong(record.getCountSource())
+                    .putLong(record.getCountTarget()).putDouble(record.getPrediction());
+                records++;
+
+                if (cursor.advance()) cursors.add(cursor);
+            }
+            out.write(buffer.array(), 0, buffer.position());
+
+            long indexOffset = out.getFilePointer();
+            out.write(index.array(), 0, index.position());
+
+            out.seek(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(BLOCK_RECORDS);
+            out.writeLong(records);
+            out.writeLong(index.position() / INDEX_ENTRY_BYTES);
+            out.writeLong(indexOffset);
+            for (int size = 0; size <= MAX_SIZE; size++) {
+                out.writeLong(firstRecords[size]);
+                out.writeLong(recordCounts[size]);
+            }
+        } finally {
+            for (RunCursor cursor : opened) {
+                cursor.in.close();
+            }
+        }
+    }
+
+
+    /** In-memory run of records in columns, sorted with QuickSort before it is spilled. */
+    private static class SortRun implements IndexedSortable {
+
+        private final byte[] sizes;
+        private final long[] sources;
+        private final long[] targets;
+        private final long[] counts;
+        private final long[] wins;
+        private final long[] draws;
+        private final long[] countSources;
+        private final long[] countTargets;
+        private final double[] predictions;
+        private int size;
+
+        SortRun(int capacity) {
+            sizes = new byte[capacity];
+            sources = new long[capacity];
+            targets = new long[capacity];
+            counts = new long[capacity];
+            wins = new long[capacity];
+            draws = new long[capacity];
+            countSources = new long[capacity];
+            countTargets = new long[capacity];
+            predictions = new double[capacity];
+        }
+
+        boolean isFull(int records) {
+            return size + records > sizes.length;
+        }
+
+        void add(StatsRecord record) {
+            sizes[size] = (byte) record.getSize();
+            sources[size] = record.getSource();
+            targets[size] = record.getTarget();
+            counts[size] = record.getCount();
+            wins[size] = record.getWins();
+            draws[size] = record.getDraws();
+            countSources[size] = record.getCountSource();
+            countTargets[size] = record.getCountTarget();
+            predictions[size] = record.getPrediction();
+            size++;
+        }
+
+        File spill() throws IOException {
+            new QuickSort().sort(this, 0, size);
+            File runFile = File.createTempFile("stats-run-", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 64 * 1024))) {
+                for (int i = 0; i < size; i++) {
+                    out.writeByte(sizes[i]);
+                    out.writeLong(sources[i]);
+                    out.writeLong(targets[i]);
+                    out.writeLong(counts[i]);
+                    out.writeLong(wins[i]);
+                    out.writeLong(draws[i]);
+                    out.writeLong(countSources[i]);
+                    out.writeLong(countTargets[i]);
+                    out.writeDouble(predictions[i]);
+                }
+            }
+            size = 0;
+            return runFile;
+        }
+
+        @Override
+        public int compare(int i, int j) {
+            return StatsFile.compare(sizes[i], sources[i], targets[i], sizes[j], sources[j], targets[j]);
+        }
+
+        @Override
+        public void swap(int i, int j) {
+            byte b = sizes[i]; sizes[i] = sizes[j]; sizes[j] = b;
+            long l = sources[i]; sources[i] = sources[j]; sources[j] = l;
+            l = targets[i]; targets[i] = targets[j]; targets[j] = l;
+            l = counts[i]; counts[i] = counts[j]; counts[j] = l;
+            l = wins[i]; wins[i] = wins[j]; wins[j] = l;
+            l = draws[i]; draws[i] = draws[j]; draws[j] = l;
+            l = countSources[i]; countSources[i] = countSources[j]; countSources[j] = l;
+            l = countTargets[i]; countTargets[i] = countTargets[j]; countTargets[j] = l;
+            double d = predictions[i]; predictions[i] = predictions[j]; predictions[j] = d;
+        }
+    }
+
+
+    private static class RunCursor implements Comparable<RunCursor> {
+
+        private final DataInputStream in;
+        private final StatsRecord record = new StatsRecord();
+
+        RunCursor(File runFile) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), 64 * 1024));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                record.readFields(in);
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(RunCursor other) {
+            return compare(record.getSize(), record.getSource(), record.getTarget(),
+                other.record.getSize(), other.record.getSource(), other.record.getTarget());
+        }
+    }
+}
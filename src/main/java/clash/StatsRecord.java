@@ -0,0 +1,118 @@
+package clash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * One matchup of the Stats output in binary form (-statsFormat=binary): the same columns
+ * as a "source;target;count;win;countSource;countTarget;prediction;draws" line, with packed
+ * archetypes and a fixed width, so writing it never allocates.
+ */
+public class StatsRecord implements Writable {
+
+    private int size;
+    private long source;
+    private long target;
+    private long count;
+    private long wins;
+    private long draws;
+    private long countSource;
+    private long countTarget;
+    private double prediction;
+
+    public StatsRecord set(
+        int size, long source, long target, long count, long wins, long draws,
+        long countSource, long countTarget, double prediction
+    ) {
+        this.size = size;
+        this.source = source;
+        this.target = target;
+        this.count = count;
+        this.wins = wins;
+        this.draws = draws;
+        this.countSource = countSource;
+        this.countTarget = countTarget;
+        this.prediction = prediction;
+        return this;
+    }
+
+    /** The same matchup seen from the target: wins become the wins of the target, draws stay draws. */
+    public StatsRecord setMirror(StatsRecord other) {
+        return set(other.size, other.target, other.source, other.count, other.count - other.wins - other.draws,
+            other.draws, other.countTarget, other.countSource, other.prediction);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getSource() {
+        return source;
+    }
+
+    public long getTarget() {
+        return target;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /** Matches of the matchup won by the source archetype. */
+    public long getWins() {
+        return wins;
+    }
+
+    /** Matches of the matchup won by neither archetype. */
+    public long getDraws() {
+        return draws;
+    }
+
+    public long getCountSource() {
+        return countSource;
+    }
+
+    public long getCountTarget() {
+        return countTarget;
+    }
+
+    public double getPrediction() {
+        return prediction;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(size);
+        out.writeLong(source);
+        out.writeLong(target);
+        out.writeLong(count);
+        out.writeLong(wins);
+        out.writeLong(draws);
+        out.writeLong(countSource);
+        out.writeLong(countTarget);
+        out.writeDouble(prediction);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        size = in.readByte();
+        source = in.readLong();
+        target = in.readLong();
+        count = in.readLong();
+        wins = in.readLong();
+        draws = in.readLong();
+        countSource = in.readLong();
+        countTarget = in.readLong();
+        prediction = in.readDouble();
+    }
+
+    /** Same text as a line of the text Stats output. */
+    @Override
+    public String toString() {
+        return Decks.toHex(source, size) + ";" + Decks.toHex(target, size) + ";" + count + ";" + wins
+            + ";" + countSource + ";" + countTarget + ";" + String.format("%.2f", prediction) + ";" + draws;
+    }
+}
@@ -0,0 +1,90 @@
+package clash;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ArchetypeCacheTest {
+
+    private static final int MIN_SIZE = 6;
+
+    private static long deck(Random random) {
+        long deck = 0;
+        int cards = 0;
+        while (cards < 8) {
+            long card = random.nextInt(120);
+            boolean duplicate = false;
+            for (int i = 0; i < cards; i++) {
+                if (((deck >>> (8 * (7 - i))) & 0xFF) == card) duplicate = true;
+            }
+            if (duplicate) continue;
+            deck |= card << (8 * (7 - cards++));
+        }
+        return ArchetypeEnumerator.sortDeckCards(deck);
+    }
+
+    private static long[] enumerate(long sortedDeck) {
+        long[] archetypes = new long[ArchetypeEnumerator.countFrom(MIN_SIZE)];
+        ArchetypeEnumerator.enumerate(sortedDeck, MIN_SIZE, archetypes);
+        return archetypes;
+    }
+
+    @Test
+    public void evictsUnreferencedEntriesButNeverThePreviousOne() {
+        Random random = new Random(1);
+        long a = deck(random);
+        long b = deck(random);
+        long c = deck(random);
+        ArchetypeCache cache = new ArchetypeCache(2, MIN_SIZE);
+
+        cache.get(a);
+        long[] previous = cache.get(b);
+        cache.get(c); // evicts a: b was returned last
+        assertArrayEquals(enumerate(b), previous);
+        assertEquals(3, cache.getMisses());
+
+        assertSame(previous, cache.get(b));
+        assertEquals(1, cache.getHits());
+        cache.get(a); // evicts c: b was returned last, and referenced
+        cache.get(c);
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test
+    public void referencedEntriesGetASecondChance() {
+        Random random = new Random(2);
+        long[] decks = { deck(random), deck(random), deck(random), deck(random), deck(random) };
+        ArchetypeCache cache = new ArchetypeCache(4, MIN_SIZE);
+        for (int i = 0; i < 4; i++) {
+            cache.get(decks[i]);
+        }
+        cache.get(decks[0]); // referenced
+        cache.get(decks[3]); // returned last
+        cache.get(decks[4]); // the hand skips 0 (referenced), evicts 1
+        long misses = cache.getMisses();
+        cache.get(decks[0]);
+        cache.get(decks[2]);
+        assertEquals(misses, cache.getMisses());
+        cache.get(decks[1]);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void staysConsistentThroughManyEvictions() {
+        Random random = new Random(3);
+        long[] pool = new long[300];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = deck(random);
+        }
+        ArchetypeCache cache = new ArchetypeCache(64, MIN_SIZE);
+        for (int i = 0; i < 20000; i++) {
+            long deck = pool[(int) Math.min(pool.length - 1, Math.abs(random.nextGaussian()) * 60)];
+            assertArrayEquals(enumerate(deck), cache.get(deck));
+        }
+        assertEquals(20000, cache.getHits() + cache.getMisses());
+    }
+}
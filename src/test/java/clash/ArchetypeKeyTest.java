@@ -0,0 +1,87 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+public class ArchetypeKeyTest {
+
+    private final ArchetypeKey.Comparator comparator = new ArchetypeKey.Comparator();
+
+    @Test
+    public void rawCompareMatchesCompareTo() throws IOException {
+        ArchetypeKey[] keys = {
+            new ArchetypeKey().setNode(2, Decks.pack("0a0e")),
+            new ArchetypeKey().setNode(2, Decks.pack("0a0f")),
+            new ArchetypeKey().setNode(2, Decks.pack("f00e")),
+            new ArchetypeKey().setNode(3, Decks.pack("0a0e15")),
+            new ArchetypeKey().setSketchCell(2, 1, 7, 0),
+            new ArchetypeKey().setSketchCell(2, 3, 0, 0),
+            new ArchetypeKey().setSketchCell(2, 3, 0, 1),
+            new ArchetypeKey().setEdge(2, Decks.pack("0a0e"), Decks.pack("0a0f")),
+            new ArchetypeKey().setEdge(2, Decks.pack("0a0e"), Decks.pack("ff00")),
+            new ArchetypeKey().setEdge(2, Decks.pack("ff00"), Decks.pack("0a0e")),
+        };
+        for (ArchetypeKey a : keys) {
+            for (ArchetypeKey b : keys) {
+                assertEquals(a + " vs " + b, Integer.signum(a.compareTo(b)), Integer.signum(rawCompare(a, b)));
+            }
+        }
+    }
+
+    @Test
+    public void byteOrderIsHexOrderWithinOneSize() throws IOException {
+        String[] sorted = { "000102", "0a0e15", "0a0f00", "800001", "f0f1f2" };
+        for (int i = 0; i + 1 < sorted.length; i++) {
+            ArchetypeKey a = new ArchetypeKey().setNode(3, Decks.pack(sorted[i]));
+            ArchetypeKey b = new ArchetypeKey().setNode(3, Decks.pack(sorted[i + 1]));
+            assertTrue(sorted[i], rawCompare(a, b) < 0);
+        }
+    }
+
+    @Test
+    public void sizeComesBeforeHexOrder() throws IOException {
+        // "0a0e15" < "0b" as text, but the size in the tag sorts every size-1 node first
+        ArchetypeKey small = new ArchetypeKey().setNode(1, Decks.pack("0b"));
+        ArchetypeKey large = new ArchetypeKey().setNode(3, Decks.pack("0a0e15"));
+        assertTrue(rawCompare(small, large) < 0);
+    }
+
+    @Test
+    public void roundTripsEveryKind() throws IOException {
+        ArchetypeKey[] keys = {
+            new ArchetypeKey().setNode(8, Decks.pack("0001070e12375b62")),
+            new ArchetypeKey().setEdge(2, Decks.pack("0a0e"), Decks.pack("ff00")),
+            new ArchetypeKey().setSketchCell(6, EdgeSketch.SLACK_ROW, 0, 3), // the replica picks the reducer
+        };
+        ArchetypeKey read = new ArchetypeKey().setEdge(1, 1L, 2L); // reused, as by a reader
+        for (ArchetypeKey key : keys) {
+            DataOutputBuffer out = new DataOutputBuffer();
+            key.write(out);
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(out.getData(), out.getLength());
+            read.readFields(in);
+            assertEquals(key, read);
+            assertEquals(key.getSecond(), read.getSecond());
+        }
+    }
+
+    @Test
+    public void toHexFoldsCase() {
+        assertEquals("0a0e", Decks.toHex(Decks.pack("0A0E"), 2));
+        assertEquals(Decks.pack("0a0e"), Decks.pack("0A0E"));
+    }
+
+    private int rawCompare(ArchetypeKey a, ArchetypeKey b) throws IOException {
+        DataOutputBuffer bufferA = new DataOutputBuffer();
+        DataOutputBuffer bufferB = new DataOutputBuffer();
+        a.write(bufferA);
+        b.write(bufferB);
+        return comparator.compare(bufferA.getData(), 0, bufferA.getLength(), bufferB.getData(), 0, bufferB.getLength());
+    }
+}
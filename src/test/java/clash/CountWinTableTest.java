@@ -0,0 +1,77 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.junit.Test;
+
+public class CountWinTableTest {
+
+    private final Map<String, String> written = new HashMap<>();
+    private int writes;
+
+    // only write() is called by the table: key and value are copied, as they are reused
+    @SuppressWarnings("unchecked")
+    private final TaskInputOutputContext<?, ?, ArchetypeKey, CountWin> context =
+        (TaskInputOutputContext<?, ?, ArchetypeKey, CountWin>) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { TaskInputOutputContext.class }, (proxy, method, args) -> {
+                if (!method.getName().equals("write")) throw new UnsupportedOperationException(method.getName());
+                written.put(args[0].toString() + "/" + ((ArchetypeKey) args[0]).getTag(), format((CountWin) args[1]));
+                writes++;
+                return null;
+            });
+
+    private static String format(CountWin value) {
+        return value.getCount() + ";" + value.getWins() + ";" + value.getDraws();
+    }
+
+    @Test
+    public void sumsEntriesAndFlushesEachKeyOnce() throws IOException, InterruptedException {
+        CountWinTable table = new CountWinTable(0);
+        ArchetypeKey key = new ArchetypeKey();
+        long a = Decks.pack("0102");
+        long b = Decks.pack("0304");
+
+        table.add(key.setNode(2, a), 1, 1, 0);
+        table.add(key.setNode(2, a), 1, 0, 0);
+        table.add(key.setEdge(2, a, b), 1, 0, 1);
+        table.add(key.setEdge(2, a, b), 1, 1, 0);
+        table.add(key.setNode(3, a), 1, 0, 0); // same word, other size
+        assertEquals(3, table.size());
+
+        table.flush(context);
+        assertEquals(3, writes);
+        assertEquals("2;1;0", written.get("0102/" + (ArchetypeKey.NODE | 2)));
+        assertEquals("2;1;1", written.get("0102;0304/" + (ArchetypeKey.EDGE | 2)));
+        assertEquals("1;0;0", written.get("010200/" + (ArchetypeKey.NODE | 3)));
+
+        assertEquals(0, table.size());
+        table.flush(context);
+        assertEquals(3, writes);
+        table.add(key.setNode(2, a), 1, 0, 0);
+        table.flush(context);
+        assertEquals("1;0;0", written.get("0102/" + (ArchetypeKey.NODE | 2)));
+    }
+
+    @Test
+    public void asksForAFlushAtTheMaximumLoad() throws IOException, InterruptedException {
+        CountWinTable table = new CountWinTable(0); // 1024 slots, flush at 716 entries
+        ArchetypeKey key = new ArchetypeKey();
+        for (long i = 0; i < 715; i++) {
+            assertFalse(table.add(key.setNode(8, i << 8), 1, 0, 0));
+        }
+        assertFalse(table.add(key.setNode(8, 0), 1, 0, 0)); // existing key
+        assertTrue(table.add(key.setNode(8, 715L << 8), 1, 0, 0));
+
+        table.flush(context);
+        assertEquals(716, writes);
+        assertEquals("2;0;0", written.get(Decks.toHex(0, 8) + "/" + (ArchetypeKey.NODE | 8)));
+    }
+}
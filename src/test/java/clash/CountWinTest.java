@@ -0,0 +1,55 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class CountWinTest {
+
+    @Test
+    public void singleMatchTakesTwoBytes() throws IOException {
+        assertEquals(2, serialize(new CountWin(1, 1)).length);
+        assertEquals(2, serialize(new CountWin(1, 0)).length);
+        assertEquals(3, serialize(new CountWin(1, 0, 1)).length);
+    }
+
+    @Test
+    public void roundTripsDraws() throws IOException {
+        CountWin read = deserialize(serialize(new CountWin(1000, 400, 37)));
+        assertEquals(1000, read.getCount());
+        assertEquals(400, read.getWins());
+        assertEquals(37, read.getDraws());
+
+        read = deserialize(serialize(new CountWin(5, 3)));
+        assertEquals(3, read.getWins());
+        assertEquals(0, read.getDraws());
+    }
+
+    @Test
+    public void sumsDraws() {
+        CountWin total = new CountWin(3, 1);
+        total.add(new CountWin(1, 0, 1));
+        assertEquals(4, total.getCount());
+        assertEquals(1, total.getWins());
+        assertEquals(1, total.getDraws());
+        assertEquals("4;1", total.toString()); // the node columns, edge lines add the draws
+    }
+
+    private static byte[] serialize(CountWin value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        value.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static CountWin deserialize(byte[] bytes) throws IOException {
+        CountWin value = new CountWin();
+        value.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return value;
+    }
+}
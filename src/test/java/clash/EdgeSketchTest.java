@@ -0,0 +1,95 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+public class EdgeSketchTest {
+
+    private static Configuration smallSketch() {
+        Configuration conf = new Configuration(false);
+        conf.setLong("clash.approx.sketch.mb", 0); // 1024 columns
+        conf.setLong("clash.approx.tracked.mb", 0); // 1024 slots, 512 edges
+        return conf;
+    }
+
+    // edges with a skewed number of matches, first below second
+    private static long[] edge(Random random) {
+        long first = random.nextInt(1 + random.nextInt(2000));
+        return new long[] { first, first + 1 + random.nextInt(50) };
+    }
+
+    @Test
+    public void estimatesNeverUndercountAndLossesStayWithinTheSlack() {
+        Configuration conf = smallSketch();
+        conf.setLong("clash.approx.tracked.mb", 1);
+        EdgeSketch sketch = new EdgeSketch(conf, true);
+        Map<String, long[]> truth = new HashMap<>(); // count, wins, emitted
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long[] edge = edge(random);
+            boolean win = random.nextBoolean();
+            long[] counts = truth.computeIfAbsent(edge[0] + ";" + edge[1], k -> new long[3]);
+            counts[0]++;
+            if (win) counts[1]++;
+            if (sketch.add(edge[0], edge[1], win)) counts[2]++;
+        }
+
+        assertFalse(sketch.isTrackedFull());
+        for (Map.Entry<String, long[]> entry : truth.entrySet()) {
+            String[] edge = entry.getKey().split(";");
+            long first = Long.parseLong(edge[0]);
+            long second = Long.parseLong(edge[1]);
+            long[] counts = entry.getValue();
+            assertTrue(sketch.estimateCount(first, second) >= counts[0]);
+            assertTrue(sketch.estimateWins(first, second) >= counts[1]);
+            assertTrue(counts[0] - counts[2] <= sketch.mapperSlack());
+        }
+    }
+
+    @Test
+    public void trackedEdgeStaysTrackedWhenTheThresholdRises() {
+        EdgeSketch sketch = new EdgeSketch(smallSketch(), true);
+        assertFalse(sketch.add(1, 2, true));
+        assertTrue(sketch.add(1, 2, true)); // threshold 2
+        assertEquals(1, sketch.getTrackedCount());
+
+        for (long i = 0; i < 10000; i++) {
+            sketch.add(1000 + i, 1000000 + i, false); // threshold now 2 + 10002 / 1024
+        }
+        assertTrue(sketch.mapperSlack() >= 10);
+        assertTrue(sketch.add(1, 2, false));
+    }
+
+    @Test
+    public void fullTrackedSetMakesTheSlackTheTotal() {
+        Configuration conf = smallSketch();
+        conf.setInt("clash.approx.track.min", 1); // every edge is heavy from its first match
+        EdgeSketch sketch = new EdgeSketch(conf, true);
+        for (long i = 0; i < 600; i++) {
+            assertTrue(sketch.add(i, i + 1, false));
+        }
+        assertEquals(512, sketch.getTrackedCount());
+        assertTrue(sketch.isTrackedFull());
+        assertEquals(600, sketch.mapperSlack());
+    }
+
+    @Test
+    public void mergesCellsAndSlacks() {
+        EdgeSketch merged = new EdgeSketch(smallSketch(), false);
+        merged.addCell(0, 7, 3, 1);
+        merged.addCell(0, 7, 2, 2);
+        merged.addCell(1, 9, 5, 3);
+        merged.addCell(EdgeSketch.SLACK_ROW, 0, 4, 0);
+        merged.addCell(EdgeSketch.SLACK_ROW, 0, 6, 0);
+        assertEquals(5, merged.getTotal()); // row 0 only
+        assertEquals(10, merged.getSlack());
+    }
+}
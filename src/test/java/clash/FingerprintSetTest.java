@@ -0,0 +1,105 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FingerprintSetTest {
+
+    private File spillDirectory;
+
+    @Before
+    public void createSpillDirectory() throws IOException {
+        spillDirectory = Files.createTempDirectory("fingerprints").toFile();
+    }
+
+    @After
+    public void deleteSpillDirectory() {
+        spillDirectory.delete();
+    }
+
+    @Test
+    public void spillsAndFindsFingerprintsInRuns() throws IOException {
+        FingerprintSet set = new FingerprintSet(0, spillDirectory); // smallest table: 1024 slots
+        for (long i = 0; i < 5000; i++) {
+            assertTrue(set.add(i * 0x9E3779B97F4A7C15L, i));
+        }
+        assertTrue(set.getSpills() >= 5);
+        for (long i = 0; i < 5000; i++) {
+            assertFalse(set.add(i * 0x9E3779B97F4A7C15L, i));
+        }
+        assertEquals(0, set.getPartialCollisions());
+        set.close();
+        assertEquals(0, spillDirectory.list().length);
+    }
+
+    @Test
+    public void countsPartialCollisionsInTableAndRuns() throws IOException {
+        FingerprintSet set = new FingerprintSet(0, spillDirectory);
+        assertTrue(set.add(42, 1));
+        assertTrue(set.add(42, 2)); // same high, in the table
+        assertEquals(1, set.getPartialCollisions());
+
+        for (long i = 100; set.getSpills() == 0; i++) {
+            set.add(i, 0);
+        }
+        assertTrue(set.add(42, 3)); // same high, only in a run now
+        assertEquals(2, set.getPartialCollisions());
+        assertTrue(set.add(42, 4)); // same high in the table and in the run: one collision
+        assertEquals(3, set.getPartialCollisions());
+        assertFalse(set.add(42, 2));
+        assertEquals(3, set.getPartialCollisions());
+        set.close();
+    }
+
+    @Test
+    public void findsCollisionsAcrossBlocksOfARun() throws IOException {
+        FingerprintSet set = new FingerprintSet(0, spillDirectory);
+        for (long i = 0; set.getSpills() == 0; i++) {
+            set.add(i / 2, i); // pairs sharing their high, some split between two blocks
+        }
+        long before = set.getPartialCollisions();
+        for (long high = 0; high < 300; high++) {
+            assertTrue(set.add(high, -1));
+        }
+        assertEquals(before + 300, set.getPartialCollisions());
+        assertTrue(set.add(-1, 0));
+        assertTrue(set.add(Long.MIN_VALUE, 0));
+        assertEquals(before + 300, set.getPartialCollisions());
+        set.close();
+    }
+
+    @Test
+    public void clearEmptiesTheSet() throws IOException {
+        FingerprintSet set = new FingerprintSet(0, spillDirectory);
+        for (long i = 0; i < 2000; i++) {
+            set.add(i, i);
+        }
+        set.clear();
+        assertEquals(0, spillDirectory.list().length);
+        for (long i = 0; i < 2000; i++) {
+            assertTrue(set.add(i, i));
+        }
+        set.close();
+    }
+
+    @Test(timeout = 10000)
+    public void clearDoesNotScanTheTable() throws IOException {
+        // 32 MB: 1M slots; a full wipe per group would take minutes here
+        FingerprintSet set = new FingerprintSet(32L << 20, spillDirectory);
+        for (long group = 0; group < 200000; group++) {
+            assertTrue(set.add(group, 1));
+            assertFalse(set.add(group, 1));
+            set.clear();
+        }
+        set.close();
+    }
+}
@@ -0,0 +1,50 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import clash.DataCleaning.DataQuality;
+
+public class MatchExtractorTest {
+
+    private static final String MATCH = "{\"date\": \"2025-11-12T04:16:34Z\", \"round\": 0, \"winner\": 0, \"players\": ["
+        + "{\"utag\": \"#P0027\", \"deck\": \"4a0c07256b361e06\"}, {\"utag\": \"#P0220\", \"deck\": \"0c6b1300081c0627\"}]}";
+
+    private final MatchExtractor extractor = new MatchExtractor();
+
+    @Test
+    public void validMatch() {
+        assertNull(parse(MATCH));
+        assertNull(parse("  " + MATCH + " \r"));
+        assertEquals(Decks.pack("4a0c07256b361e06"), extractor.getPackedDeck(0));
+    }
+
+    @Test
+    public void trailingContentIsMalformed() {
+        assertEquals(DataQuality.INVALID_JSON, parse(MATCH + "x"));
+        assertEquals(DataQuality.INVALID_JSON, parse(MATCH + " {}"));
+        assertEquals(DataQuality.INVALID_JSON, parse("12abc"));
+        assertEquals(DataQuality.INVALID_JSON, parse("[1] 2"));
+    }
+
+    @Test
+    public void rootThatIsNotAnObject() {
+        assertEquals(DataQuality.INVALID_FIELDS, parse("[1, 2]"));
+        assertEquals(DataQuality.INVALID_FIELDS, parse("12 "));
+    }
+
+    @Test
+    public void badCardsAndDates() {
+        assertEquals(DataQuality.INVALID_DECK_CARDS, parse(MATCH.replace("4a0c07256b361e06", "4a0c07256b361e0z")));
+        assertEquals(DataQuality.INVALID_DATE, parse(MATCH.replace("2025-11-12T04:16:34Z", "yesterday")));
+    }
+
+    private DataQuality parse(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return extractor.parse(bytes, bytes.length);
+    }
+}
@@ -0,0 +1,75 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class MatchRecordTest {
+
+    private static final long DECK1 = Decks.pack("0001070e12375b62");
+    private static final long DECK2 = Decks.pack("060a0e202651696b");
+
+    @Test
+    public void roundTripsWithoutTags() throws IOException {
+        MatchRecord record = new MatchRecord().set(1514764800000L, 3, 1, DECK1, DECK2);
+        byte[] bytes = serialize(record);
+        assertEquals(27, bytes.length);
+
+        MatchRecord read = deserialize(bytes);
+        assertEquals(record, read);
+        assertEquals(1, read.getWinner());
+        assertEquals(DECK2, read.getDeck(1));
+        assertFalse(read.hasTags());
+    }
+
+    @Test
+    public void roundTripsTagsAndHistory() throws IOException {
+        MatchRecord record = new MatchRecord().set(1514764800000L, 0, 0, DECK1, DECK2);
+        record.setTags(new Text("#ABC"), new Text("#DEF"));
+        record.setHistory(true);
+
+        MatchRecord read = deserialize(serialize(record));
+        assertEquals(record, read);
+        assertTrue(read.isHistory());
+        assertEquals("#DEF", read.getUtag(1).toString());
+    }
+
+    @Test
+    public void anyOtherWinnerIsADraw() throws IOException {
+        MatchRecord record = new MatchRecord().set(0, 0, 2, DECK1, DECK2);
+        assertEquals(-1, record.getWinner());
+        assertEquals(-1, deserialize(serialize(record)).getWinner());
+    }
+
+    @Test
+    public void readingResetsTheTagsOfTheReusedRecord() throws IOException {
+        MatchRecord tagged = new MatchRecord().set(1, 0, 0, DECK1, DECK2);
+        tagged.setTags(new Text("#ABC"), new Text("#DEF"));
+        MatchRecord reused = deserialize(serialize(tagged));
+
+        reused.readFields(new DataInputStream(new ByteArrayInputStream(serialize(new MatchRecord().set(2, 0, 1, DECK1, DECK2)))));
+        assertFalse(reused.hasTags());
+        assertEquals(2, reused.getTimestamp());
+    }
+
+    private static byte[] serialize(MatchRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        record.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static MatchRecord deserialize(byte[] bytes) throws IOException {
+        MatchRecord record = new MatchRecord();
+        record.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return record;
+    }
+}
@@ -0,0 +1,92 @@
+package clash;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NodeIndexTest {
+
+    private final Configuration conf = new Configuration();
+    private File nodes;
+    private File index;
+
+    @Before
+    public void writeNodeParts() throws IOException {
+        nodes = Files.createTempDirectory("nodes").toFile();
+        index = new File(nodes.getParentFile(), nodes.getName() + ".idx");
+        // each part sorted, as written by a reducer; the keys of a size are hashed over its parts
+        write("size=2/part-r-00000", "0102;12;5", "0a0b;3;1", "3040;40;22");
+        write("size=2/part-r-00001", "0105;9;4", "2021;10;6");
+        write("size=3/part-r-00002", "010203;11;2", "0a0b0c;1;0");
+    }
+
+    @After
+    public void deleteFiles() {
+        FileUtil.fullyDelete(nodes);
+        index.delete();
+    }
+
+    private void write(String part, String... lines) throws IOException {
+        File file = new File(nodes, part);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void mergesSortedPartsOfEverySize() throws IOException {
+        NodeIndex.build(conf, new Path(nodes.getAbsolutePath()), new Path(index.getAbsolutePath()));
+        try (NodeIndex nodeIndex = NodeIndex.open(index)) {
+            assertEquals(5, nodeIndex.getEntryCount(2));
+            assertEquals(2, nodeIndex.getEntryCount(3));
+            assertEquals(74, nodeIndex.getTotal(2));
+            assertEquals(12, nodeIndex.getTotal(3));
+
+            assertEquals(12, nodeIndex.getCount(2, Decks.pack("0102")));
+            assertEquals(9, nodeIndex.getCount(2, Decks.pack("0105")));
+            assertEquals(40, nodeIndex.getCount(2, Decks.pack("3040")));
+            assertEquals(1, nodeIndex.getCount(3, Decks.pack("0a0b0c")));
+            assertEquals(0, nodeIndex.getCount(2, Decks.pack("0103")));
+            assertEquals(0, nodeIndex.getCount(3, Decks.pack("0102")));
+            assertEquals(0, nodeIndex.getTotal(8));
+        }
+        assertArrayEquals(new long[] { 0, 0, 74, 12, 0, 0, 0, 0, 0 },
+            NodeIndex.readTotals(conf, new Path(index.getAbsolutePath())));
+    }
+
+    @Test
+    public void leavesNodesBelowMinCountOutOfTheEntriesOnly() throws IOException {
+        NodeIndex.build(conf, new Path(nodes.getAbsolutePath()), new Path(index.getAbsolutePath()), 10);
+        try (NodeIndex nodeIndex = NodeIndex.open(index)) {
+            assertEquals(3, nodeIndex.getEntryCount(2));
+            assertEquals(0, nodeIndex.getCount(2, Decks.pack("0105")));
+            assertEquals(10, nodeIndex.getCount(2, Decks.pack("2021")));
+            assertEquals(74, nodeIndex.getTotal(2));
+            assertEquals(11, nodeIndex.getCount(3, Decks.pack("010203")));
+        }
+    }
+
+    @Test
+    public void rejectsUnsortedParts() throws IOException {
+        write("size=2/part-r-00001", "2021;10;6", "0105;9;4");
+        try {
+            NodeIndex.build(conf, new Path(nodes.getAbsolutePath()), new Path(index.getAbsolutePath()));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not sorted"));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class PairSamplerTest {
+
+    private static PairSampler sampler(double rate, long seed) {
+        Configuration conf = new Configuration(false);
+        conf.set("clash.sample.rate", Double.toString(rate));
+        conf.setLong("clash.sample.seed", seed);
+        return new PairSampler(conf);
+    }
+
+    private static Text pair(int i) {
+        return new Text("#P" + i + "|#Q" + (i * 7919 % 10007));
+    }
+
+    @Test
+    public void sameDecisionsForEveryInstance() {
+        PairSampler first = sampler(0.3, 0);
+        PairSampler second = sampler(0.3, 0);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(first.keep(pair(i)), second.keep(pair(i)));
+        }
+    }
+
+    @Test
+    public void keepsAboutTheRate() {
+        PairSampler sampler = sampler(0.25, 0);
+        int kept = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (sampler.keep(pair(i))) kept++;
+        }
+        assertEquals(25000, kept, 600);
+    }
+
+    @Test
+    public void lowerRateKeepsASubsetAndSeedsDiffer() {
+        PairSampler half = sampler(0.5, 0);
+        PairSampler tenth = sampler(0.1, 0);
+        PairSampler otherSeed = sampler(0.5, 1);
+        int differences = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (tenth.keep(pair(i))) {
+                assertTrue(half.keep(pair(i)));
+            }
+            if (half.keep(pair(i)) != otherSeed.keep(pair(i))) differences++;
+        }
+        assertTrue(differences > 1000);
+    }
+
+    @Test
+    public void fullRateKeepsEverything() {
+        PairSampler sampler = sampler(1, 0);
+        assertFalse(sampler.isEnabled());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(sampler.keep(pair(i)));
+        }
+    }
+
+    @Test
+    public void thresholdAppliesToScaledCounts() {
+        assertEquals(Stats.MIN_COUNT_THRESHOLD, Stats.minSampledCount(1));
+        assertEquals(5, Stats.minSampledCount(0.5)); // 5 / 0.5 = 10
+        assertEquals(1, Stats.minSampledCount(0.1)); // 1 / 0.1 = 10
+        assertEquals(1, Stats.minSampledCount(0.01)); // a node of the sample is never dropped
+    }
+}
@@ -0,0 +1,113 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatsFileTest {
+
+    private final Configuration conf = new Configuration();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("stats").toFile();
+        conf.set("fs.defaultFS", "file:///");
+    }
+
+    @After
+    public void deleteDirectory() {
+        FileUtil.fullyDelete(directory);
+    }
+
+    @Test
+    public void buildsFromTextLines() throws IOException {
+        File stats = new File(directory, "final");
+        stats.mkdirs();
+        Files.write(new File(stats, "part-m-00000").toPath(), Arrays.asList(
+            "0102;0304;10;4;50;30;7.50;2",                             // exact, 2 draws
+            "0102;0506;20;12;50;40;10.00;0",                           // exact
+            "0304;0506;8;3;30;40;6,00;1;7;9;0.150;0.650"),            // sampled, 1 draw
+            StandardCharsets.UTF_8);
+
+        File file = new File(directory, StatsFile.FILE_NAME);
+        StatsFile.build(conf, new Path(stats.getAbsolutePath()), new Path(file.getAbsolutePath()));
+        try (StatsFile statsFile = StatsFile.open(conf, new Path(file.getAbsolutePath()))) {
+            assertEquals(6, statsFile.getRecordCount());
+
+            StatsRecord record = new StatsRecord();
+            assertTrue(statsFile.get("0304", "0102", record));
+            assertEquals(10, record.getCount());
+            assertEquals(4, record.getWins());
+            assertEquals(2, record.getDraws());
+            assertEquals(30, record.getCountSource());
+
+            assertTrue(statsFile.get("0102", "0506", record));
+            assertEquals(0, record.getDraws());
+            assertTrue(statsFile.get("0506", "0102", record));
+            assertEquals(8, record.getWins());
+
+            assertTrue(statsFile.get("0506", "0304", record));
+            assertEquals(4, record.getWins());
+            assertEquals(6.0, record.getPrediction(), 0);
+            assertFalse(statsFile.get("0102", "0102", record));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLinesWrittenBeforeDraws() throws IOException {
+        File stats = new File(directory, "final");
+        stats.mkdirs();
+        Files.write(new File(stats, "part-r-00000").toPath(), Arrays.asList("0102;0304;10;4;50;30;7.50"), StandardCharsets.UTF_8);
+        StatsFile.build(conf, new Path(stats.getAbsolutePath()), new Path(new File(directory, StatsFile.FILE_NAME).getAbsolutePath()));
+    }
+
+    @Test
+    public void mergesRunsOfRecordsAndScansAnArchetype() throws IOException {
+        File stats = new File(directory, "final");
+        stats.mkdirs();
+        Path part = new Path(new File(stats, "part-r-00000").getAbsolutePath());
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(part),
+                SequenceFile.Writer.keyClass(NullWritable.class), SequenceFile.Writer.valueClass(StatsRecord.class))) {
+            StatsRecord record = new StatsRecord();
+            for (int target = 300; target > 1; target--) { // unsorted, over several blocks
+                writer.append(NullWritable.get(), record.set(2, 1, target, target, target / 2, target % 3, 1000, target, 1.0));
+            }
+        }
+
+        conf.setLong("clash.stats.sort.mb", 0); // runs of 2 records
+        File file = new File(directory, StatsFile.FILE_NAME);
+        StatsFile.build(conf, new Path(stats.getAbsolutePath()), new Path(file.getAbsolutePath()));
+        try (StatsFile statsFile = StatsFile.open(conf, new Path(file.getAbsolutePath()))) {
+            assertEquals(2 * 299, statsFile.getRecordCount(2));
+
+            StatsRecord record = new StatsRecord();
+            StatsFile.Scanner scanner = statsFile.scan(2, 1);
+            for (int target = 2; target <= 300; target++) {
+                assertTrue(scanner.next(record));
+                assertEquals(target, record.getTarget());
+                assertEquals(target / 2, record.getWins());
+            }
+            assertFalse(scanner.next(record));
+
+            assertTrue(statsFile.get(2, 200, 1, record));
+            assertEquals(200 - 100 - 200 % 3, record.getWins());
+            assertEquals(200 % 3, record.getDraws());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package clash;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class StatsRecordTest {
+
+    @Test
+    public void mirrorKeepsDrawsOutOfTheWinsOfTheTarget() {
+        StatsRecord record = new StatsRecord().set(2, 0x0102, 0x0304, 10, 4, 2, 50, 30, 7.5);
+        StatsRecord mirror = new StatsRecord().setMirror(record);
+
+        assertEquals(0x0304, mirror.getSource());
+        assertEquals(0x0102, mirror.getTarget());
+        assertEquals(10, mirror.getCount());
+        assertEquals(4, mirror.getWins()); // 10 - 4 - 2, not 6
+        assertEquals(2, mirror.getDraws());
+        assertEquals(30, mirror.getCountSource());
+        assertEquals(50, mirror.getCountTarget());
+        assertEquals(7.5, mirror.getPrediction(), 0);
+
+        assertEquals(record.toString(), new StatsRecord().setMirror(mirror).toString());
+    }
+
+    @Test
+    public void mirrorWithoutDrawsTakesTheOtherWins() {
+        StatsRecord record = new StatsRecord().set(2, 0x0102, 0x0304, 10, 7, 0, 50, 30, 7.5);
+        assertEquals(3, new StatsRecord().setMirror(record).getWins());
+    }
+
+    @Test
+    public void roundTripsThroughWritable() throws IOException {
+        StatsRecord record = new StatsRecord().set(8, 0x0102030405060708L, 0xF0E0D0C0B0A09080L, 12, 5, 1, 100, 200, 3.25);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        record.write(new DataOutputStream(bytes));
+
+        StatsRecord read = new StatsRecord();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(record.toString(), read.toString());
+        assertEquals(1, read.getDraws());
+        assertEquals(0xF0E0D0C0B0A09080L, read.getTarget());
+    }
+
+    @Test
+    public void alwaysWritesTheDraws() {
+        long source = Decks.pack("0102");
+        long target = Decks.pack("0304");
+        assertEquals("0102;0304;10;4;50;30;7.50;0", new StatsRecord().set(2, source, target, 10, 4, 0, 50, 30, 7.5).toString());
+        assertEquals("0102;0304;10;4;50;30;7.50;2", new StatsRecord().set(2, source, target, 10, 4, 2, 50, 30, 7.5).toString());
+    }
+}